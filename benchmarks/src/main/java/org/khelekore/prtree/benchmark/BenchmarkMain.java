@@ -0,0 +1,37 @@
+package org.khelekore.prtree.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the benchmarks with the GC profiler enabled so that
+ *  allocation rates are reported next to the timings.
+ *  All the normal JMH command line options are accepted.
+ */
+public class BenchmarkMain {
+    /** Do not instantiate
+     */
+    private BenchmarkMain () {
+	// empty
+    }
+
+    /** Run the benchmarks.
+     * @param args the JMH command line arguments
+     * @throws CommandLineOptionException if the arguments are invalid
+     * @throws RunnerException if a benchmark fails
+     */
+    public static void main (String[] args)
+	throws CommandLineOptionException, RunnerException {
+	CommandLineOptions cmdLine = new CommandLineOptions (args);
+	OptionsBuilder ob = new OptionsBuilder ();
+	ob.parent (cmdLine);
+	if (cmdLine.getProfilers ().isEmpty ())
+	    ob.addProfiler (GCProfiler.class);
+	Options opts = ob.build ();
+	new Runner (opts).run ();
+    }
+}
@@ -0,0 +1,29 @@
+package org.khelekore.prtree.benchmark;
+
+import org.khelekore.prtree.MBRConverter;
+
+/** An MBRConverter for boxes stored as double arrays holding
+ *  min, max, min, max... (the same layout as SimpleMBR uses).
+ */
+public class BoxConverter implements MBRConverter<double[]> {
+    private final int dimensions;
+
+    /** Create a new converter for the given number of dimensions.
+     * @param dimensions the number of dimensions of the boxes
+     */
+    public BoxConverter (int dimensions) {
+	this.dimensions = dimensions;
+    }
+
+    public int getDimensions () {
+	return dimensions;
+    }
+
+    public double getMin (int axis, double[] t) {
+	return t[axis * 2];
+    }
+
+    public double getMax (int axis, double[] t) {
+	return t[axis * 2 + 1];
+    }
+}
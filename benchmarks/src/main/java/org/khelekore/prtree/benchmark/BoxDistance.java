@@ -0,0 +1,25 @@
+package org.khelekore.prtree.benchmark;
+
+import org.khelekore.prtree.DistanceCalculator;
+import org.khelekore.prtree.PointND;
+
+/** Calculates the euclidean distance from a point to a box stored
+ *  as a double array holding min, max, min, max...
+ */
+public class BoxDistance implements DistanceCalculator<double[]> {
+    public double distanceTo (double[] t, PointND p) {
+	double res = 0;
+	for (int i = 0, s = p.getDimensions (); i < s; i++) {
+	    double o = p.getOrd (i);
+	    double min = t[i * 2];
+	    double max = t[i * 2 + 1];
+	    double d = 0;
+	    if (o < min)
+		d = min - o;
+	    else if (o > max)
+		d = o - max;
+	    res += d * d;
+	}
+	return Math.sqrt (res);
+    }
+}
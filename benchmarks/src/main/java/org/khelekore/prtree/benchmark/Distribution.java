@@ -0,0 +1,110 @@
+package org.khelekore.prtree.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** The different data distributions used by the benchmarks.
+ *  All data sets are placed inside a world that has the extent
+ *  [0, WORLD_SIZE] on every axis. Boxes are stored as double arrays
+ *  holding min, max, min, max...
+ */
+public enum Distribution {
+    /** Small boxes spread uniformly over the world. */
+    UNIFORM {
+	@Override void fill (Random random, int n, int dimensions,
+			     double[] box) {
+	    double side = typicalSide (n, dimensions);
+	    for (int i = 0; i < dimensions; i++) {
+		double min = random.nextDouble () * (WORLD_SIZE - side);
+		box[i * 2] = min;
+		box[i * 2 + 1] = min + random.nextDouble () * side;
+	    }
+	}
+    },
+
+    /** Small boxes gathered around a few gaussian cluster centers. */
+    CLUSTERED {
+	@Override void fill (Random random, int n, int dimensions,
+			     double[] box) {
+	    double side = typicalSide (n, dimensions);
+	    double[] center = centers[random.nextInt (NUM_CLUSTERS)];
+	    for (int i = 0; i < dimensions; i++) {
+		double c = center[i] +
+		    random.nextGaussian () * WORLD_SIZE * CLUSTER_SPREAD;
+		double min = clamp (c, 0, WORLD_SIZE - side);
+		box[i * 2] = min;
+		box[i * 2 + 1] = min + random.nextDouble () * side;
+	    }
+	}
+    },
+
+    /** Large boxes, each one overlapping a big part of the others. */
+    OVERLAPPING {
+	@Override void fill (Random random, int n, int dimensions,
+			     double[] box) {
+	    double maxSide = WORLD_SIZE * OVERLAP_SIDE;
+	    for (int i = 0; i < dimensions; i++) {
+		double side = random.nextDouble () * maxSide;
+		double min = random.nextDouble () * (WORLD_SIZE - side);
+		box[i * 2] = min;
+		box[i * 2 + 1] = min + side;
+	    }
+	}
+    };
+
+    /** The extent of the world on every axis. */
+    public static final double WORLD_SIZE = 1000000;
+
+    private static final int NUM_CLUSTERS = 20;
+    private static final double CLUSTER_SPREAD = 0.02;
+    private static final double OVERLAP_SIDE = 0.2;
+    private static final int MAX_DIMENSIONS = 16;
+
+    private static final double[][] centers = createCenters ();
+
+    private static double[][] createCenters () {
+	Random random = new Random (17);
+	double[][] ret = new double[NUM_CLUSTERS][MAX_DIMENSIONS];
+	for (double[] c : ret)
+	    for (int i = 0; i < c.length; i++)
+		c[i] = WORLD_SIZE * (0.1 + 0.8 * random.nextDouble ());
+	return ret;
+    }
+
+    abstract void fill (Random random, int n, int dimensions, double[] box);
+
+    /** Generate a data set.
+     * @param n the number of boxes to create
+     * @param dimensions the number of dimensions of each box
+     * @param seed the random seed, same seed gives the same data
+     * @return the list of boxes
+     */
+    public List<double[]> generate (int n, int dimensions, long seed) {
+	if (dimensions > MAX_DIMENSIONS)
+	    throw new IllegalArgumentException ("Too many dimensions: " +
+						dimensions);
+	Random random = new Random (seed);
+	List<double[]> ret = new ArrayList<double[]> (n);
+	for (int i = 0; i < n; i++) {
+	    double[] box = new double[dimensions * 2];
+	    fill (random, n, dimensions, box);
+	    ret.add (box);
+	}
+	return ret;
+    }
+
+    /** Get the side of a box that makes n boxes of this size cover
+     *  about the whole world.
+     * @param n the number of boxes
+     * @param dimensions the number of dimensions
+     * @return the side of the box
+     */
+    public static double typicalSide (double n, int dimensions) {
+	return WORLD_SIZE * Math.pow (1 / n, 1.0 / dimensions);
+    }
+
+    private static double clamp (double d, double min, double max) {
+	return Math.max (min, Math.min (max, d));
+    }
+}
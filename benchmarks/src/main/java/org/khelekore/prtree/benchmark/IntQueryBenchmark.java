@@ -0,0 +1,144 @@
+package org.khelekore.prtree.benchmark;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.khelekore.prtree.IntPRTree;
+import org.khelekore.prtree.IntVisitor;
+import org.khelekore.prtree.MBR;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.ResultVisitor;
+import org.khelekore.prtree.SimpleMBR;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Compares IntPRTree with a PRTree that caches its entry bounds.
+ *  Both trees hold the same boxes and run the same queries, taken
+ *  round robin from a pre generated set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntQueryBenchmark {
+    /** The number of boxes in the trees. */
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    /** The number of dimensions of the boxes. */
+    @Param({"2", "3"})
+    public int dimensions;
+
+    /** The branch factor of the trees. */
+    @Param({"30"})
+    public int branchFactor;
+
+    /** How the boxes are spread out. */
+    @Param({"UNIFORM", "CLUSTERED", "OVERLAPPING"})
+    public Distribution distribution;
+
+    /** A query box is sized so that about this many uniformly
+     *  distributed boxes intersects it.
+     */
+    private static final int EXPECTED_HITS = 100;
+    private static final int NUM_QUERIES = 1024;
+
+    private PRTree<double[]> tree;
+    private IntPRTree intTree;
+    private MBR[] queries;
+    private int pos;
+    private ResultVisitor<double[]> consumer;
+    private IntVisitor intConsumer;
+    private final int[] buffer = new int[4 * EXPECTED_HITS];
+
+    /** Build the trees and the queries, this is not part of the
+     *  measurement.
+     * @param bh the Blackhole that the visitors hand the results to
+     */
+    @Setup(Level.Trial)
+    public void setup (final Blackhole bh) {
+	consumer = new ResultVisitor<double[]> () {
+	    public boolean visit (double[] box) {
+		bh.consume (box);
+		return true;
+	    }
+	};
+	intConsumer = new IntVisitor () {
+	    public boolean visit (int id) {
+		bh.consume (id);
+		return true;
+	    }
+	};
+
+	List<double[]> data = distribution.generate (size, dimensions, 4711);
+	tree = new PRTree<double[]> (new BoxConverter (dimensions), branchFactor);
+	tree.setCacheEntryBounds (true);
+	tree.load (data);
+	int[] ids = new int[size];
+	double[] bounds = new double[size * dimensions * 2];
+	for (int i = 0; i < size; i++) {
+	    ids[i] = i;
+	    System.arraycopy (data.get (i), 0, bounds, i * dimensions * 2,
+			      dimensions * 2);
+	}
+	intTree = new IntPRTree (dimensions, branchFactor);
+	intTree.load (ids, bounds);
+
+	Random random = new Random (1234);
+	double side =
+	    Distribution.typicalSide ((double)size / EXPECTED_HITS, dimensions);
+	queries = new MBR[NUM_QUERIES];
+	for (int i = 0; i < NUM_QUERIES; i++) {
+	    double[] box = data.get (random.nextInt (size));
+	    double[] values = new double[dimensions * 2];
+	    for (int j = 0; j < dimensions; j++) {
+		double c = (box[j * 2] + box[j * 2 + 1]) / 2;
+		values[j * 2] = c - side / 2;
+		values[j * 2 + 1] = c + side / 2;
+	    }
+	    queries[i] = new SimpleMBR (values);
+	}
+    }
+
+    private int next () {
+	pos = (pos + 1) & (NUM_QUERIES - 1);
+	return pos;
+    }
+
+    /** Run find on the PRTree with a visitor.
+     * @return true if the visitor did not stop the query
+     */
+    @Benchmark
+    public boolean findVisitor () {
+	return tree.find (queries[next ()], consumer);
+    }
+
+    /** Run find on the IntPRTree with a visitor.
+     * @return true if the visitor did not stop the query
+     */
+    @Benchmark
+    public boolean findVisitorInt () {
+	return intTree.find (queries[next ()], intConsumer);
+    }
+
+    /** Run find on the IntPRTree into a reused buffer.
+     * @return the number of matches
+     */
+    @Benchmark
+    public int findBufferInt () {
+	return intTree.find (queries[next ()], buffer);
+    }
+}
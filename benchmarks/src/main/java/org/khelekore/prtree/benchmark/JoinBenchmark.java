@@ -0,0 +1,138 @@
+package org.khelekore.prtree.benchmark;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.khelekore.prtree.JoinVisitor;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.ResultVisitor;
+import org.khelekore.prtree.SimpleMBR;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compares a spatial join of two trees with running one find for
+ *  each entry of the first tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinBenchmark {
+    /** The number of boxes in each tree. */
+    @Param({"10000", "100000"})
+    public int size;
+
+    /** The number of dimensions of the boxes. */
+    @Param({"2", "3"})
+    public int dimensions;
+
+    /** How the boxes are spread out. */
+    @Param({"UNIFORM", "CLUSTERED"})
+    public Distribution distribution;
+
+    private List<double[]> dataA;
+    private PRTree<double[]> treeA;
+    private PRTree<double[]> treeB;
+    private ForkJoinPool pool;
+
+    /** Build the trees, this is not part of the measurement. */
+    @Setup(Level.Trial)
+    public void setup () {
+	BoxConverter converter = new BoxConverter (dimensions);
+	dataA = distribution.generate (size, dimensions, 4711);
+	treeA = new PRTree<double[]> (converter, 30);
+	treeA.setCacheEntryBounds (true);
+	treeA.load (dataA);
+	treeB = new PRTree<double[]> (converter, 30);
+	treeB.setCacheEntryBounds (true);
+	treeB.load (distribution.generate (size, dimensions, 1234));
+	pool = new ForkJoinPool ();
+    }
+
+    /** Shut down the pool. */
+    @TearDown(Level.Trial)
+    public void tearDown () {
+	pool.shutdown ();
+    }
+
+    /** Count the pairs with one find in the second tree for each entry
+     *  of the first tree.
+     * @return the number of pairs
+     */
+    @Benchmark
+    public long findEach () {
+	final long[] count = new long[1];
+	ResultVisitor<double[]> counter = new ResultVisitor<double[]> () {
+	    public boolean visit (double[] box) {
+		count[0]++;
+		return true;
+	    }
+	};
+	for (double[] box : dataA)
+	    treeB.find (new SimpleMBR (box), counter);
+	return count[0];
+    }
+
+    /** Count the pairs with a join.
+     * @return the number of pairs
+     */
+    @Benchmark
+    public long join () {
+	Counter c = new Counter ();
+	treeA.join (treeB, c);
+	return c.count;
+    }
+
+    /** Count the pairs with a join in a ForkJoinPool with one thread
+     *  for each core.
+     * @return the number of pairs
+     */
+    @Benchmark
+    public long parallelJoin () {
+	SyncCounter c = new SyncCounter ();
+	treeA.join (treeB, c, pool);
+	return c.count;
+    }
+
+    /** Count the pairs of the first tree with a self join.
+     * @return the number of pairs
+     */
+    @Benchmark
+    public long selfJoin () {
+	Counter c = new Counter ();
+	treeA.selfJoin (c);
+	return c.count;
+    }
+
+    private static class Counter implements JoinVisitor<double[], double[]> {
+	private long count;
+
+	public boolean visit (double[] a, double[] b) {
+	    count++;
+	    return true;
+	}
+    }
+
+    private static class SyncCounter
+	implements JoinVisitor<double[], double[]> {
+	private long count;
+
+	public synchronized boolean visit (double[] a, double[] b) {
+	    count++;
+	    return true;
+	}
+    }
+}
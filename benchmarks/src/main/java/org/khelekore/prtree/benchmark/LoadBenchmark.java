@@ -0,0 +1,81 @@
+package org.khelekore.prtree.benchmark;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.ShardedPRTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures the time it takes to bulk load a PRTree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+    /** The number of boxes to load. */
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    /** The number of dimensions of the boxes. */
+    @Param({"2", "3", "6"})
+    public int dimensions;
+
+    /** The branch factor of the tree. */
+    @Param({"8", "30", "64"})
+    public int branchFactor;
+
+    /** How the boxes are spread out. */
+    @Param({"UNIFORM", "CLUSTERED", "OVERLAPPING"})
+    public Distribution distribution;
+
+    /** The number of shards of the sharded load. */
+    private static final int SHARDS = 16;
+
+    private List<double[]> data;
+    private BoxConverter converter;
+
+    /** Create the data set, this is not part of the measurement. */
+    @Setup(Level.Trial)
+    public void setup () {
+	data = distribution.generate (size, dimensions, 4711);
+	converter = new BoxConverter (dimensions);
+    }
+
+    /** Bulk load a new tree.
+     * @return the loaded tree so that the JIT can not remove the load
+     */
+    @Benchmark
+    public PRTree<double[]> load () {
+	PRTree<double[]> tree =
+	    new PRTree<double[]> (converter, branchFactor);
+	tree.load (data);
+	return tree;
+    }
+
+    /** Bulk load a new sharded tree, the shards are loaded in the
+     *  common pool.
+     * @return the loaded tree so that the JIT can not remove the load
+     */
+    @Benchmark
+    public ShardedPRTree<double[]> loadSharded () {
+	ShardedPRTree<double[]> tree =
+	    new ShardedPRTree<double[]> (converter, branchFactor, SHARDS);
+	tree.load (data, ForkJoinPool.commonPool ());
+	return tree;
+    }
+}
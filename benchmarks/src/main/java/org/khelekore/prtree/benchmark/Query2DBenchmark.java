@@ -0,0 +1,194 @@
+package org.khelekore.prtree.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.khelekore.prtree.DistanceResult;
+import org.khelekore.prtree.MBR;
+import org.khelekore.prtree.MBRConverter2D;
+import org.khelekore.prtree.NodeFilter;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.PRTree2D;
+import org.khelekore.prtree.PointND;
+import org.khelekore.prtree.ResultVisitor;
+import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.SimplePointND;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Compares PRTree2D with a 2 dimensional PRTree that caches its
+ *  entry bounds. Both trees hold the same boxes and run the same
+ *  queries, taken round robin from a pre generated set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Query2DBenchmark {
+    /** The number of boxes in the trees. */
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    /** The branch factor of the trees. */
+    @Param({"30"})
+    public int branchFactor;
+
+    /** How the boxes are spread out. */
+    @Param({"UNIFORM", "CLUSTERED", "OVERLAPPING"})
+    public Distribution distribution;
+
+    /** The number of entries to find for each nearest neighbour query. */
+    @Param({"10"})
+    public int maxHits;
+
+    /** A query box is sized so that about this many uniformly
+     *  distributed boxes intersects it.
+     */
+    private static final int EXPECTED_HITS = 100;
+    private static final int NUM_QUERIES = 1024;
+
+    private PRTree<double[]> tree;
+    private PRTree2D<double[]> tree2D;
+    private MBR[] queries;
+    private PointND[] points;
+    private int pos;
+    private ResultVisitor<double[]> consumer;
+
+    private final BoxDistance distance = new BoxDistance ();
+    private final NodeFilter<double[]> acceptAll = new NodeFilter<double[]> () {
+	public boolean accept (double[] t) {
+	    return true;
+	}
+    };
+
+    /** Reads boxes stored as min x, max x, min y, max y. */
+    private static class BoxConverter2D implements MBRConverter2D<double[]> {
+	public double getMinX (double[] t) {
+	    return t[0];
+	}
+
+	public double getMinY (double[] t) {
+	    return t[2];
+	}
+
+	public double getMaxX (double[] t) {
+	    return t[1];
+	}
+
+	public double getMaxY (double[] t) {
+	    return t[3];
+	}
+    }
+
+    /** Build the trees and the queries, this is not part of the
+     *  measurement.
+     * @param bh the Blackhole that the visitor hands the results to
+     */
+    @Setup(Level.Trial)
+    public void setup (final Blackhole bh) {
+	consumer = new ResultVisitor<double[]> () {
+	    public boolean visit (double[] box) {
+		bh.consume (box);
+		return true;
+	    }
+	};
+
+	List<double[]> data = distribution.generate (size, 2, 4711);
+	tree = new PRTree<double[]> (new BoxConverter (2), branchFactor);
+	tree.setCacheEntryBounds (true);
+	tree.load (data);
+	tree2D = new PRTree2D<double[]> (new BoxConverter2D (), branchFactor);
+	tree2D.load (data);
+
+	Random random = new Random (1234);
+	double side = Distribution.typicalSide ((double)size / EXPECTED_HITS, 2);
+	queries = new MBR[NUM_QUERIES];
+	points = new PointND[NUM_QUERIES];
+	for (int i = 0; i < NUM_QUERIES; i++) {
+	    double[] box = data.get (random.nextInt (size));
+	    double x = (box[0] + box[1]) / 2;
+	    double y = (box[2] + box[3]) / 2;
+	    queries[i] = new SimpleMBR (x - side / 2, x + side / 2,
+					y - side / 2, y + side / 2);
+	    points[i] = new SimplePointND (x, y);
+	}
+    }
+
+    private int next () {
+	pos = (pos + 1) & (NUM_QUERIES - 1);
+	return pos;
+    }
+
+    /** Run find on the generic tree with a visitor.
+     * @return true if the visitor did not stop the query
+     */
+    @Benchmark
+    public boolean findVisitor () {
+	return tree.find (queries[next ()], consumer);
+    }
+
+    /** Run find on the 2D tree with a visitor.
+     * @return true if the visitor did not stop the query
+     */
+    @Benchmark
+    public boolean findVisitor2D () {
+	MBR q = queries[next ()];
+	return tree2D.find (q.getMin (0), q.getMin (1), q.getMax (0),
+			    q.getMax (1), consumer);
+    }
+
+    /** Run find on the generic tree with a result list.
+     * @return the result list
+     */
+    @Benchmark
+    public List<double[]> findList () {
+	List<double[]> result = new ArrayList<double[]> ();
+	tree.find (queries[next ()], result);
+	return result;
+    }
+
+    /** Run find on the 2D tree with a result list.
+     * @return the result list
+     */
+    @Benchmark
+    public List<double[]> findList2D () {
+	MBR q = queries[next ()];
+	List<double[]> result = new ArrayList<double[]> ();
+	tree2D.find (q.getMin (0), q.getMin (1), q.getMax (0), q.getMax (1),
+		     result);
+	return result;
+    }
+
+    /** Find the nearest neighbours of a point in the generic tree.
+     * @return the found neighbours
+     */
+    @Benchmark
+    public List<DistanceResult<double[]>> nearestNeighbour () {
+	return tree.nearestNeighbour (distance, acceptAll, maxHits,
+				      points[next ()]);
+    }
+
+    /** Find the nearest neighbours of a point in the 2D tree.
+     * @return the found neighbours
+     */
+    @Benchmark
+    public List<DistanceResult<double[]>> nearestNeighbour2D () {
+	PointND p = points[next ()];
+	return tree2D.nearestNeighbour (distance, acceptAll, maxHits,
+					p.getOrd (0), p.getOrd (1));
+    }
+}
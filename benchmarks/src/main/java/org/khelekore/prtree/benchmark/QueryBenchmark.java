@@ -0,0 +1,267 @@
+package org.khelekore.prtree.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.khelekore.prtree.BatchResultVisitor;
+import org.khelekore.prtree.DistanceResult;
+import org.khelekore.prtree.MBR;
+import org.khelekore.prtree.NodeFilter;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.PointND;
+import org.khelekore.prtree.QueryStats;
+import org.khelekore.prtree.ResultVisitor;
+import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.SimplePointND;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Measures the query methods of a loaded PRTree.
+ *  Every benchmark invocation runs one query, the queries are
+ *  taken round robin from a pre generated set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    /** The number of boxes in the tree. */
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    /** The number of dimensions of the boxes. */
+    @Param({"2", "3", "6"})
+    public int dimensions;
+
+    /** The branch factor of the tree. */
+    @Param({"8", "30", "64"})
+    public int branchFactor;
+
+    /** How the boxes are spread out. */
+    @Param({"UNIFORM", "CLUSTERED", "OVERLAPPING"})
+    public Distribution distribution;
+
+    /** If the tree keeps a copy of the entry bounds. */
+    @Param({"false", "true"})
+    public boolean cacheEntryBounds;
+
+    /** If the tree stores its bounds as floats. */
+    @Param({"false", "true"})
+    public boolean floatBounds;
+
+    /** The number of entries to find for each nearest neighbour query. */
+    @Param({"10", "1000"})
+    public int maxHits;
+
+    /** A query box is sized so that about this many uniformly
+     *  distributed boxes intersects it.
+     */
+    private static final int EXPECTED_HITS = 100;
+    private static final int NUM_QUERIES = 1024;
+
+    private PRTree<double[]> tree;
+    private MBR[] queries;
+    private PointND[] points;
+    private int pos;
+    private ResultVisitor<double[]> consumer;
+    private double[] packedQueries;
+    /** The radius of the within distance queries, half the query side */
+    private double radius;
+    private BatchResultVisitor<double[]> batchConsumer;
+    private final QueryStats stats = new QueryStats ();
+
+    private final BoxDistance distance = new BoxDistance ();
+    private final NodeFilter<double[]> acceptAll = new NodeFilter<double[]> () {
+	public boolean accept (double[] t) {
+	    return true;
+	}
+    };
+
+    /** Build the tree and the queries, this is not part of the
+     *  measurement.
+     * @param bh the Blackhole that the visitor hands the results to
+     */
+    @Setup(Level.Trial)
+    public void setup (final Blackhole bh) {
+	consumer = new ResultVisitor<double[]> () {
+	    public boolean visit (double[] box) {
+		bh.consume (box);
+		return true;
+	    }
+	};
+	batchConsumer = new BatchResultVisitor<double[]> () {
+	    public boolean visit (int query, double[] box) {
+		bh.consume (box);
+		return true;
+	    }
+	};
+
+	List<double[]> data = distribution.generate (size, dimensions, 4711);
+	tree = new PRTree<double[]> (new BoxConverter (dimensions),
+				     branchFactor);
+	tree.setCacheEntryBounds (cacheEntryBounds);
+	tree.setFloatBounds (floatBounds);
+	tree.load (data);
+
+	Random random = new Random (1234);
+	double side =
+	    Distribution.typicalSide ((double)size / EXPECTED_HITS, dimensions);
+	radius = side / 2;
+	queries = new MBR[NUM_QUERIES];
+	points = new PointND[NUM_QUERIES];
+	packedQueries = new double[NUM_QUERIES * dimensions * 2];
+	for (int i = 0; i < NUM_QUERIES; i++) {
+	    // center the queries on existing data so that clustered data
+	    // gets queries where the data is.
+	    double[] box = data.get (random.nextInt (size));
+	    double[] values = new double[dimensions * 2];
+	    double[] ords = new double[dimensions];
+	    for (int j = 0; j < dimensions; j++) {
+		double c = (box[j * 2] + box[j * 2 + 1]) / 2;
+		values[j * 2] = c - side / 2;
+		values[j * 2 + 1] = c + side / 2;
+		ords[j] = c;
+	    }
+	    queries[i] = new SimpleMBR (values);
+	    System.arraycopy (values, 0, packedQueries, i * values.length,
+			      values.length);
+	    points[i] = new SimplePointND (ords);
+	}
+    }
+
+    private int next () {
+	pos = (pos + 1) & (NUM_QUERIES - 1);
+	return pos;
+    }
+
+    /** Run find with a caller supplied result list.
+     * @return the result list
+     */
+    @Benchmark
+    public List<double[]> findList () {
+	List<double[]> result = new ArrayList<double[]> ();
+	tree.find (queries[next ()], result);
+	return result;
+    }
+
+    /** Run find and iterate over the result.
+     * @param bh the Blackhole that consumes the results
+     */
+    @Benchmark
+    public void findIterator (Blackhole bh) {
+	for (double[] box : tree.find (queries[next ()]))
+	    bh.consume (box);
+    }
+
+    /** Run find with a visitor that consumes the results.
+     * @return true if the visitor did not stop the query
+     */
+    @Benchmark
+    public boolean findVisitor () {
+	return tree.find (queries[next ()], consumer);
+    }
+
+    /** Run find with a visitor and count the work done.
+     * @return the statistics of the query
+     */
+    @Benchmark
+    public QueryStats findVisitorStats () {
+	tree.find (queries[next ()], consumer, stats);
+	return stats;
+    }
+
+    /** Run all the queries as one batch.
+     * @return the batch visitor
+     */
+    @Benchmark
+    @OperationsPerInvocation(NUM_QUERIES)
+    public BatchResultVisitor<double[]> findBatch () {
+	tree.findBatch (packedQueries, batchConsumer);
+	return batchConsumer;
+    }
+
+    /** Count the entries that intersect a query.
+     * @return the number of matching entries
+     */
+    @Benchmark
+    public int count () {
+	return tree.count (queries[next ()]);
+    }
+
+    /** Count the entries that intersect a query with a stream.
+     * @return the number of matching entries
+     */
+    @Benchmark
+    public long streamCount () {
+	return tree.stream (queries[next ()]).count ();
+    }
+
+    /** Find the entries within a radius of a point.
+     * @return true if the visitor did not stop the query
+     */
+    @Benchmark
+    public boolean withinDistance () {
+	return tree.withinDistance (points[next ()], radius, distance, consumer);
+    }
+
+    /** Find the entries within a radius of a point the way it is done
+     *  without withinDistance, with a box query and a filter.
+     * @param bh the Blackhole that consumes the results
+     * @return true if the visitor did not stop the query
+     */
+    @Benchmark
+    public boolean withinDistanceFind (final Blackhole bh) {
+	final PointND p = points[next ()];
+	double[] values = new double[dimensions * 2];
+	for (int j = 0; j < dimensions; j++) {
+	    values[j * 2] = p.getOrd (j) - radius;
+	    values[j * 2 + 1] = p.getOrd (j) + radius;
+	}
+	return tree.find (new SimpleMBR (values), new ResultVisitor<double[]> () {
+		public boolean visit (double[] box) {
+		    if (distance.distanceTo (box, p) <= radius)
+			bh.consume (box);
+		    return true;
+		}
+	    });
+    }
+
+    /** Find the nearest neighbours of a point.
+     * @return the found neighbours
+     */
+    @Benchmark
+    public List<DistanceResult<double[]>> nearestNeighbour () {
+	return tree.nearestNeighbour (distance, acceptAll, maxHits,
+				      points[next ()]);
+    }
+
+    /** Take the maxHits nearest entries of a point from the incremental
+     *  nearest neighbour iterator.
+     * @param bh the Blackhole that consumes the results
+     */
+    @Benchmark
+    public void nearestNeighbours (Blackhole bh) {
+	int found = 0;
+	for (DistanceResult<double[]> dr :
+		 tree.nearestNeighbours (distance, acceptAll, points[next ()])) {
+	    bh.consume (dr);
+	    if (++found == maxHits)
+		break;
+	}
+    }
+}
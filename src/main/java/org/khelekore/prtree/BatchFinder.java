@@ -0,0 +1,206 @@
+package org.khelekore.prtree;
+
+/** Runs a group of intersection queries in one traversal of the tree.
+ *
+ *  <p>The queries that intersect a node are pushed down the tree
+ *  together, so each node is only read once for the whole group
+ *  instead of once for each query.
+ *
+ * @param <T> the data type stored in the PRTree
+ */
+class BatchFinder<T> {
+    private final FlatTree tree;
+    private final Object[] entries;
+    private final MBRConverter<T> converter;
+    private final double[] queries;
+    private final boolean[] done;
+    private final BatchResultVisitor<? super T> visitor;
+    private final int dims;
+    /** The active queries for each level of the traversal */
+    private final int[][] active;
+    /** The bounds of the current entry when entry bounds are not cached */
+    private final double[] entry;
+
+    /** Create a new BatchFinder.
+     * @param tree the tree to search
+     * @param entries the entries in leaf order
+     * @param converter the converter used when the tree does not
+     *        store the entry bounds
+     * @param queries the packed query bounds, laid out as min, max,
+     *        min, max... for each query
+     * @param done the queries that the visitor has stopped
+     * @param visitor the receiver of the results
+     * @param maxQueries the largest group that will be searched
+     */
+    public BatchFinder (FlatTree tree, Object[] entries,
+			MBRConverter<T> converter, double[] queries,
+			boolean[] done, BatchResultVisitor<? super T> visitor,
+			int maxQueries) {
+	this.tree = tree;
+	this.entries = entries;
+	this.converter = converter;
+	this.queries = queries;
+	this.done = done;
+	this.visitor = visitor;
+	dims = tree.getDimensions ();
+	active = new int[tree.getHeight ()][maxQueries];
+	entry = new double[dims * 2];
+    }
+
+    /** Run the given queries.
+     * @param order the query indices
+     * @param from the first position in order to run
+     * @param to the position after the last query to run
+     */
+    public void find (int[] order, int from, int to) {
+	int[] a = active[0];
+	int n = 0;
+	for (int i = from; i < to; i++) {
+	    int q = order[i];
+	    if (tree.intersects (0, 0, queries, q))
+		a[n++] = q;
+	}
+	if (n > 0)
+	    find (0, 0, n);
+    }
+
+    private void find (int level, int node, int numActive) {
+	int[] a = active[level];
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    double[] entryBounds = tree.getEntryBounds ();
+	    float[] floatEntryBounds = tree.getFloatEntryBounds ();
+	    for (int i = start; i < end; i++) {
+		@SuppressWarnings("unchecked") T t = (T)entries[i];
+		double[] eb = entryBounds;
+		int ei = i;
+		if (eb == null) {
+		    if (numActive == 1) {
+			// a single query only reads the values it needs
+			int q = a[0];
+			if (!done[q] &&
+			    (floatEntryBounds == null ||
+			     FlatTree.intersects (floatEntryBounds, i, queries,
+						  q, dims)) &&
+			    intersects (t, q) && !visitor.visit (q, t))
+			    done[q] = true;
+			continue;
+		    }
+		    if (floatEntryBounds != null &&
+			!intersectsAny (floatEntryBounds, i, a, numActive))
+			continue;
+		    readEntryBounds (t);
+		    eb = entry;
+		    ei = 0;
+		}
+		for (int k = 0; k < numActive; k++) {
+		    int q = a[k];
+		    if (!done[q] && FlatTree.intersects (eb, ei, queries, q, dims)
+			&& !visitor.visit (q, t))
+			done[q] = true;
+		}
+	    }
+	} else {
+	    int[] next = active[level + 1];
+	    for (int i = start; i < end; i++) {
+		int n = 0;
+		for (int k = 0; k < numActive; k++) {
+		    int q = a[k];
+		    if (!done[q] && tree.intersects (level + 1, i, queries, q))
+			next[n++] = q;
+		}
+		if (n > 0)
+		    find (level + 1, i, n);
+	    }
+	}
+    }
+
+    /** Sort the queries so that queries that are close to each other
+     *  are next to each other, the queries are sorted on the Z-order
+     *  curve of the center of their first two axes.
+     * @param queries the packed query bounds
+     * @param dims the number of dimensions
+     * @return the query indices in Z-order
+     */
+    public static int[] sortQueries (double[] queries, int dims) {
+	int dims2 = dims * 2;
+	int n = queries.length / dims2;
+	int axes = Math.min (dims, 2);
+	double[] min = new double[axes];
+	double[] max = new double[axes];
+	for (int j = 0; j < axes; j++) {
+	    min[j] = Double.POSITIVE_INFINITY;
+	    max[j] = Double.NEGATIVE_INFINITY;
+	}
+	for (int i = 0; i < n; i++) {
+	    for (int j = 0; j < axes; j++) {
+		double c = getCenter (queries, i * dims2 + j * 2);
+		min[j] = Math.min (min[j], c);
+		max[j] = Math.max (max[j], c);
+	    }
+	}
+	double[] key = new double[n];
+	for (int i = 0; i < n; i++) {
+	    long z = 0;
+	    for (int j = 0; j < axes; j++) {
+		double c = getCenter (queries, i * dims2 + j * 2);
+		double range = max[j] - min[j];
+		long cell = range > 0 ?
+		    (long)((c - min[j]) / range * Z_CELLS_MAX) : 0;
+		z |= spread (cell) << j;
+	    }
+	    key[i] = z;
+	}
+	return IndexSorter.sort (key, false);
+    }
+
+    /** The largest cell on each axis of the Z-order curve. */
+    private static final int Z_CELLS_MAX = 0xffff;
+
+    private static double getCenter (double[] queries, int pos) {
+	return (queries[pos] + queries[pos + 1]) / 2;
+    }
+
+    /** Spread the 16 low bits so that there is a zero bit between each.
+     */
+    private static long spread (long v) {
+	v &= 0xffff;
+	v = (v | (v << 8)) & 0x00ff00ff;
+	v = (v | (v << 4)) & 0x0f0f0f0f;
+	v = (v | (v << 2)) & 0x33333333;
+	v = (v | (v << 1)) & 0x55555555;
+	return v;
+    }
+
+    private boolean intersects (T t, int query) {
+	int offset = query * dims * 2;
+	for (int j = 0; j < dims; j++) {
+	    if (converter.getMax (j, t) < queries[offset + j * 2] ||
+		converter.getMin (j, t) > queries[offset + j * 2 + 1])
+		return false;
+	}
+	return true;
+    }
+
+    /** Check if the float bounds of an entry intersect any of the
+     *  active queries, the entry is only read if they do.
+     */
+    private boolean intersectsAny (float[] bounds, int entry, int[] a,
+				   int numActive) {
+	for (int k = 0; k < numActive; k++) {
+	    int q = a[k];
+	    if (!done[q] && FlatTree.intersects (bounds, entry, queries, q, dims))
+		return true;
+	}
+	return false;
+    }
+
+    private void readEntryBounds (T t) {
+	for (int j = 0; j < dims; j++) {
+	    entry[j * 2] = converter.getMin (j, t);
+	    entry[j * 2 + 1] = converter.getMax (j, t);
+	}
+    }
+}
@@ -0,0 +1,14 @@
+package org.khelekore.prtree;
+
+/** A receiver of the results of a batch of queries.
+ * @param <T> the data type stored in the PRTree
+ */
+public interface BatchResultVisitor<T> {
+    /** Handle one entry that matches one of the queries.
+     * @param query the index of the query in the batch
+     * @param t the matching entry
+     * @return true to continue the query, false to stop it, the other
+     *         queries of the batch will continue
+     */
+    boolean visit (int query, T t);
+}
@@ -0,0 +1,129 @@
+package org.khelekore.prtree;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/** Finds the entries of a tree in increasing distance order, one
+ *  entry at a time.
+ *
+ *  <p>Nodes and entries share one priority queue. A node is queued
+ *  with the euclidean distance to its bounds and is only expanded
+ *  when it reaches the head of the queue, so an entry is returned as
+ *  soon as nothing left in the queue can be closer. The work done
+ *  depends on the number of entries that are consumed, not on the
+ *  size of the tree.
+ */
+class DistanceBrowser<T> implements Iterator<DistanceResult<T>> {
+    private final FlatTree tree;
+    private final Object[] entries;
+    private final NodeFilter<T> filter;
+    private final DistanceCalculator<T> dc;
+    private final PointND p;
+    private final double maxDistance;
+    private final double[] point;
+    private final PriorityQueue<Item> queue = new PriorityQueue<Item> ();
+    private DistanceResult<T> next;
+
+    public DistanceBrowser (FlatTree tree,
+			    Object[] entries,
+			    NodeFilter<T> filter,
+			    DistanceCalculator<T> dc,
+			    PointND p,
+			    double maxDistance) {
+	this.tree = tree;
+	this.entries = entries;
+	this.filter = filter;
+	this.dc = dc;
+	this.p = p;
+	this.maxDistance = maxDistance;
+	point = new double[p.getDimensions ()];
+	for (int i = 0; i < point.length; i++)
+	    point[i] = p.getOrd (i);
+	if (entries.length > 0)
+	    addNode (0, 0);
+	findNext ();
+    }
+
+    public boolean hasNext () {
+	return next != null;
+    }
+
+    public DistanceResult<T> next () {
+	if (next == null)
+	    throw new NoSuchElementException ();
+	DistanceResult<T> toReturn = next;
+	next = null;
+	findNext ();
+	return toReturn;
+    }
+
+    public void remove () {
+	throw new UnsupportedOperationException ("Not implemented");
+    }
+
+    private void findNext () {
+	while (!queue.isEmpty ()) {
+	    Item i = queue.remove ();
+	    if (i.entry != null) {
+		next = i.entry;
+		return;
+	    }
+	    int[] children = tree.getChildren (i.level);
+	    int start = children[i.node];
+	    int end = children[i.node + 1];
+	    if (i.level == tree.getLeafLevel ()) {
+		for (int j = start; j < end; j++) {
+		    @SuppressWarnings("unchecked") T t = (T)entries[j];
+		    if (filter.accept (t)) {
+			double dist = dc.distanceTo (t, p);
+			if (dist <= maxDistance)
+			    queue.add (new Item (new DistanceResult<T> (t, dist)));
+		    }
+		}
+	    } else {
+		for (int j = start; j < end; j++)
+		    addNode (i.level + 1, j);
+	    }
+	}
+    }
+
+    private void addNode (int level, int node) {
+	double dist = Math.sqrt (tree.getMinDist (level, node, point));
+	if (dist <= maxDistance)
+	    queue.add (new Item (level, node, dist));
+    }
+
+    /** A node or an entry in the queue. Entries are returned before
+     *  nodes at the same distance.
+     */
+    private class Item implements Comparable<Item> {
+	private final int level;
+	private final int node;
+	private final double dist;
+	private final DistanceResult<T> entry;
+
+	public Item (int level, int node, double dist) {
+	    this.level = level;
+	    this.node = node;
+	    this.dist = dist;
+	    this.entry = null;
+	}
+
+	public Item (DistanceResult<T> entry) {
+	    this.level = -1;
+	    this.node = -1;
+	    this.dist = entry.getDistance ();
+	    this.entry = entry;
+	}
+
+	public int compareTo (Item i) {
+	    int c = Double.compare (dist, i.dist);
+	    if (c != 0)
+		return c;
+	    if (entry != null)
+		return i.entry != null ? 0 : -1;
+	    return i.entry != null ? 1 : 0;
+	}
+    }
+}
@@ -2,6 +2,13 @@
 
 /** A class that can calculate the distance to a given object
  *  stored in the PRTree
+ *
+ *  <p>The nearest neighbour searches skip nodes by the euclidean
+ *  distance from the point to the node bounds, so the distance to an
+ *  object must never be less than the euclidean distance from the
+ *  point to the bounds of the object. The euclidean distance to the
+ *  bounds, or to any shape inside the bounds, works. A squared
+ *  distance does not.
  * @param <T> the data type to calculate distances to
  */
 public interface DistanceCalculator<T> {
@@ -0,0 +1,293 @@
+package org.khelekore.prtree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** A spatial index that supports insert and remove, built from
+ *  bulk loaded PRTrees.
+ *
+ *  <p>New entries are added to a small write buffer. When the buffer
+ *  is full it is merged with the smallest levels into a new PRTree,
+ *  level i holds about bufferSize * 2^i entries, so each entry is
+ *  part of O(log n) bulk loads and the amortized insert cost is
+ *  O(log^2 n) instead of the O(n log n) of a full rebuild.
+ *  Removed entries are marked in their level and skipped by the
+ *  queries, a level is rebuilt when half of its entries are removed.
+ *
+ *  <p>Queries search the buffer and every level. This class is not
+ *  thread safe, the caller has to synchronize updates with queries.
+ *
+ * @param <T> the data type stored in the tree
+ */
+public class DynamicPRTree<T> {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final MBRConverter<T> converter;
+    private final int branchFactor;
+    private final int bufferSize;
+    private final EntryConverter entryConverter = new EntryConverter ();
+
+    private final List<T> buffer;
+    /** The levels, level i is null or holds about bufferSize * 2^i entries */
+    private final List<Level> levels = new ArrayList<Level> ();
+    private int size;
+
+    /** Create a new DynamicPRTree with the default buffer size.
+     * @param converter the MBRConverter to use for this tree
+     * @param branchFactor the number of child nodes for each internal node.
+     */
+    public DynamicPRTree (MBRConverter<T> converter, int branchFactor) {
+	this (converter, branchFactor, DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Create a new DynamicPRTree.
+     * @param converter the MBRConverter to use for this tree
+     * @param branchFactor the number of child nodes for each internal node.
+     * @param bufferSize the number of inserted entries that are kept
+     *        unindexed before they are bulk loaded into a PRTree.
+     */
+    public DynamicPRTree (MBRConverter<T> converter, int branchFactor,
+			  int bufferSize) {
+	if (bufferSize < 1)
+	    throw new IllegalArgumentException ("bufferSize: " + bufferSize +
+						" < 1");
+	this.converter = converter;
+	this.branchFactor = branchFactor;
+	this.bufferSize = bufferSize;
+	buffer = new ArrayList<T> (bufferSize);
+    }
+
+    /** Replace the content of this tree with the given data.
+     * @param data the new data of this tree
+     */
+    public void load (Collection<? extends T> data) {
+	buffer.clear ();
+	levels.clear ();
+	size = data.size ();
+	if (size < bufferSize) {
+	    buffer.addAll (data);
+	    return;
+	}
+	List<Entry<T>> entries = new ArrayList<Entry<T>> (size);
+	for (T t : data)
+	    entries.add (new Entry<T> (t));
+	int slot = 0;
+	while ((long)bufferSize << (slot + 1) <= size)
+	    slot++;
+	setLevel (slot, buildLevel (entries));
+    }
+
+    /** Add an entry to this tree.
+     * @param t the entry to add
+     */
+    public void insert (T t) {
+	buffer.add (t);
+	size++;
+	if (buffer.size () >= bufferSize)
+	    flush ();
+    }
+
+    /** Remove one entry that is equal to the given object.
+     * @param t the entry to remove
+     * @return true if an entry was removed
+     */
+    public boolean remove (T t) {
+	if (buffer.remove (t)) {
+	    size--;
+	    return true;
+	}
+	MBR mbr = new SimpleMBR (t, converter);
+	for (int i = 0; i < levels.size (); i++) {
+	    Level level = levels.get (i);
+	    if (level == null)
+		continue;
+	    for (Entry<T> e : level.tree.find (mbr)) {
+		if (!e.removed && e.t.equals (t)) {
+		    e.removed = true;
+		    level.removed++;
+		    size--;
+		    if (level.removed * 2 > level.entries.size ())
+			setLevel (i, buildLevel (level.getLiveEntries ()));
+		    return true;
+		}
+	    }
+	}
+	return false;
+    }
+
+    /** Get the number of entries in this tree.
+     * @return the number of entries
+     */
+    public int size () {
+	return size;
+    }
+
+    /** Check if this tree is empty
+     * @return true if the number of entries is 0, false otherwise
+     */
+    public boolean isEmpty () {
+	return size == 0;
+    }
+
+    /** Merge the buffer with the full levels into the first free level.
+     */
+    private void flush () {
+	List<Entry<T>> entries = new ArrayList<Entry<T>> ();
+	for (T t : buffer)
+	    entries.add (new Entry<T> (t));
+	buffer.clear ();
+	int slot = 0;
+	while (slot < levels.size () && levels.get (slot) != null) {
+	    entries.addAll (levels.get (slot).getLiveEntries ());
+	    levels.set (slot, null);
+	    slot++;
+	}
+	setLevel (slot, buildLevel (entries));
+    }
+
+    private Level buildLevel (List<Entry<T>> entries) {
+	if (entries.isEmpty ())
+	    return null;
+	PRTree<Entry<T>> tree =
+	    new PRTree<Entry<T>> (entryConverter, branchFactor);
+	tree.load (entries);
+	return new Level (tree, entries);
+    }
+
+    private void setLevel (int slot, Level level) {
+	while (levels.size () <= slot)
+	    levels.add (null);
+	levels.set (slot, level);
+    }
+
+    /** Finds all objects that intersect the given rectangle and stores
+     *  the found node in the given list.
+     * @param query the bounds of the query
+     * @param resultNodes the list that will be filled with the result
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     */
+    public void find (MBR query, List<T> resultNodes) {
+	validate (query);
+	for (T t : buffer)
+	    if (query.intersects (t, converter))
+		resultNodes.add (t);
+	for (Level level : levels) {
+	    if (level == null)
+		continue;
+	    for (Entry<T> e : level.tree.find (query))
+		if (!e.removed)
+		    resultNodes.add (e.t);
+	}
+    }
+
+    /** Check the query here, the levels only check it if there are any.
+     */
+    private void validate (MBR query) {
+	int dims = converter.getDimensions ();
+	for (int i = 0; i < dims; i++) {
+	    double max = query.getMax (i);
+	    double min = query.getMin (i);
+	    if (max < min)
+		throw new IllegalArgumentException ("max: " + max +
+						    " < min: " + min +
+						    ", axis: " + i +
+						    ", query: " + query);
+	}
+    }
+
+    /** Get the nearest neighbour of the given point
+     * @param dc the DistanceCalculator to use.
+     * @param filter a NodeFilter that can be used to ignore some leaf nodes.
+     * @param maxHits the maximum number of entries to find.
+     * @param p the point to find the nearest neighbour to.
+     * @return A List of DistanceResult with up to maxHits results.
+     *         Will return an empty list if this tree is empty.
+     */
+    public List<DistanceResult<T>> nearestNeighbour (final DistanceCalculator<T> dc,
+						     final NodeFilter<T> filter,
+						     int maxHits,
+						     PointND p) {
+	List<DistanceResult<T>> ret = new ArrayList<DistanceResult<T>> ();
+	for (T t : buffer)
+	    if (filter.accept (t))
+		ret.add (new DistanceResult<T> (t, dc.distanceTo (t, p)));
+	DistanceCalculator<Entry<T>> edc = new DistanceCalculator<Entry<T>> () {
+	    public double distanceTo (Entry<T> e, PointND p) {
+		return dc.distanceTo (e.t, p);
+	    }
+	};
+	NodeFilter<Entry<T>> ef = new NodeFilter<Entry<T>> () {
+	    public boolean accept (Entry<T> e) {
+		return !e.removed && filter.accept (e.t);
+	    }
+	};
+	for (Level level : levels) {
+	    if (level == null)
+		continue;
+	    for (DistanceResult<Entry<T>> dr :
+		     level.tree.nearestNeighbour (edc, ef, maxHits, p))
+		ret.add (new DistanceResult<T> (dr.get ().t, dr.getDistance ()));
+	}
+	Collections.sort (ret, comp);
+	if (ret.size () > maxHits)
+	    return new ArrayList<DistanceResult<T>> (ret.subList (0, maxHits));
+	return ret;
+    }
+
+    private static final Comparator<DistanceResult<?>> comp =
+	new Comparator<DistanceResult<?>> () {
+	public int compare (DistanceResult<?> d1, DistanceResult<?> d2) {
+	    return Double.compare (d1.getDistance (), d2.getDistance ());
+	}
+    };
+
+    /** An entry in one of the levels. */
+    private static class Entry<T> {
+	private final T t;
+	private boolean removed;
+
+	public Entry (T t) {
+	    this.t = t;
+	}
+    }
+
+    private class EntryConverter implements MBRConverter<Entry<T>> {
+	public int getDimensions () {
+	    return converter.getDimensions ();
+	}
+
+	public double getMin (int axis, Entry<T> e) {
+	    return converter.getMin (axis, e.t);
+	}
+
+	public double getMax (int axis, Entry<T> e) {
+	    return converter.getMax (axis, e.t);
+	}
+    }
+
+    /** A bulk loaded PRTree and its entries. */
+    private class Level {
+	private final PRTree<Entry<T>> tree;
+	private final List<Entry<T>> entries;
+	private int removed;
+
+	public Level (PRTree<Entry<T>> tree, List<Entry<T>> entries) {
+	    this.tree = tree;
+	    this.entries = entries;
+	}
+
+	public List<Entry<T>> getLiveEntries () {
+	    if (removed == 0)
+		return entries;
+	    List<Entry<T>> ret = new ArrayList<Entry<T>> (entries.size ());
+	    for (Entry<T> e : entries)
+		if (!e.removed)
+		    ret.add (e);
+	    return ret;
+	}
+    }
+}
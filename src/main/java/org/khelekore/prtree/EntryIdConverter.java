@@ -0,0 +1,13 @@
+package org.khelekore.prtree;
+
+/** A class that gives the id that is stored in a tree file
+ *  for each entry of a PRTree.
+ * @param <T> the data type stored in the PRTree
+ */
+public interface EntryIdConverter<T> {
+    /** Get the id of the given entry
+     * @param t the entry
+     * @return the id of the entry
+     */
+    long getId (T t);
+}
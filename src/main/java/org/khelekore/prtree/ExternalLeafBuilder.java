@@ -0,0 +1,470 @@
+package org.khelekore.prtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/** Builds one level of a PR-Tree from elements stored in a record file,
+ *  using a bounded amount of memory.
+ *
+ *  <p>The elements are split the same way as LeafBuilder splits them.
+ *  A partition that is too large to fit in memory is handled with
+ *  scans of its file: the priority nodes are found with one bounded
+ *  heap for each key, the split position is found by selecting the
+ *  element with the wanted rank in (key, sequence number) order, and
+ *  the remaining elements are then written to one file for each half.
+ *  A partition that fits in memory is handed to LeafBuilder. Ties are
+ *  broken by sequence number, so the nodes are the same as the nodes
+ *  that LeafBuilder creates for the whole level.
+ */
+class ExternalLeafBuilder {
+    /** The largest sample used to narrow down the split position. */
+    private static final int MAX_SAMPLE_SIZE = 1 << 16;
+
+    private final int dimensions;
+    private final int branchFactor;
+    private final long maxInMemory;
+    private final int maxPairs;
+    private final File tempDir;
+
+    /** Create a new ExternalLeafBuilder.
+     * @param dimensions the number of dimensions
+     * @param branchFactor the maximum number of elements in each node
+     * @param maxInMemory the largest partition that is built in memory
+     * @param maxPairs the largest number of keys that are sorted in memory
+     * @param tempDir the directory for temporary files, null for the
+     *        default temporary directory
+     */
+    public ExternalLeafBuilder (int dimensions, int branchFactor,
+				long maxInMemory, int maxPairs, File tempDir) {
+	this.dimensions = dimensions;
+	this.branchFactor = branchFactor;
+	this.maxInMemory = maxInMemory;
+	this.maxPairs = maxPairs;
+	this.tempDir = tempDir;
+    }
+
+    /** Group the elements of a record file into nodes.
+     * @param input the elements, the sequence numbers must be 0 to count - 1
+     * @param count the number of elements
+     * @return the built level
+     * @throws IOException if reading or writing a file fails
+     */
+    public Level build (File input, long count) throws IOException {
+	Level level = new Level (createTempFile (), createTempFile ());
+	boolean ok = false;
+	try {
+	    level.open (dimensions);
+	    partition (input, false, count, 0, level);
+	    level.close ();
+	    ok = true;
+	} finally {
+	    if (!ok)
+		level.delete ();
+	}
+	return level;
+    }
+
+    private File createTempFile () throws IOException {
+	return File.createTempFile ("prtree", ".tmp", tempDir);
+    }
+
+    private int getKeyPos (int key) {
+	return key < dimensions ? 2 * key : 2 * (key - dimensions) + 1;
+    }
+
+    private void partition (File f, boolean deleteFile, long size, int depth,
+			    Level level) throws IOException {
+	if (size <= maxInMemory) {
+	    buildInMemory (f, (int)size, depth, level);
+	    if (deleteFile)
+		f.delete ();
+	    return;
+	}
+
+	Set<Long> taken = new HashSet<Long> ();
+	long numTaken = 0;
+	for (int i = 0; i < dimensions * 2 && numTaken < size; i++) {
+	    int nodesToGet = (int)Math.min (size - numTaken, branchFactor);
+	    Record[] node = getExtremes (f, getKeyPos (i), nodesToGet, taken);
+	    level.addNode (node);
+	    for (Record r : node)
+		taken.add (r.seq);
+	    numTaken += node.length;
+	}
+
+	long left = size - numTaken;
+	if (left == 0) {
+	    if (deleteFile)
+		f.delete ();
+	    return;
+	}
+	long sizeHigh = left / 2;
+	long sizeLow = left - sizeHigh;
+	int keyPos = getKeyPos (depth % (dimensions * 2));
+	Key split = select (f, keyPos, sizeLow, taken);
+
+	File low = createTempFile ();
+	File high = createTempFile ();
+	RecordFile.Writer lw = new RecordFile.Writer (low, dimensions);
+	RecordFile.Writer hw = new RecordFile.Writer (high, dimensions);
+	RecordFile.Reader r = new RecordFile.Reader (f, dimensions);
+	try {
+	    while (r.next ()) {
+		if (taken.contains (r.getSeq ()))
+		    continue;
+		double[] b = r.getBounds ();
+		RecordFile.Writer w =
+		    split.compare (b[keyPos], r.getSeq ()) >= 0 ? lw : hw;
+		w.write (r.getSeq (), r.getId (), b);
+	    }
+	} finally {
+	    r.close ();
+	    lw.close ();
+	    hw.close ();
+	}
+	if (deleteFile)
+	    f.delete ();
+	taken = null;
+	partition (low, true, sizeLow, depth + 1, level);
+	partition (high, true, sizeHigh, depth + 1, level);
+    }
+
+    /** Get the free elements with the lowest values of a key, sorted.
+     */
+    private Record[] getExtremes (File f, final int keyPos, int num,
+				  Set<Long> taken) throws IOException {
+	// the largest kept element first
+	PriorityQueue<Record> heap =
+	    new PriorityQueue<Record> (num, new Comparator<Record> () {
+		    public int compare (Record r1, Record r2) {
+			return r2.compareTo (r1, keyPos);
+		    }
+		});
+	RecordFile.Reader r = new RecordFile.Reader (f, dimensions);
+	try {
+	    while (r.next ()) {
+		long seq = r.getSeq ();
+		if (taken.contains (seq))
+		    continue;
+		double[] b = r.getBounds ();
+		if (heap.size () == num) {
+		    Record largest = heap.peek ();
+		    if (largest.compare (b[keyPos], seq, keyPos) <= 0)
+			continue;
+		    heap.remove ();
+		}
+		heap.add (new Record (seq, r.getId (), b.clone ()));
+	    }
+	} finally {
+	    r.close ();
+	}
+	Record[] ret = heap.toArray (new Record[heap.size ()]);
+	Arrays.sort (ret, new Comparator<Record> () {
+		public int compare (Record r1, Record r2) {
+		    return r1.compareTo (r2, keyPos);
+		}
+	    });
+	return ret;
+    }
+
+    /** Find the free element with the given rank, counted from 1,
+     *  when the elements are ordered by key and sequence number.
+     *
+     *  <p>Each scan counts the elements in a range and keeps the ones
+     *  in a candidate sub range. When the candidate range holds the
+     *  wanted element and is small enough the element is selected in
+     *  memory, otherwise a new candidate range is picked from a random
+     *  sample of the elements.
+     */
+    private Key select (File f, int keyPos, long rank, Set<Long> taken)
+	throws IOException {
+	Key lo = Key.MIN;
+	Key hi = Key.MAX;
+	Key candLo = lo;
+	Key candHi = hi;
+	int sampleSize = Math.max (1, Math.min (MAX_SAMPLE_SIZE, maxPairs / 2));
+	Random random = new Random (rank);
+	while (true) {
+	    long below = 0;
+	    long inRange = 0;
+	    long seen = 0;
+	    double[] keys = new double[16];
+	    long[] seqs = new long[16];
+	    int numKept = 0;
+	    Key[] sample = new Key[sampleSize];
+	    int numSampled = 0;
+	    RecordFile.Reader r = new RecordFile.Reader (f, dimensions);
+	    try {
+		while (r.next ()) {
+		    long seq = r.getSeq ();
+		    double key = r.getBounds ()[keyPos];
+		    if (lo.compare (key, seq) >= 0 || hi.compare (key, seq) < 0 ||
+			taken.contains (seq))
+			continue;
+		    if (candLo.compare (key, seq) >= 0) {
+			below++;
+			continue;
+		    }
+		    if (candHi.compare (key, seq) < 0)
+			continue;
+		    inRange++;
+		    if (inRange <= maxPairs) {
+			if (numKept == keys.length) {
+			    keys = Arrays.copyOf (keys, numKept * 2);
+			    seqs = Arrays.copyOf (seqs, numKept * 2);
+			}
+			keys[numKept] = key;
+			seqs[numKept] = seq;
+			numKept++;
+		    }
+		    // reservoir sampling of the candidate range
+		    seen++;
+		    if (numSampled < sampleSize) {
+			sample[numSampled++] = new Key (key, seq);
+		    } else {
+			long pos = (long)(random.nextDouble () * seen);
+			if (pos < sampleSize)
+			    sample[(int)pos] = new Key (key, seq);
+		    }
+		}
+	    } finally {
+		r.close ();
+	    }
+
+	    if (rank <= below) {
+		// the wanted element is below the candidate range
+		hi = candLo;
+		candLo = lo;
+		candHi = hi;
+		continue;
+	    }
+	    if (rank > below + inRange) {
+		lo = candHi;
+		rank -= below + inRange;
+		candLo = lo;
+		candHi = hi;
+		continue;
+	    }
+	    lo = candLo;
+	    hi = candHi;
+	    rank -= below;
+	    if (inRange <= maxPairs)
+		return selectInMemory (keys, seqs, numKept, (int)rank);
+
+	    Arrays.sort (sample, 0, numSampled);
+	    long pos = (long)((double)rank / inRange * numSampled);
+	    long margin = Math.max ((long)(4 * Math.sqrt (numSampled)) + 1,
+				    (long)maxPairs * numSampled / inRange / 4);
+	    candLo = pos - margin >= 0 ? sample[(int)(pos - margin)] : lo;
+	    candHi = pos + margin < numSampled ? sample[(int)(pos + margin)] : hi;
+	}
+    }
+
+    private Key selectInMemory (final double[] keys, final long[] seqs,
+				int num, int rank) {
+	Integer[] order = new Integer[num];
+	for (int i = 0; i < num; i++)
+	    order[i] = i;
+	Arrays.sort (order, new Comparator<Integer> () {
+		public int compare (Integer i1, Integer i2) {
+		    int c = Double.compare (keys[i1], keys[i2]);
+		    if (c != 0)
+			return c;
+		    return seqs[i1] < seqs[i2] ? -1 : (seqs[i1] > seqs[i2] ? 1 : 0);
+		}
+	    });
+	int i = order[rank - 1];
+	return new Key (keys[i], seqs[i]);
+    }
+
+    private void buildInMemory (File f, int size, int depth, Level level)
+	throws IOException {
+	if (size == 0)
+	    return;
+	int dims2 = dimensions * 2;
+	long[] seqs = new long[size];
+	long[] ids = new long[size];
+	double[] bounds = new double[size * dims2];
+	RecordFile.Reader r = new RecordFile.Reader (f, dimensions);
+	try {
+	    for (int i = 0; i < size && r.next (); i++) {
+		seqs[i] = r.getSeq ();
+		ids[i] = r.getId ();
+		System.arraycopy (r.getBounds (), 0, bounds, i * dims2, dims2);
+	    }
+	} finally {
+	    r.close ();
+	}
+
+	// LeafBuilder breaks ties by index so use sequence number order
+	double[] seqKey = new double[size];
+	for (int i = 0; i < size; i++)
+	    seqKey[i] = seqs[i];
+	int[] bySeq = IndexSorter.sort (seqKey, false);
+	double[][] keys = new double[dims2][size];
+	for (int i = 0; i < size; i++) {
+	    int e = bySeq[i];
+	    for (int j = 0; j < dimensions; j++) {
+		keys[j][i] = bounds[e * dims2 + 2 * j];
+		keys[dimensions + j][i] = bounds[e * dims2 + 2 * j + 1];
+	    }
+	}
+	NodeGroups g = new LeafBuilder (dimensions, branchFactor).buildLeafs (keys, depth);
+	Record[] node = new Record[branchFactor];
+	for (int n = 0; n < g.size (); n++) {
+	    int num = 0;
+	    for (int j = g.getStart (n), e = g.getStart (n + 1); j < e; j++) {
+		int p = bySeq[g.getElement (j)];
+		node[num++] =
+		    new Record (seqs[p], ids[p],
+				Arrays.copyOfRange (bounds, p * dims2,
+						    (p + 1) * dims2));
+	    }
+	    level.addNode (Arrays.copyOf (node, num));
+	}
+    }
+
+    /** A position in (key, sequence number) order. */
+    private static class Key implements Comparable<Key> {
+	public static final Key MIN =
+	    new Key (Double.NEGATIVE_INFINITY, Long.MIN_VALUE);
+	public static final Key MAX =
+	    new Key (Double.POSITIVE_INFINITY, Long.MAX_VALUE);
+
+	private final double key;
+	private final long seq;
+
+	public Key (double key, long seq) {
+	    this.key = key;
+	    this.seq = seq;
+	}
+
+	/** Compare this key with an element.
+	 * @return a negative value if this key is before the element
+	 */
+	public int compare (double key, long seq) {
+	    int c = Double.compare (this.key, key);
+	    if (c != 0)
+		return c;
+	    return this.seq < seq ? -1 : (this.seq > seq ? 1 : 0);
+	}
+
+	public int compareTo (Key k) {
+	    return compare (k.key, k.seq);
+	}
+    }
+
+    /** An element that is kept in memory. */
+    private static class Record {
+	private final long seq;
+	private final long id;
+	private final double[] bounds;
+
+	public Record (long seq, long id, double[] bounds) {
+	    this.seq = seq;
+	    this.id = id;
+	    this.bounds = bounds;
+	}
+
+	public int compare (double key, long seq, int keyPos) {
+	    int c = Double.compare (bounds[keyPos], key);
+	    if (c != 0)
+		return c;
+	    return this.seq < seq ? -1 : (this.seq > seq ? 1 : 0);
+	}
+
+	public int compareTo (Record r, int keyPos) {
+	    return compare (r.bounds[keyPos], r.seq, keyPos);
+	}
+    }
+
+    /** A level built on disk.
+     *
+     *  <p>The groups file holds the elements of every node, node by
+     *  node. The next file holds one record for each node, with the
+     *  node index as sequence number and id and the union of the
+     *  bounds of the elements of the node.
+     */
+    public static class Level {
+	private final File groups;
+	private final File next;
+	private RecordFile.Writer groupWriter;
+	private RecordFile.Writer nextWriter;
+	private int[] groupStart = new int[1024];
+	private int numGroups;
+	private double[] union;
+
+	public Level (File groups, File next) {
+	    this.groups = groups;
+	    this.next = next;
+	}
+
+	private void open (int dimensions) throws IOException {
+	    groupWriter = new RecordFile.Writer (groups, dimensions);
+	    nextWriter = new RecordFile.Writer (next, dimensions);
+	    union = new double[dimensions * 2];
+	}
+
+	private void addNode (Record[] node) throws IOException {
+	    for (int i = 0; i < union.length; i += 2) {
+		union[i] = Double.POSITIVE_INFINITY;
+		union[i + 1] = Double.NEGATIVE_INFINITY;
+	    }
+	    for (Record r : node) {
+		groupWriter.write (r.seq, r.id, r.bounds);
+		for (int i = 0; i < union.length; i += 2) {
+		    union[i] = Math.min (union[i], r.bounds[i]);
+		    union[i + 1] = Math.max (union[i + 1], r.bounds[i + 1]);
+		}
+	    }
+	    nextWriter.write (numGroups, numGroups, union);
+	    if (numGroups + 1 == groupStart.length)
+		groupStart = Arrays.copyOf (groupStart, groupStart.length * 2);
+	    groupStart[numGroups + 1] = groupStart[numGroups] + node.length;
+	    numGroups++;
+	}
+
+	private void close () throws IOException {
+	    try {
+		groupWriter.close ();
+	    } finally {
+		nextWriter.close ();
+	    }
+	    groupStart = Arrays.copyOf (groupStart, numGroups + 1);
+	}
+
+	/** Get the file that holds the elements of the nodes. */
+	public File getGroups () {
+	    return groups;
+	}
+
+	/** Get the file that holds the bounds of the nodes. */
+	public File getNext () {
+	    return next;
+	}
+
+	public int getNumGroups () {
+	    return numGroups;
+	}
+
+	/** Get the position of the first element of each node in the
+	 *  groups file, with one extra entry that holds the number of
+	 *  elements.
+	 */
+	public int[] getGroupStart () {
+	    return groupStart;
+	}
+
+	/** Remove the files of this level. */
+	public void delete () {
+	    groups.delete ();
+	    next.delete ();
+	}
+    }
+}
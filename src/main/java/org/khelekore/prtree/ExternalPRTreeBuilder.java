@@ -0,0 +1,342 @@
+package org.khelekore.prtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/** Builds a tree file for data sets that are too large to load into
+ *  a PRTree in memory.
+ *
+ *  <p>The entries are streamed once from an iterator into a temporary
+ *  file and the levels of the tree are then built from temporary files,
+ *  holding at most about the memory budget of element data on the
+ *  heap. The levels that fit in the budget are built in memory. The
+ *  nodes are written straight to the output file, which has the format
+ *  written by {@link PRTree#write(File, EntryIdConverter)} and is
+ *  opened with {@link MappedPRTree#open(File)}. The file is the same
+ *  as the file written by a PRTree, with cached entry bounds, that was
+ *  loaded with the same entries in the same order.
+ *
+ *  <p>Apart from the budget the build keeps the number of elements of
+ *  each node on disk, about 4 bytes for every branchFactor entries.
+ *  The temporary files use about 2 * (16 + 16 * dimensions) bytes for
+ *  each entry.
+ *
+ * @param <T> the data type of the entries
+ */
+public class ExternalPRTreeBuilder<T> {
+    /** The default memory budget, 64 MB. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private final MBRConverter<T> converter;
+    private final EntryIdConverter<? super T> ids;
+    private final int branchFactor;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private File tempDir;
+
+    /** Create a new ExternalPRTreeBuilder.
+     * @param converter the MBRConverter to use for the entries
+     * @param ids the converter that gives the id to store for each entry
+     * @param branchFactor the number of child nodes for each internal node.
+     */
+    public ExternalPRTreeBuilder (MBRConverter<T> converter,
+				  EntryIdConverter<? super T> ids,
+				  int branchFactor) {
+	this.converter = converter;
+	this.ids = ids;
+	this.branchFactor = branchFactor;
+    }
+
+    /** Set the number of bytes of element data the build may hold in
+     *  memory.
+     * @param bytes the memory budget
+     * @throws IllegalArgumentException if bytes is not positive
+     */
+    public void setMemoryBudget (long bytes) {
+	if (bytes <= 0)
+	    throw new IllegalArgumentException ("memory budget must be positive: " +
+						bytes);
+	memoryBudget = bytes;
+    }
+
+    /** Set the directory for the temporary files.
+     * @param dir the directory, null to use the default temporary directory
+     */
+    public void setTempDirectory (File dir) {
+	tempDir = dir;
+    }
+
+    /** Build a tree file from the given entries.
+     * @param data the entries to store in the tree
+     * @param output the tree file to write, any existing file is replaced
+     * @throws IOException if reading or writing a file fails
+     * @throws IllegalArgumentException if there are more than
+     *         Integer.MAX_VALUE entries
+     */
+    public void build (Iterator<? extends T> data, File output)
+	throws IOException {
+	int dims = converter.getDimensions ();
+	// keys, bounds, sequence numbers, ids and LeafBuilder state
+	long bytesPerElement = 48 + 40 * dims;
+	long maxInMemory = Math.max (memoryBudget / bytesPerElement,
+				     2L * dims * branchFactor);
+	int maxPairs = (int)Math.min (Integer.MAX_VALUE,
+				      Math.max (memoryBudget / 64, 1024));
+	ExternalLeafBuilder elb =
+	    new ExternalLeafBuilder (dims, branchFactor, maxInMemory,
+				     maxPairs, tempDir);
+
+	File input = File.createTempFile ("prtree", ".tmp", tempDir);
+	List<ExternalLeafBuilder.Level> levels =
+	    new ArrayList<ExternalLeafBuilder.Level> ();
+	try {
+	    long count = writeEntries (data, input, dims);
+	    if (count > Integer.MAX_VALUE)
+		throw new IllegalArgumentException ("Too many entries: " + count);
+	    while (count > maxInMemory) {
+		ExternalLeafBuilder.Level level = elb.build (input, count);
+		levels.add (level);
+		input.delete ();
+		input = level.getNext ();
+		count = level.getNumGroups ();
+		if (count <= branchFactor)
+		    break;
+	    }
+	    if (levels.isEmpty ())
+		writeInMemory (input, (int)count, dims, output);
+	    else
+		writeLevels (levels, input, (int)count, dims, output);
+	} finally {
+	    input.delete ();
+	    for (ExternalLeafBuilder.Level level : levels)
+		level.delete ();
+	}
+    }
+
+    private long writeEntries (Iterator<? extends T> data, File f, int dims)
+	throws IOException {
+	double[] bounds = new double[dims * 2];
+	RecordFile.Writer w = new RecordFile.Writer (f, dims);
+	try {
+	    long seq = 0;
+	    while (data.hasNext ()) {
+		T t = data.next ();
+		for (int i = 0; i < dims; i++) {
+		    bounds[2 * i] = converter.getMin (i, t);
+		    bounds[2 * i + 1] = converter.getMax (i, t);
+		}
+		w.write (seq, ids.getId (t), bounds);
+		seq++;
+	    }
+	} finally {
+	    w.close ();
+	}
+	return w.getCount ();
+    }
+
+    /** The elements of a record file, in sequence number order. */
+    private static class Elements {
+	private final long[] ids;
+	private final double[] bounds;
+	private final double[][] keys;
+
+	public Elements (File f, int count, int dims) throws IOException {
+	    ids = new long[count];
+	    bounds = new double[count * dims * 2];
+	    keys = new double[dims * 2][count];
+	    RecordFile.Reader r = new RecordFile.Reader (f, dims);
+	    try {
+		for (int i = 0; i < count && r.next (); i++) {
+		    ids[i] = r.getId ();
+		    double[] b = r.getBounds ();
+		    System.arraycopy (b, 0, bounds, i * dims * 2, dims * 2);
+		    for (int j = 0; j < dims; j++) {
+			keys[j][i] = b[2 * j];
+			keys[dims + j][i] = b[2 * j + 1];
+		    }
+		}
+	    } finally {
+		r.close ();
+	    }
+	}
+    }
+
+    private void writeInMemory (File input, int count, int dims, File output)
+	throws IOException {
+	Elements e = new Elements (input, count, dims);
+	TreeBuilder tb = new TreeBuilder (dims, branchFactor,
+					  new LeafBuilder (dims, branchFactor),
+					  true);
+	FlatTree ft = tb.build (e.keys);
+	int[] order = tb.getEntryOrder ();
+	int height = ft.getHeight ();
+	int[] numNodes = new int[height];
+	for (int level = 0; level < height; level++)
+	    numNodes[level] = ft.getNumNodes (level);
+	TreeFileWriter w = new TreeFileWriter (output);
+	try {
+	    w.writeHeader (dims, count, numNodes);
+	    writeTop (w, ft);
+	    w.writeDoubles (ft.getEntryBounds ());
+	    for (int i : order)
+		w.writeLong (e.ids[i]);
+	} finally {
+	    w.close ();
+	}
+    }
+
+    private void writeTop (TreeFileWriter w, FlatTree ft) throws IOException {
+	for (int level = 0; level < ft.getHeight (); level++) {
+	    w.writeInts (ft.getChildren (level));
+	    w.endSection ();
+	    w.writeDoubles (ft.getBounds (level));
+	}
+    }
+
+    /** Write a tree where the lower levels were built on disk.
+     * @param levels the disk levels, bottom up
+     * @param top the nodes of the highest disk level
+     * @param count the number of nodes in the highest disk level
+     */
+    private void writeLevels (List<ExternalLeafBuilder.Level> levels,
+			      File top, int count, int dims, File output)
+	throws IOException {
+	int dims2 = dims * 2;
+	Elements e = new Elements (top, count, dims);
+	// the levels above the disk levels and the order of the top nodes
+	FlatTree ft = null;
+	int[] order;
+	if (count == 1) {
+	    order = new int[] {0};
+	} else if (count <= branchFactor) {
+	    // a root that holds all the top nodes, like TreeBuilder adds
+	    order = new int[count];
+	    double[] rootBounds = new double[dims2];
+	    for (int i = 0; i < dims; i++) {
+		rootBounds[2 * i] = Double.POSITIVE_INFINITY;
+		rootBounds[2 * i + 1] = Double.NEGATIVE_INFINITY;
+	    }
+	    for (int i = 0; i < count; i++) {
+		order[i] = i;
+		for (int j = 0; j < dims; j++) {
+		    rootBounds[2 * j] = Math.min (rootBounds[2 * j],
+						  e.bounds[i * dims2 + 2 * j]);
+		    rootBounds[2 * j + 1] =
+			Math.max (rootBounds[2 * j + 1],
+				  e.bounds[i * dims2 + 2 * j + 1]);
+		}
+	    }
+	    ft = new FlatTree (dims, new double[][] {rootBounds},
+			       new int[][] {{0, count}}, null);
+	} else {
+	    TreeBuilder tb =
+		new TreeBuilder (dims, branchFactor,
+				 new LeafBuilder (dims, branchFactor), false);
+	    ft = tb.build (e.keys);
+	    order = tb.getEntryOrder ();
+	}
+
+	int topHeight = ft == null ? 0 : ft.getHeight ();
+	int numLevels = levels.size ();
+	int[] numNodes = new int[topHeight + numLevels];
+	for (int level = 0; level < topHeight; level++)
+	    numNodes[level] = ft.getNumNodes (level);
+	for (int i = 0; i < numLevels; i++)
+	    numNodes[topHeight + i] =
+		levels.get (numLevels - 1 - i).getNumGroups ();
+	int numEntries = levels.get (0).getGroupStart ()[levels.get (0).getNumGroups ()];
+
+	TreeFileWriter w = new TreeFileWriter (output);
+	try {
+	    w.writeHeader (dims, numEntries, numNodes);
+	    if (ft != null)
+		writeTop (w, ft);
+	    // the order of the nodes of the level above the current level
+	    int[] above = null;
+	    for (int k = numLevels - 1; k >= 0; k--) {
+		ExternalLeafBuilder.Level level = levels.get (k);
+		int[] groupStart = level.getGroupStart ();
+		int pos = 0;
+		for (int node : order) {
+		    w.writeInt (pos);
+		    pos += groupStart[node + 1] - groupStart[node];
+		}
+		w.writeInt (pos);
+		w.endSection ();
+		if (k == numLevels - 1) {
+		    for (int node : order)
+			for (int j = 0; j < dims2; j++)
+			    w.writeDouble (e.bounds[node * dims2 + j]);
+		    e = null;
+		} else {
+		    copyMembers (levels.get (k + 1), above, dims, w, null);
+		}
+		// the nodes of level k are the elements of the nodes above
+		if (k > 0) {
+		    int[] next = new int[groupStart[groupStart.length - 1]];
+		    copyMembers (level, order, dims, null, next);
+		    above = order;
+		    order = next;
+		}
+	    }
+	    ExternalLeafBuilder.Level leafs = levels.get (0);
+	    copyMembers (leafs, order, dims, w, null);
+	    copyIds (leafs, order, dims, w);
+	} finally {
+	    w.close ();
+	}
+    }
+
+    /** Read the elements of the given nodes, in order, and either
+     *  write their bounds or store their ids.
+     */
+    private void copyMembers (ExternalLeafBuilder.Level level, int[] order,
+			      int dims, TreeFileWriter w, int[] ids)
+	throws IOException {
+	int dims2 = dims * 2;
+	int[] groupStart = level.getGroupStart ();
+	RecordFile.RangeReader r =
+	    new RecordFile.RangeReader (level.getGroups (), dims, branchFactor);
+	try {
+	    int pos = 0;
+	    for (int node : order) {
+		int start = groupStart[node];
+		int size = groupStart[node + 1] - start;
+		r.read (start, size);
+		if (w != null) {
+		    double[] b = r.getBounds ();
+		    for (int i = 0, e = size * dims2; i < e; i++)
+			w.writeDouble (b[i]);
+		}
+		if (ids != null) {
+		    long[] memberIds = r.getIds ();
+		    for (int i = 0; i < size; i++)
+			ids[pos++] = (int)memberIds[i];
+		}
+	    }
+	} finally {
+	    r.close ();
+	}
+    }
+
+    private void copyIds (ExternalLeafBuilder.Level level, int[] order,
+			  int dims, TreeFileWriter w) throws IOException {
+	int[] groupStart = level.getGroupStart ();
+	RecordFile.RangeReader r =
+	    new RecordFile.RangeReader (level.getGroups (), dims, branchFactor);
+	try {
+	    for (int node : order) {
+		int start = groupStart[node];
+		int size = groupStart[node + 1] - start;
+		r.read (start, size);
+		long[] memberIds = r.getIds ();
+		for (int i = 0; i < size; i++)
+		    w.writeLong (memberIds[i]);
+	    }
+	} finally {
+	    r.close ();
+	}
+    }
+}
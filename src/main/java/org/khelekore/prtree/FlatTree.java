@@ -0,0 +1,634 @@
+package org.khelekore.prtree;
+
+/** The nodes of a bulk loaded tree, stored level by level in
+ *  primitive arrays.
+ *
+ *  <p>Level 0 holds the root node and the last level holds the leaf
+ *  nodes. The bounds of the nodes in a level are stored in one double
+ *  array, each node uses 2 * dimensions values laid out as min, max,
+ *  min, max... (the same layout as SimpleMBR uses). The children of a
+ *  node are stored next to each other in the level below, so node i
+ *  in a level has the children getChildren (level)[i] to
+ *  getChildren (level)[i + 1] - 1. The children of the leaf nodes are
+ *  the entries of the tree, stored in the same order.
+ *
+ *  <p>Since the children of a node are stored together all the
+ *  entries below a node are also stored together, node i in a level
+ *  holds the entries getEntryStart (level)[i] to
+ *  getEntryStart (level)[i + 1] - 1.
+ *
+ *  <p>The bounds of the entries may also be stored, in the same layout
+ *  as the node bounds and in entry order.
+ *
+ *  <p>A tree can also store its bounds as floats, see
+ *  {@link #toFloatBounds}. The float bounds are rounded outwards so a
+ *  float box always contains the box it was made from. Such a tree
+ *  returns null from getBounds and getEntryBounds, the instance
+ *  methods that test a node work with both kinds of bounds.
+ */
+class FlatTree {
+    private final int dimensions;
+    private final double[][] bounds;
+    private final float[][] floatBounds;
+    private final int[][] children;
+    private final int[][] entryStart;
+    private final double[] entryBounds;
+    private final float[] floatEntryBounds;
+
+    /** Create a new FlatTree.
+     * @param dimensions the number of dimensions
+     * @param bounds the node bounds for each level
+     * @param children the child start positions for each level,
+     *        with one extra entry that holds the number of children
+     *        in the level below.
+     * @param entryBounds the bounds of the entries, may be null
+     */
+    public FlatTree (int dimensions, double[][] bounds, int[][] children,
+		     double[] entryBounds) {
+	this.dimensions = dimensions;
+	this.bounds = bounds;
+	this.children = children;
+	this.entryBounds = entryBounds;
+	floatBounds = new float[bounds.length][];
+	floatEntryBounds = null;
+	entryStart = getEntryStart (children);
+    }
+
+    private FlatTree (FlatTree tree, float[][] floatBounds,
+		      float[] floatEntryBounds) {
+	dimensions = tree.dimensions;
+	bounds = new double[floatBounds.length][];
+	this.floatBounds = floatBounds;
+	children = tree.children;
+	entryStart = tree.entryStart;
+	entryBounds = null;
+	this.floatEntryBounds = floatEntryBounds;
+    }
+
+    private static int[][] getEntryStart (int[][] children) {
+	int height = children.length;
+	int[][] entryStart = new int[height][];
+	entryStart[height - 1] = children[height - 1];
+	for (int level = height - 2; level >= 0; level--) {
+	    int[] c = children[level];
+	    int[] below = entryStart[level + 1];
+	    int[] es = new int[c.length];
+	    for (int i = 0; i < c.length; i++)
+		es[i] = below[c[i]];
+	    entryStart[level] = es;
+	}
+	return entryStart;
+    }
+
+    /** Create a copy of this tree that stores its node bounds, and its
+     *  entry bounds if this tree has them, as floats. Each min value is
+     *  rounded down and each max value is rounded up, so a node or
+     *  entry that intersects a query in this tree also intersects it in
+     *  the copy.
+     * @return a new tree, the child arrays are shared with this tree
+     */
+    public FlatTree toFloatBounds () {
+	float[][] fb = new float[bounds.length][];
+	for (int level = 0; level < bounds.length; level++)
+	    fb[level] = toFloats (bounds[level]);
+	float[] feb = entryBounds != null ? toFloats (entryBounds) : null;
+	return new FlatTree (this, fb, feb);
+    }
+
+    private static float[] toFloats (double[] values) {
+	float[] ret = new float[values.length];
+	for (int i = 0; i < values.length; i += 2) {
+	    ret[i] = roundDown (values[i]);
+	    ret[i + 1] = roundUp (values[i + 1]);
+	}
+	return ret;
+    }
+
+    /** Get the largest float that is not larger than the given value. */
+    static float roundDown (double d) {
+	float f = (float)d;
+	return f > d ? Math.nextDown (f) : f;
+    }
+
+    /** Get the smallest float that is not smaller than the given value. */
+    static float roundUp (double d) {
+	float f = (float)d;
+	return f < d ? Math.nextUp (f) : f;
+    }
+
+    /** Check if this tree stores its bounds as floats.
+     * @return true if the bounds are stored as floats
+     */
+    public boolean hasFloatBounds () {
+	return floatBounds[0] != null;
+    }
+
+    public int getDimensions () {
+	return dimensions;
+    }
+
+    /** Get the number of levels in this tree.
+     * @return the height of the tree
+     */
+    public int getHeight () {
+	return children.length;
+    }
+
+    /** Get the level that holds the leaf nodes.
+     * @return the leaf level
+     */
+    public int getLeafLevel () {
+	return children.length - 1;
+    }
+
+    /** Get the number of nodes in the given level.
+     * @param level the level to check
+     * @return the number of nodes
+     */
+    public int getNumNodes (int level) {
+	return children[level].length - 1;
+    }
+
+    /** Get the number of entries in this tree.
+     * @return the number of entries
+     */
+    public int getNumEntries () {
+	int[] leafChildren = children[getLeafLevel ()];
+	return leafChildren[leafChildren.length - 1];
+    }
+
+    /** Get the bounds of all the nodes in the given level.
+     * @param level the level
+     * @return the bounds, or null if the bounds are stored as floats,
+     *         the caller must not modify the array
+     */
+    public double[] getBounds (int level) {
+	return bounds[level];
+    }
+
+    /** Get the float bounds of all the nodes in the given level.
+     * @param level the level
+     * @return the bounds, or null if the bounds are stored as doubles,
+     *         the caller must not modify the array
+     */
+    public float[] getFloatBounds (int level) {
+	return floatBounds[level];
+    }
+
+    /** Get the child start positions of all the nodes in the given level.
+     * @param level the level
+     * @return the start positions, the caller must not modify the array
+     */
+    public int[] getChildren (int level) {
+	return children[level];
+    }
+
+    /** Get the position of the first entry below each node in the
+     *  given level.
+     * @param level the level
+     * @return the entry start positions, with one extra entry that holds
+     *         the number of entries, the caller must not modify the array
+     */
+    public int[] getEntryStart (int level) {
+	return entryStart[level];
+    }
+
+    /** Get the bounds of the entries.
+     * @return the bounds, or null if the entry bounds are not stored,
+     *         the caller must not modify the array
+     */
+    public double[] getEntryBounds () {
+	return entryBounds;
+    }
+
+    /** Get the float bounds of the entries.
+     * @return the bounds, or null if the entry bounds are not stored
+     *         as floats, the caller must not modify the array
+     */
+    public float[] getFloatEntryBounds () {
+	return floatEntryBounds;
+    }
+
+    /** Get the MBR of a node.
+     * @param level the level of the node
+     * @param node the index of the node in the level
+     * @return a new MBR
+     */
+    public MBR getMBR (int level, int node) {
+	int size = 2 * dimensions;
+	double[] values = new double[size];
+	copyBounds (level, node, values, 0);
+	return new SimpleMBR (values);
+    }
+
+    /** Copy the bounds of a node into an array.
+     * @param level the level of the node
+     * @param node the node
+     * @param dest the array to copy the 2 * dimensions values to
+     * @param destPos the position of the first value in dest
+     */
+    public void copyBounds (int level, int node, double[] dest, int destPos) {
+	int size = 2 * dimensions;
+	double[] b = bounds[level];
+	if (b != null) {
+	    System.arraycopy (b, node * size, dest, destPos, size);
+	} else {
+	    float[] fb = floatBounds[level];
+	    for (int i = 0; i < size; i++)
+		dest[destPos + i] = fb[node * size + i];
+	}
+    }
+
+    /** Check if a node intersects the query.
+     * @param level the level of the node
+     * @param node the node to check
+     * @param query the query, laid out as min, max, min, max...
+     * @return true if the node intersects the query
+     */
+    public boolean intersects (int level, int node, double[] query) {
+	double[] b = bounds[level];
+	return b != null ? intersects (b, node, query) :
+	    intersects (floatBounds[level], node, query);
+    }
+
+    /** Check if a node intersects one of many packed queries.
+     * @param level the level of the node
+     * @param node the node to check
+     * @param queries the packed queries
+     * @param query the index of the query to test
+     * @return true if the node intersects the query
+     */
+    public boolean intersects (int level, int node, double[] queries,
+			       int query) {
+	double[] b = bounds[level];
+	return b != null ? intersects (b, node, queries, query, dimensions) :
+	    intersects (floatBounds[level], node, queries, query, dimensions);
+    }
+
+    /** Check if a node intersects the query.
+     * @param level the level of the node
+     * @param node the node to check
+     * @param query the query
+     * @return true if the node intersects the query
+     */
+    public boolean intersects (int level, int node, MBR query) {
+	double[] b = bounds[level];
+	return b != null ? intersects (b, node, dimensions, query) :
+	    intersects (floatBounds[level], node, dimensions, query);
+    }
+
+    /** Check if a node is fully inside the query.
+     * @param level the level of the node
+     * @param node the node to check
+     * @param query the query
+     * @return true if the query contains the node
+     */
+    public boolean isContainedIn (int level, int node, MBR query) {
+	double[] b = bounds[level];
+	return b != null ? isContainedIn (b, node, dimensions, query) :
+	    isContainedIn (floatBounds[level], node, dimensions, query);
+    }
+
+    /** Check if a node fully contains the query.
+     * @param level the level of the node
+     * @param node the node to check
+     * @param query the query
+     * @return true if the node contains the query
+     */
+    public boolean contains (int level, int node, MBR query) {
+	double[] b = bounds[level];
+	return b != null ? contains (b, node, dimensions, query) :
+	    contains (floatBounds[level], node, dimensions, query);
+    }
+
+    /** Calculate the smallest distance between a node and a box.
+     * @param level the level of the node
+     * @param node the node
+     * @param box the box
+     * @return the squared distance
+     */
+    public double getMinDist (int level, int node, MBR box) {
+	double[] b = bounds[level];
+	return b != null ? getMinDist (b, node, dimensions, box) :
+	    getMinDist (floatBounds[level], node, dimensions, box);
+    }
+
+    /** Calculate the largest distance between a point in a node and
+     *  the closest point of a box.
+     * @param level the level of the node
+     * @param node the node
+     * @param box the box
+     * @return the squared distance
+     */
+    public double getMaxDist (int level, int node, MBR box) {
+	int size = 2 * dimensions;
+	double[] b = bounds[level];
+	float[] fb = floatBounds[level];
+	double res = 0;
+	for (int i = 0; i < dimensions; i++) {
+	    int o = node * size + 2 * i;
+	    double min = b != null ? b[o] : fb[o];
+	    double max = b != null ? b[o + 1] : fb[o + 1];
+	    double d = Math.max (getDist (min, box.getMin (i), box.getMax (i)),
+				 getDist (max, box.getMin (i), box.getMax (i)));
+	    res += d * d;
+	}
+	return res;
+    }
+
+    /** Get the distance from a value to a range. */
+    private static double getDist (double v, double min, double max) {
+	if (v < min)
+	    return min - v;
+	if (v > max)
+	    return v - max;
+	return 0;
+    }
+
+    /** Calculate the MINDIST between a node and a point.
+     * @param level the level of the node
+     * @param node the node
+     * @param p the ordinates of the point
+     * @return the squared distance
+     */
+    public double getMinDist (int level, int node, double[] p) {
+	double[] b = bounds[level];
+	return b != null ? getMinDist (b, node, p) :
+	    getMinDist (floatBounds[level], node, p);
+    }
+
+    /** Check if a node intersects the query.
+     * @param bounds the bounds of the level
+     * @param node the node to check
+     * @param query the query, laid out as min, max, min, max...
+     * @return true if the node intersects the query
+     */
+    public static boolean intersects (double[] bounds, int node,
+				      double[] query) {
+	int dims2 = query.length;
+	int offset = node * dims2;
+	for (int i = 0; i < dims2; i += 2) {
+	    if (query[i + 1] < bounds[offset + i] ||
+		query[i] > bounds[offset + i + 1])
+		return false;
+	}
+	return true;
+    }
+
+    /** Check if two boxes stored in packed bounds arrays intersect.
+     * @param bounds1 the first bounds array
+     * @param box1 the index of the box in the first array
+     * @param bounds2 the second bounds array
+     * @param box2 the index of the box in the second array
+     * @param dims the number of dimensions
+     * @return true if the boxes intersect
+     */
+    public static boolean intersects (double[] bounds1, int box1,
+				      double[] bounds2, int box2, int dims) {
+	int o1 = box1 * dims * 2;
+	int o2 = box2 * dims * 2;
+	for (int i = 0; i < dims * 2; i += 2) {
+	    if (bounds2[o2 + i + 1] < bounds1[o1 + i] ||
+		bounds2[o2 + i] > bounds1[o1 + i + 1])
+		return false;
+	}
+	return true;
+    }
+
+    /** Check if a node intersects the query.
+     * @param bounds the bounds of the level
+     * @param node the node to check
+     * @param dims the number of dimensions of the tree
+     * @param query the query
+     * @return true if the node intersects the query
+     */
+    public static boolean intersects (double[] bounds, int node, int dims,
+				      MBR query) {
+	int offset = node * dims * 2;
+	for (int i = 0; i < dims; i++) {
+	    if (query.getMax (i) < bounds[offset + 2 * i] ||
+		query.getMin (i) > bounds[offset + 2 * i + 1])
+		return false;
+	}
+	return true;
+    }
+
+    /** Check if a node is fully inside the query.
+     * @param bounds the bounds of the level
+     * @param node the node to check
+     * @param dims the number of dimensions of the tree
+     * @param query the query
+     * @return true if the query contains the node
+     */
+    public static boolean isContainedIn (double[] bounds, int node, int dims,
+					 MBR query) {
+	int offset = node * dims * 2;
+	for (int i = 0; i < dims; i++) {
+	    if (bounds[offset + 2 * i] < query.getMin (i) ||
+		bounds[offset + 2 * i + 1] > query.getMax (i))
+		return false;
+	}
+	return true;
+    }
+
+    /** Check if a node fully contains the query.
+     * @param bounds the bounds of the level
+     * @param node the node to check
+     * @param dims the number of dimensions of the tree
+     * @param query the query
+     * @return true if the node contains the query
+     */
+    public static boolean contains (double[] bounds, int node, int dims,
+				    MBR query) {
+	int offset = node * dims * 2;
+	for (int i = 0; i < dims; i++) {
+	    if (bounds[offset + 2 * i] > query.getMin (i) ||
+		bounds[offset + 2 * i + 1] < query.getMax (i))
+		return false;
+	}
+	return true;
+    }
+
+    /** Calculate the MINDIST between a node and a point.
+     * @param bounds the bounds of the level
+     * @param node the node
+     * @param p the ordinates of the point
+     * @return the squared distance
+     */
+    public static double getMinDist (double[] bounds, int node, double[] p) {
+	int offset = node * p.length * 2;
+	double res = 0;
+	for (int i = 0; i < p.length; i++) {
+	    double o = p[i];
+	    double min = bounds[offset + 2 * i];
+	    double max = bounds[offset + 2 * i + 1];
+	    double dr = 0;
+	    if (o < min)
+		dr = min - o;
+	    else if (o > max)
+		dr = o - max;
+	    res += dr * dr;
+	}
+	return res;
+    }
+
+    /** Calculate the smallest distance between a node and a box.
+     * @param bounds the bounds of the level
+     * @param node the node
+     * @param dims the number of dimensions of the tree
+     * @param box the box
+     * @return the squared distance
+     */
+    public static double getMinDist (double[] bounds, int node, int dims,
+				     MBR box) {
+	int offset = node * dims * 2;
+	double res = 0;
+	for (int i = 0; i < dims; i++) {
+	    double dr = 0;
+	    if (box.getMax (i) < bounds[offset + 2 * i])
+		dr = bounds[offset + 2 * i] - box.getMax (i);
+	    else if (box.getMin (i) > bounds[offset + 2 * i + 1])
+		dr = box.getMin (i) - bounds[offset + 2 * i + 1];
+	    res += dr * dr;
+	}
+	return res;
+    }
+
+    /** Check if a node intersects the query.
+     * @param bounds the float bounds of the level
+     * @param node the node to check
+     * @param query the query, laid out as min, max, min, max...
+     * @return true if the node intersects the query
+     */
+    public static boolean intersects (float[] bounds, int node,
+				      double[] query) {
+	int dims2 = query.length;
+	int offset = node * dims2;
+	for (int i = 0; i < dims2; i += 2) {
+	    if (query[i + 1] < bounds[offset + i] ||
+		query[i] > bounds[offset + i + 1])
+		return false;
+	}
+	return true;
+    }
+
+    /** Check if a box with float bounds intersects a box stored in a
+     *  packed double array.
+     * @param bounds1 the float bounds
+     * @param box1 the index of the box in the float bounds
+     * @param bounds2 the double bounds
+     * @param box2 the index of the box in the double bounds
+     * @param dims the number of dimensions
+     * @return true if the boxes intersect
+     */
+    public static boolean intersects (float[] bounds1, int box1,
+				      double[] bounds2, int box2, int dims) {
+	int o1 = box1 * dims * 2;
+	int o2 = box2 * dims * 2;
+	for (int i = 0; i < dims * 2; i += 2) {
+	    if (bounds2[o2 + i + 1] < bounds1[o1 + i] ||
+		bounds2[o2 + i] > bounds1[o1 + i + 1])
+		return false;
+	}
+	return true;
+    }
+
+    /** Check if a node intersects the query.
+     * @param bounds the float bounds of the level
+     * @param node the node to check
+     * @param dims the number of dimensions of the tree
+     * @param query the query
+     * @return true if the node intersects the query
+     */
+    public static boolean intersects (float[] bounds, int node, int dims,
+				      MBR query) {
+	int offset = node * dims * 2;
+	for (int i = 0; i < dims; i++) {
+	    if (query.getMax (i) < bounds[offset + 2 * i] ||
+		query.getMin (i) > bounds[offset + 2 * i + 1])
+		return false;
+	}
+	return true;
+    }
+
+    /** Check if a node is fully inside the query.
+     * @param bounds the float bounds of the level
+     * @param node the node to check
+     * @param dims the number of dimensions of the tree
+     * @param query the query
+     * @return true if the query contains the node
+     */
+    public static boolean isContainedIn (float[] bounds, int node, int dims,
+					 MBR query) {
+	int offset = node * dims * 2;
+	for (int i = 0; i < dims; i++) {
+	    if (bounds[offset + 2 * i] < query.getMin (i) ||
+		bounds[offset + 2 * i + 1] > query.getMax (i))
+		return false;
+	}
+	return true;
+    }
+
+    /** Check if a node fully contains the query.
+     * @param bounds the float bounds of the level
+     * @param node the node to check
+     * @param dims the number of dimensions of the tree
+     * @param query the query
+     * @return true if the node contains the query
+     */
+    public static boolean contains (float[] bounds, int node, int dims,
+				    MBR query) {
+	int offset = node * dims * 2;
+	for (int i = 0; i < dims; i++) {
+	    if (bounds[offset + 2 * i] > query.getMin (i) ||
+		bounds[offset + 2 * i + 1] < query.getMax (i))
+		return false;
+	}
+	return true;
+    }
+
+    /** Calculate the MINDIST between a node and a point.
+     * @param bounds the float bounds of the level
+     * @param node the node
+     * @param p the ordinates of the point
+     * @return the squared distance
+     */
+    public static double getMinDist (float[] bounds, int node, double[] p) {
+	int offset = node * p.length * 2;
+	double res = 0;
+	for (int i = 0; i < p.length; i++) {
+	    double o = p[i];
+	    double min = bounds[offset + 2 * i];
+	    double max = bounds[offset + 2 * i + 1];
+	    double dr = 0;
+	    if (o < min)
+		dr = min - o;
+	    else if (o > max)
+		dr = o - max;
+	    res += dr * dr;
+	}
+	return res;
+    }
+
+    /** Calculate the smallest distance between a node and a box.
+     * @param bounds the float bounds of the level
+     * @param node the node
+     * @param dims the number of dimensions of the tree
+     * @param box the box
+     * @return the squared distance
+     */
+    public static double getMinDist (float[] bounds, int node, int dims,
+				     MBR box) {
+	int offset = node * dims * 2;
+	double res = 0;
+	for (int i = 0; i < dims; i++) {
+	    double dr = 0;
+	    if (box.getMax (i) < bounds[offset + 2 * i])
+		dr = bounds[offset + 2 * i] - box.getMax (i);
+	    else if (box.getMin (i) > bounds[offset + 2 * i + 1])
+		dr = box.getMin (i) - bounds[offset + 2 * i + 1];
+	    res += dr * dr;
+	}
+	return res;
+    }
+}
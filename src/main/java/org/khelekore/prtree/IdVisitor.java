@@ -0,0 +1,11 @@
+package org.khelekore.prtree;
+
+/** A receiver of the ids of the entries that match a query.
+ */
+public interface IdVisitor {
+    /** Handle one entry that matches the query.
+     * @param id the id of the matching entry
+     * @return true to continue the query, false to stop it
+     */
+    boolean visit (long id);
+}
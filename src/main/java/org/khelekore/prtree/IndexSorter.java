@@ -0,0 +1,117 @@
+package org.khelekore.prtree;
+
+import java.util.concurrent.RecursiveAction;
+
+/** Sorts permutations of element indices by a primitive key.
+ *  Equal keys are ordered by index, so the result is the same as
+ *  a stable sort of the indices 0 to n - 1.
+ */
+class IndexSorter {
+    private static final int INSERTION_SORT_SIZE = 16;
+    private static final int MIN_FORK_SIZE = 8192;
+
+    /** Do not instantiate
+     */
+    private IndexSorter () {
+	// empty
+    }
+
+    /** Sort the indices 0 to key.length - 1 by the key.
+     * @param key the sort key for each index
+     * @param parallel if true the sort is run as fork join tasks, this
+     *        should only be used when called from a fork join task.
+     * @return the sorted indices
+     */
+    public static int[] sort (double[] key, boolean parallel) {
+	int n = key.length;
+	int[] perm = new int[n];
+	for (int i = 0; i < n; i++)
+	    perm[i] = i;
+	int[] tmp = perm.clone ();
+	if (parallel)
+	    new SortTask (tmp, perm, 0, n, key).invoke ();
+	else
+	    mergeSort (tmp, perm, 0, n, key);
+	return perm;
+    }
+
+    private static int compare (int i1, int i2, double[] key) {
+	int c = Double.compare (key[i1], key[i2]);
+	if (c != 0)
+	    return c;
+	return i1 < i2 ? -1 : (i1 == i2 ? 0 : 1);
+    }
+
+    /** Sort src[low..high) into dest[low..high), src and dest must
+     *  hold the same values on entry and src is used as scratch space.
+     */
+    private static void mergeSort (int[] src, int[] dest,
+				   int low, int high, double[] key) {
+	int length = high - low;
+	if (length < INSERTION_SORT_SIZE) {
+	    insertionSort (dest, low, high, key);
+	    return;
+	}
+	int mid = (low + high) >>> 1;
+	mergeSort (dest, src, low, mid, key);
+	mergeSort (dest, src, mid, high, key);
+	merge (src, dest, low, mid, high, key);
+    }
+
+    private static void insertionSort (int[] dest, int low, int high,
+				       double[] key) {
+	for (int i = low + 1; i < high; i++) {
+	    int v = dest[i];
+	    int j = i - 1;
+	    while (j >= low && compare (dest[j], v, key) > 0) {
+		dest[j + 1] = dest[j];
+		j--;
+	    }
+	    dest[j + 1] = v;
+	}
+    }
+
+    private static void merge (int[] src, int[] dest,
+			       int low, int mid, int high, double[] key) {
+	// already in order, happens a lot for partly sorted input
+	if (compare (src[mid - 1], src[mid], key) <= 0) {
+	    System.arraycopy (src, low, dest, low, high - low);
+	    return;
+	}
+	for (int i = low, p = low, q = mid; i < high; i++) {
+	    if (q >= high || (p < mid && compare (src[p], src[q], key) <= 0))
+		dest[i] = src[p++];
+	    else
+		dest[i] = src[q++];
+	}
+    }
+
+    private static class SortTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private final int[] src;
+	private final int[] dest;
+	private final int low;
+	private final int high;
+	private final double[] key;
+
+	public SortTask (int[] src, int[] dest, int low, int high,
+			 double[] key) {
+	    this.src = src;
+	    this.dest = dest;
+	    this.low = low;
+	    this.high = high;
+	    this.key = key;
+	}
+
+	@Override protected void compute () {
+	    if (high - low < MIN_FORK_SIZE) {
+		mergeSort (src, dest, low, high, key);
+		return;
+	    }
+	    int mid = (low + high) >>> 1;
+	    invokeAll (new SortTask (dest, src, low, mid, key),
+		       new SortTask (dest, src, mid, high, key));
+	    merge (src, dest, low, mid, high, key);
+	}
+    }
+}
@@ -0,0 +1,466 @@
+package org.khelekore.prtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/** A Priority R-Tree that stores int ids instead of objects.
+ *
+ *  <p>The tree is bulk loaded from an array of ids and a packed array
+ *  of the bounds, or of the points, of the entries. The node bounds,
+ *  the entry coordinates and the ids are all kept in primitive arrays,
+ *  so the tree holds no object for each entry and the queries never
+ *  read an entry object.
+ *
+ *  <p>A box entry uses one int and 2 * dimensions doubles, a point
+ *  entry loaded with loadPoints uses one int and dimensions doubles.
+ *  The nodes add about 2 * dimensions doubles for every branchFactor
+ *  entries. During load the build also holds the coordinates split
+ *  by axis, one double for each value of a box and for each ordinate
+ *  of a point, and about 2 * dimensions ints for each entry. That
+ *  copy is dropped before the tree copies the caller's array into
+ *  leaf order, the tree keeps no reference to the caller's arrays.
+ *
+ *  <p>The find methods hand the matching ids to an IntVisitor or
+ *  write them into a caller supplied buffer and allocate nothing.
+ *
+ *  <p>Like PRTree, once load has returned any number of threads may
+ *  query the tree at the same time without any locking.
+ */
+public class IntPRTree {
+    private final int dimensions;
+    private final int branchFactor;
+
+    /** The loaded tree, null until load has been called. */
+    private volatile LoadedTree loaded;
+
+    /** Create a new IntPRTree using the specified branch factor.
+     * @param dimensions the number of dimensions of the entries
+     * @param branchFactor the number of child nodes for each internal node.
+     */
+    public IntPRTree (int dimensions, int branchFactor) {
+	if (dimensions < 1)
+	    throw new IllegalArgumentException ("dimensions: " + dimensions +
+						" < 1");
+	this.dimensions = dimensions;
+	this.branchFactor = branchFactor;
+    }
+
+    /** Bulk load boxes into this tree.
+     * @param ids the id of each entry
+     * @param bounds the bounds of the entries, 2 * dimensions values for
+     *        each entry laid out as min, max, min, max... in the same
+     *        order as the ids
+     * @throws IllegalArgumentException if the number of bounds does not
+     *         match the number of ids
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public void load (int[] ids, double[] bounds) {
+	load (ids, bounds, false, new LeafBuilder (dimensions, branchFactor));
+    }
+
+    /** Bulk load boxes into this tree using the threads of the given pool.
+     * @param ids the id of each entry
+     * @param bounds the bounds of the entries, laid out as for
+     *        {@link #load(int[], double[])}
+     * @param pool the ForkJoinPool to run the build in
+     * @throws IllegalArgumentException if the number of bounds does not
+     *         match the number of ids
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public void load (int[] ids, double[] bounds, ForkJoinPool pool) {
+	if (pool == null)
+	    throw new NullPointerException ("pool may not be null");
+	load (ids, bounds, false,
+	      new LeafBuilder (dimensions, branchFactor, pool));
+    }
+
+    /** Bulk load points into this tree.
+     * @param ids the id of each entry
+     * @param coords the points, dimensions values for each entry in the
+     *        same order as the ids
+     * @throws IllegalArgumentException if the number of coordinates
+     *         does not match the number of ids
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public void loadPoints (int[] ids, double[] coords) {
+	load (ids, coords, true, new LeafBuilder (dimensions, branchFactor));
+    }
+
+    /** Bulk load points into this tree using the threads of the given pool.
+     * @param ids the id of each entry
+     * @param coords the points, laid out as for
+     *        {@link #loadPoints(int[], double[])}
+     * @param pool the ForkJoinPool to run the build in
+     * @throws IllegalArgumentException if the number of coordinates
+     *         does not match the number of ids
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public void loadPoints (int[] ids, double[] coords, ForkJoinPool pool) {
+	if (pool == null)
+	    throw new NullPointerException ("pool may not be null");
+	load (ids, coords, true,
+	      new LeafBuilder (dimensions, branchFactor, pool));
+    }
+
+    private double[][] getBoxKeys (int[] ids, double[] bounds) {
+	if (bounds.length != (long)ids.length * dimensions * 2)
+	    throw new IllegalArgumentException ("Wrong number of bounds: " +
+						bounds.length + ", ids: " +
+						ids.length);
+	double[][] keys = new double[dimensions * 2][ids.length];
+	for (int i = 0; i < ids.length; i++) {
+	    int offset = i * dimensions * 2;
+	    for (int j = 0; j < dimensions; j++) {
+		keys[j][i] = bounds[offset + j * 2];
+		keys[dimensions + j][i] = bounds[offset + j * 2 + 1];
+	    }
+	}
+	return keys;
+    }
+
+    /** The min and max keys of a point are the same, so both use the
+     *  same array.
+     */
+    private double[][] getPointKeys (int[] ids, double[] coords) {
+	if (coords.length != (long)ids.length * dimensions)
+	    throw new IllegalArgumentException ("Wrong number of coordinates: " +
+						coords.length + ", ids: " +
+						ids.length);
+	double[][] keys = new double[dimensions * 2][];
+	for (int j = 0; j < dimensions; j++) {
+	    double[] axis = new double[ids.length];
+	    for (int i = 0; i < ids.length; i++)
+		axis[i] = coords[i * dimensions + j];
+	    keys[j] = axis;
+	    keys[dimensions + j] = axis;
+	}
+	return keys;
+    }
+
+    private synchronized void load (int[] ids, double[] values,
+				    boolean points, LeafBuilder lb) {
+	if (loaded != null)
+	    throw new IllegalStateException ("Tree is already loaded");
+	TreeBuilder tb = new TreeBuilder (dimensions, branchFactor, lb, false);
+	// the keys are only referenced by the builder and can be
+	// collected as soon as the tree is built
+	FlatTree ft = tb.build (points ? getPointKeys (ids, values) :
+				getBoxKeys (ids, values));
+	int[] order = tb.getEntryOrder ();
+	int[] sortedIds = new int[order.length];
+	int stride = points ? dimensions : dimensions * 2;
+	double[] coords = new double[order.length * stride];
+	for (int i = 0; i < order.length; i++) {
+	    sortedIds[i] = ids[order[i]];
+	    System.arraycopy (values, order[i] * stride, coords, i * stride,
+			      stride);
+	}
+	// the volatile write publishes the fully built tree
+	loaded = new LoadedTree (ft, sortedIds, coords, points);
+    }
+
+    /** Get the loaded tree.
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    private LoadedTree getLoaded () {
+	LoadedTree lt = loaded;
+	if (lt == null)
+	    throw new IllegalStateException ("Tree is not loaded");
+	return lt;
+    }
+
+    /** Get the number of dimensions of this tree.
+     * @return the number of dimensions
+     */
+    public int getDimensions () {
+	return dimensions;
+    }
+
+    /** Get an N dimensional minimum bounding box of the data stored
+     *  in this tree.
+     * @return the MBR of the whole tree, null if the tree is empty or
+     *         not loaded
+     */
+    public MBR getMBR () {
+	LoadedTree lt = loaded;
+	if (lt == null || lt.ids.length == 0)
+	    return null;
+	return lt.tree.getMBR (0, 0);
+    }
+
+    /** Get the number of data leafs in this tree.
+     * @return the total number of leafs in this tree
+     */
+    public int getNumberOfLeaves () {
+	LoadedTree lt = loaded;
+	return lt == null ? 0 : lt.ids.length;
+    }
+
+    /** Check if this tree is empty
+     * @return true if the number of leafs is 0, false otherwise
+     */
+    public boolean isEmpty () {
+	return getNumberOfLeaves () == 0;
+    }
+
+    /** Get the height of this tree.
+     * @return the total height of this tree, 0 if the tree is not loaded
+     */
+    public int getHeight () {
+	LoadedTree lt = loaded;
+	return lt == null ? 0 : lt.tree.getHeight ();
+    }
+
+    /** Finds the ids of all entries that intersect the given rectangle
+     *  and hands them to the visitor.
+     *
+     *  <p>All entries of a node that is fully inside the query are
+     *  handed to the visitor without testing them.
+     *
+     * @param query the bounds of the query
+     * @param visitor the receiver of the matching ids
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean find (MBR query, IntVisitor visitor) {
+	validate (query);
+	return find (getLoaded (), 0, 0, query, visitor);
+    }
+
+    private boolean find (LoadedTree lt, int level, int node, MBR query,
+			  IntVisitor visitor) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    for (int i = start; i < end; i++) {
+		if (entryIntersects (lt, i, query) &&
+		    !visitor.visit (lt.ids[i]))
+		    return false;
+	    }
+	} else {
+	    int[] entryStart = tree.getEntryStart (level + 1);
+	    for (int i = start; i < end; i++) {
+		if (tree.isContainedIn (level + 1, i, query)) {
+		    for (int j = entryStart[i], e = entryStart[i + 1]; j < e; j++)
+			if (!visitor.visit (lt.ids[j]))
+			    return false;
+		} else if (tree.intersects (level + 1, i, query) &&
+			   !find (lt, level + 1, i, query, visitor)) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    /** Finds the ids of all entries that intersect the given rectangle
+     *  and writes them into the buffer, in the same order as the
+     *  visitor gets them.
+     *
+     *  <p>At most buffer.length ids are written but all matches are
+     *  counted, so a return value larger than buffer.length means that
+     *  the buffer was too small.
+     *
+     * @param query the bounds of the query
+     * @param buffer the array to write the matching ids to
+     * @return the number of matching entries
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public int find (MBR query, int[] buffer) {
+	validate (query);
+	return find (getLoaded (), 0, 0, query, buffer, 0);
+    }
+
+    /** Write the matching ids below the given node to the buffer.
+     * @return the number of matches so far
+     */
+    private int find (LoadedTree lt, int level, int node, MBR query,
+		      int[] buffer, int found) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    for (int i = start; i < end; i++) {
+		if (entryIntersects (lt, i, query)) {
+		    if (found < buffer.length)
+			buffer[found] = lt.ids[i];
+		    found++;
+		}
+	    }
+	} else {
+	    int[] entryStart = tree.getEntryStart (level + 1);
+	    for (int i = start; i < end; i++) {
+		if (tree.isContainedIn (level + 1, i, query)) {
+		    int s = entryStart[i];
+		    int count = entryStart[i + 1] - s;
+		    if (found < buffer.length)
+			System.arraycopy (lt.ids, s, buffer, found,
+					  Math.min (count, buffer.length - found));
+		    found += count;
+		} else if (tree.intersects (level + 1, i, query)) {
+		    found = find (lt, level + 1, i, query, buffer, found);
+		}
+	    }
+	}
+	return found;
+    }
+
+    /** Count the entries that intersect the given rectangle.
+     * @param query the bounds of the query
+     * @return the number of entries that intersect the query
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public int count (MBR query) {
+	return find (query, EMPTY);
+    }
+
+    private static final int[] EMPTY = new int[0];
+
+    private boolean entryIntersects (LoadedTree lt, int pos, MBR query) {
+	if (!lt.points)
+	    return FlatTree.intersects (lt.coords, pos, dimensions, query);
+	double[] c = lt.coords;
+	int offset = pos * dimensions;
+	for (int i = 0; i < dimensions; i++) {
+	    double o = c[offset + i];
+	    if (o < query.getMin (i) || o > query.getMax (i))
+		return false;
+	}
+	return true;
+    }
+
+    /** Calculate the squared distance from a point to an entry. */
+    private double getMinDist (LoadedTree lt, int pos, double[] p) {
+	if (!lt.points)
+	    return FlatTree.getMinDist (lt.coords, pos, p);
+	double[] c = lt.coords;
+	int offset = pos * dimensions;
+	double res = 0;
+	for (int i = 0; i < dimensions; i++) {
+	    double dr = c[offset + i] - p[i];
+	    res += dr * dr;
+	}
+	return res;
+    }
+
+    private void validate (MBR query) {
+	for (int i = 0; i < dimensions; i++) {
+	    double max = query.getMax (i);
+	    double min = query.getMin (i);
+	    if (max < min)
+		throw new IllegalArgumentException ("max: " + max +
+						    " < min: " + min +
+						    ", axis: " + i +
+						    ", query: " + query);
+	}
+    }
+
+    /** Get the nearest neighbours of the given point.
+     *  The distance of an entry is the euclidean distance from the
+     *  point to the closest point of the bounds of the entry.
+     * @param p the point to find the nearest neighbour to.
+     * @param maxHits the maximum number of entries to find.
+     * @return A List of DistanceResult, holding the entry ids, with up
+     *         to maxHits results, sorted by distance.
+     *         Will return an empty list if this tree is empty.
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public List<DistanceResult<Integer>> nearestNeighbour (PointND p,
+							   int maxHits) {
+	LoadedTree lt = getLoaded ();
+	if (lt.ids.length == 0 || maxHits <= 0)
+	    return Collections.emptyList ();
+	int size = Math.min (maxHits, lt.ids.length);
+	int[] ids = new int[size];
+	double[] distances = new double[size];
+	int found = nearestNeighbour (p, ids, distances);
+	List<DistanceResult<Integer>> ret =
+	    new ArrayList<DistanceResult<Integer>> (found);
+	for (int i = 0; i < found; i++)
+	    ret.add (new DistanceResult<Integer> (ids[i], distances[i]));
+	return ret;
+    }
+
+    /** Get the nearest neighbours of the given point and write them to
+     *  the given arrays, sorted by distance.
+     *  The distance of an entry is the euclidean distance from the
+     *  point to the closest point of the bounds of the entry.
+     * @param p the point to find the nearest neighbour to.
+     * @param ids the array to write the ids to, its length is the
+     *        maximum number of entries to find
+     * @param distances the array to write the distances to, at least as
+     *        long as ids
+     * @return the number of entries found
+     * @throws IllegalArgumentException if distances is shorter than ids
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public int nearestNeighbour (PointND p, int[] ids, double[] distances) {
+	if (distances.length < ids.length)
+	    throw new IllegalArgumentException ("distances is shorter than ids: " +
+						distances.length + " < " +
+						ids.length);
+	LoadedTree lt = getLoaded ();
+	int size = Math.min (ids.length, lt.ids.length);
+	if (size == 0)
+	    return 0;
+	FlatTree tree = lt.tree;
+	double[] point = new double[dimensions];
+	for (int i = 0; i < dimensions; i++)
+	    point[i] = p.getOrd (i);
+	int leafLevel = tree.getLeafLevel ();
+	// the distances are squared until the results are returned
+	ResultHeap results = new ResultHeap (size);
+	NodeHeap queue = new NodeHeap (64);
+	queue.add (0, 0, 0);
+	while (!queue.isEmpty ()) {
+	    if (queue.peekDistance () > results.getMaxDistance ())
+		break;
+	    int level = queue.peekLevel ();
+	    int node = queue.peekNode ();
+	    queue.remove ();
+	    int[] children = tree.getChildren (level);
+	    for (int i = children[node], e = children[node + 1]; i < e; i++) {
+		if (level == leafLevel) {
+		    results.add (i, getMinDist (lt, i, point));
+		} else {
+		    double d = tree.getMinDist (level + 1, i, point);
+		    if (d <= results.getMaxDistance ())
+			queue.add (level + 1, i, d);
+		}
+	    }
+	}
+	results.sort ();
+	for (int i = 0; i < results.size (); i++) {
+	    ids[i] = lt.ids[results.getPosition (i)];
+	    distances[i] = Math.sqrt (results.getDistance (i));
+	}
+	return results.size ();
+    }
+
+    /** The result of a load, never modified after it is created.
+     */
+    private static class LoadedTree {
+	private final FlatTree tree;
+	/** The ids in leaf order. */
+	private final int[] ids;
+	/** The entry bounds, or the points, in leaf order. */
+	private final double[] coords;
+	private final boolean points;
+
+	public LoadedTree (FlatTree tree, int[] ids, double[] coords,
+			   boolean points) {
+	    this.tree = tree;
+	    this.ids = ids;
+	    this.coords = coords;
+	    this.points = points;
+	}
+    }
+}
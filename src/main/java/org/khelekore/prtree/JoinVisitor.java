@@ -0,0 +1,14 @@
+package org.khelekore.prtree;
+
+/** A receiver of the pairs found by a spatial join.
+ * @param <T> the data type stored in the first PRTree
+ * @param <U> the data type stored in the second PRTree
+ */
+public interface JoinVisitor<T, U> {
+    /** Handle one pair of intersecting entries.
+     * @param t the entry of the first tree
+     * @param u the entry of the second tree
+     * @return true to continue the join, false to stop it
+     */
+    boolean visit (T t, U u);
+}
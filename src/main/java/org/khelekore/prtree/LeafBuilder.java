@@ -1,199 +1,271 @@
 package org.khelekore.prtree;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /** A builder of internal nodes used during bulk loading of a PR-Tree.
  *  A PR-Tree is build by building a pseudo R-Tree and grabbing the
  *  leaf nodes (and then repeating until you have just one root node).
  *  This class creates the leaf nodes without building the full pseudo tree.
+ *
+ *  <p>The elements are given as primitive keys and are sorted once
+ *  on each key as permutations of the element indices. A partition
+ *  owns the same range in every permutation and when it is split each
+ *  permutation range is stably partitioned into the two halves, so
+ *  the build is O(n log n) and never rescans used elements.
  */
 class LeafBuilder {
 
+    /** Partitions smaller than this are expanded in the current task. */
+    private static final int MIN_FORK_SIZE = 8192;
+
+    private static final byte FREE = 0;
+    private static final byte USED = 1;
+    private static final byte LOW = 2;
+    private static final byte HIGH = 3;
+
     private final int dimensions;
     private final int branchFactor;
+    private final ForkJoinPool pool;
 
     public LeafBuilder (int dimensions, int branchFactor) {
+	this (dimensions, branchFactor, null);
+    }
+
+    /** Create a new LeafBuilder.
+     * @param dimensions the number of dimensions of the data
+     * @param branchFactor the maximum number of entries in each node
+     * @param pool the pool to run the build in, if null the build
+     *        runs on the calling thread.
+     */
+    public LeafBuilder (int dimensions, int branchFactor, ForkJoinPool pool) {
 	this.dimensions = dimensions;
 	this.branchFactor = branchFactor;
+	this.pool = pool;
     }
 
-    public <T, N> void buildLeafs (Collection<? extends T> ls,
-				   NodeComparators<T> comparators,
-				   NodeFactory<N> nf,
-				   List<N> leafNodes) {
-	List<NodeUsage<T>> nodes = new ArrayList<NodeUsage<T>> (ls.size ());
-	for (T t : ls)
-	    nodes.add (new NodeUsage<T> (t, 1));
-
-	Circle<Noder<T, N>> getters =
-	    new Circle<Noder<T, N>> (dimensions * 2);
-
-	for (int i = 0; i < dimensions; i++)
-	    addGetterAndSplitter (nodes, comparators.getMinComparator (i),
-				  getters);
-
-	for (int i = 0; i < dimensions; i++)
-	    addGetterAndSplitter (nodes, comparators.getMaxComparator (i),
-				  getters);
-
-	getLeafs (1, ls.size (), getters, nf, leafNodes);
+    /** Group the elements into nodes.
+     * @param keys the keys of the elements, keys[i] holds the min values
+     *        for axis i and keys[dimensions + i] holds the max values.
+     * @return the nodes
+     */
+    public NodeGroups buildLeafs (double[][] keys) {
+	return buildLeafs (keys, 0);
     }
 
-    private <T, N> void addGetterAndSplitter (List<NodeUsage<T>> nodes,
-					      Comparator<T> tcomp,
-					      Circle<Noder<T, N>> getters) {
-	Comparator<NodeUsage<T>> comp = new NodeUsageComparator<T> (tcomp);
-	Collections.sort (nodes, comp);
-	List<NodeUsage<T>> sortedNodes = new ArrayList<NodeUsage<T>> (nodes);
-	getters.add (new Noder<T, N> (sortedNodes));
+    /** Group the elements into nodes, as if they were a partition at
+     *  the given depth of a larger build.
+     * @param keys the keys of the elements, keys[i] holds the min values
+     *        for axis i and keys[dimensions + i] holds the max values.
+     * @param depth the depth of the partition that holds the elements
+     * @return the nodes
+     */
+    public NodeGroups buildLeafs (final double[][] keys, final int depth) {
+	if (pool == null)
+	    return new Builder (sort (keys, false), depth).build ();
+	return pool.invoke (new RecursiveTask<NodeGroups> () {
+		@Override protected NodeGroups compute () {
+		    Builder b = new Builder (sort (keys, true), depth);
+		    b.new PartitionTask (b.getRoot ()).invoke ();
+		    return b.getGroups ();
+		}
+	    });
     }
 
-    private <T, N> void getLeafs (int id, int totalNumberOfElements,
-				  Circle<Noder<T, N>> getters,
-				  NodeFactory<N> nf, List<N> leafNodes) {
-	List<Partition> partitionsToExpand = new ArrayList<Partition> ();
-	int[] pos = new int[2 * dimensions];
-	partitionsToExpand.add (new Partition (id, totalNumberOfElements, pos));
-	while (!partitionsToExpand.isEmpty ()) {
-	    Partition p = partitionsToExpand.remove (0);
-	    // Get the extreme nodes
-	    getters.reset ();
-	    for (int i = 0; i < getters.getNumElements (); i++) {
-		int nodesToGet = Math.min (p.numElementsLeft, branchFactor);
-		if (nodesToGet == 0)
-		    break;
-		Noder<T, N> noder = getters.getNext ();
-		leafNodes.add (noder.getNextNode (p, i, nodesToGet, nf));
-		p.numElementsLeft -= nodesToGet;
-	    }
-	    // Split the rest of the elements
-	    if (p.numElementsLeft > 0) {
-		int splitPos = getSplitPos (p.id) % getters.getNumElements ();
-		Noder<T, N> s = getters.get (splitPos);
-		s.split (p, splitPos, p.numElementsLeft,
-			 p.id, 2 * p.id, 2 * p.id + 1,
-			 partitionsToExpand);
-	    }
+    private int[][] sort (final double[][] keys, boolean parallel) {
+	final int[][] perms = new int[keys.length][];
+	if (!parallel) {
+	    for (int i = 0; i < keys.length; i++)
+		perms[i] = IndexSorter.sort (keys[i], false);
+	    return perms;
+	}
+	RecursiveAction[] sorters = new RecursiveAction[keys.length];
+	for (int i = 0; i < keys.length; i++) {
+	    final int k = i;
+	    sorters[i] = new RecursiveAction () {
+		    @Override protected void compute () {
+			perms[k] = IndexSorter.sort (keys[k], true);
+		    }
+		};
 	}
+	RecursiveAction.invokeAll (sorters);
+	return perms;
     }
 
-    private int getSplitPos (int n) {
-	// id is generated by the power of twos so get biggest n where 2 ^ n < id
-	// id: 1 -> splitPos 0, id: 2 -> 1, 3 -> 1, 4 -> 2, 5 -> 2, 7 -> 2, 8 -> 3
-	int splitPos = 0;
-	while (n >= 2) {
-	    n >>= 1;
-	    splitPos++;
-	}
-	return splitPos;
+    private int getSplitPos (int depth) {
+	return depth % (dimensions * 2);
     }
 
-    private static class NodeUsageComparator<T> 
-	implements Comparator<NodeUsage<T>> {
-	private Comparator<T> sorter;
+    private class Builder {
+	private final int[][] perms;
+	private final int numElements;
+	/** Per element state, FREE, USED, LOW or HIGH. */
+	private final byte[] state;
+	/** Per position marker for the first element of each node. */
+	private final boolean[] nodeStart;
+	private final int[] tmp;
+	private final int rootDepth;
 
-	public NodeUsageComparator (Comparator<T> sorter) {
-	    this.sorter = sorter;
+	public Builder (int[][] perms, int rootDepth) {
+	    this.perms = perms;
+	    this.rootDepth = rootDepth;
+	    numElements = perms[0].length;
+	    state = new byte[numElements];
+	    nodeStart = new boolean[numElements];
+	    tmp = new int[numElements];
 	}
 
-	public int compare (NodeUsage<T> n1, NodeUsage<T> n2) {
-	    return sorter.compare (n1.getData (), n2.getData ());
+	public Partition getRoot () {
+	    return new Partition (0, numElements, rootDepth);
+	}
+
+	public NodeGroups build () {
+	    Deque<Partition> partitionsToExpand = new ArrayDeque<Partition> ();
+	    partitionsToExpand.push (getRoot ());
+	    expandAll (partitionsToExpand);
+	    return getGroups ();
 	}
-    }
 
-    private static class Noder<T, N> {
-	private final List<NodeUsage<T>> data;
+	private void expandAll (Deque<Partition> partitionsToExpand) {
+	    while (!partitionsToExpand.isEmpty ()) {
+		Partition p = partitionsToExpand.pop ();
+		Partition[] parts = expand (p);
+		if (parts != null) {
+		    partitionsToExpand.push (parts[1]);
+		    partitionsToExpand.push (parts[0]);
+		}
+	    }
+	}
 
-	private Noder (List<NodeUsage<T>> data) {
-	    this.data = data;
+	/** The node order is stored in the first permutation, each
+	 *  partition writes its extreme nodes to the start of its range.
+	 */
+	public NodeGroups getGroups () {
+	    int numNodes = 0;
+	    for (boolean b : nodeStart)
+		if (b)
+		    numNodes++;
+	    int[] starts = new int[numNodes + 1];
+	    for (int i = 0, n = 0; i < numElements; i++)
+		if (nodeStart[i])
+		    starts[n++] = i;
+	    starts[numNodes] = numElements;
+	    return new NodeGroups (perms[0], starts);
 	}
 
-	/** Get the next node.
-	 * @param p the Partition to get a node from
-	 * @param gi the current getter index
-	 * @param maxObjects use at most this many objects
-	 * @param nf the NodeFactory used to create the nodes
-	 * @return the next node
+	/** Create the extreme nodes of the given partition and split
+	 *  the rest of the elements.
+	 * @return the two new partitions or null if all elements are used
 	 */
-	private N getNextNode (Partition p, int gi, int maxObjects,
-			       NodeFactory<N> nf) {
-
-	    Object nodeData[] = new Object[maxObjects];
-	    int s = data.size ();
-	    for (int i = 0; i < maxObjects; i++) {
-		while (p.currentPositions[gi] < s &&
-		       isUsedNode (p, p.currentPositions[gi])) {
-		    p.currentPositions[gi]++;
+	private Partition[] expand (Partition p) {
+	    int size = p.to - p.from;
+	    int[] taken = new int[Math.min (size, perms.length * branchFactor)];
+	    int numTaken = 0;
+	    // Get the extreme nodes
+	    for (int i = 0; i < perms.length && numTaken < size; i++) {
+		int nodesToGet = Math.min (size - numTaken, branchFactor);
+		nodeStart[p.from + numTaken] = true;
+		int[] perm = perms[i];
+		for (int pos = p.from; nodesToGet > 0; pos++) {
+		    int e = perm[pos];
+		    if (state[e] == FREE) {
+			state[e] = USED;
+			taken[numTaken++] = e;
+			nodesToGet--;
+		    }
 		}
-		NodeUsage<T> nu = data.set (p.currentPositions[gi], null);
-		nodeData[i] = nu.getData ();
-		nu.use ();
 	    }
-	    
-	    for (int i = 0; i < nodeData.length; i++) {
-		if (nodeData[i] == null) {
-		    for (int j = 0; j < data.size (); j++)
-			System.err.println (j + ": " + data.get (j));
-		    throw new NullPointerException ("Null data found at: " + i);
+
+	    Partition[] ret = null;
+	    int left = size - numTaken;
+	    if (left > 0)
+		ret = split (p, numTaken, left);
+	    // the used elements have been removed from the permutations
+	    System.arraycopy (taken, 0, perms[0], p.from, numTaken);
+	    return ret;
+	}
+
+	private Partition[] split (Partition p, int numTaken, int left) {
+	    int sizeHigh = left / 2;
+	    int sizeLow = left - sizeHigh;
+	    int[] sp = perms[getSplitPos (p.depth)];
+	    for (int pos = p.from, marked = 0; marked < left; pos++) {
+		int e = sp[pos];
+		if (state[e] == FREE)
+		    state[e] = marked++ < sizeLow ? LOW : HIGH;
+	    }
+
+	    int lowStart = p.from + numTaken;
+	    int highStart = lowStart + sizeLow;
+	    for (int[] perm : perms) {
+		System.arraycopy (perm, p.from, tmp, p.from, p.to - p.from);
+		for (int pos = p.from, l = lowStart, h = highStart;
+		     pos < p.to; pos++) {
+		    int e = tmp[pos];
+		    byte s = state[e];
+		    if (s == LOW)
+			perm[l++] = e;
+		    else if (s == HIGH)
+			perm[h++] = e;
 		}
 	    }
-	    return nf.create (nodeData);
-	}
+	    for (int pos = lowStart; pos < p.to; pos++)
+		state[perms[0][pos]] = FREE;
 
-	private boolean isUsedNode (Partition p, int pos) {
-	    NodeUsage<T> nu = data.get (pos);
-	    return nu == null || nu.isUsed () || nu.getOwner () != p.id;
+	    return new Partition[] {
+		new Partition (lowStart, highStart, p.depth + 1),
+		new Partition (highStart, p.to, p.depth + 1)
+	    };
 	}
 
-	private void split (Partition p, int gi,
-			    int nodesToMark, int fromId, int toId1, int toId2,
-			    List<Partition> partitionsToExpand) {
-	    int sizePart2 = nodesToMark / 2;
-	    int sizePart1 = nodesToMark - sizePart2;
-	    int startPos = p.currentPositions[gi];
-	    int startPos2 = markPart (sizePart1, fromId, toId1, startPos);
-	    markPart (sizePart2, fromId, toId2, startPos2);
-	    partitionsToExpand.add (0, new Partition (toId1, sizePart1,
-						      p.currentPositions));
-	    int[] pos = p.currentPositions.clone ();
-	    pos[gi] = startPos2;
-	    partitionsToExpand.add (1, new Partition (toId2, sizePart2, pos));
-	}
+	/** Expands a partition and all the partitions split from it.
+	 *  The two parts of a split never share any data so they can
+	 *  be expanded at the same time.
+	 */
+	private class PartitionTask extends RecursiveAction {
+	    private static final long serialVersionUID = 1L;
+	    private final Partition p;
 
-	private int markPart (int numToMark, int fromId, int toId, int startPos) {
-	    NodeUsage<T> nu;
-	    while (numToMark > 0) {
-		while ((nu = data.get (startPos)) == null || 
-		       nu.getOwner () != fromId)
-		    startPos++;
-		nu.changeOwner (toId);
-		numToMark--;
+	    public PartitionTask (Partition p) {
+		this.p = p;
+	    }
+
+	    @Override protected void compute () {
+		if (p.to - p.from < MIN_FORK_SIZE) {
+		    Deque<Partition> partitionsToExpand =
+			new ArrayDeque<Partition> ();
+		    partitionsToExpand.push (p);
+		    expandAll (partitionsToExpand);
+		    return;
+		}
+		Partition[] parts = expand (p);
+		if (parts != null)
+		    invokeAll (new PartitionTask (parts[0]),
+			       new PartitionTask (parts[1]));
 	    }
-	    return startPos;
 	}
     }
 
+    /** A part of the elements, the partition owns the range
+     *  [from, to) in every permutation.
+     */
     private static class Partition {
-	private final int id;
-	private int numElementsLeft;
-	private int[] currentPositions;
-
-	public Partition (int id, int numElementsLeft, int[] currentPositions) {
-	    this.id = id;
-	    this.numElementsLeft = numElementsLeft;
-	    this.currentPositions = currentPositions;
+	private final int from;
+	private final int to;
+	private final int depth;
+
+	public Partition (int from, int to, int depth) {
+	    this.from = from;
+	    this.to = to;
+	    this.depth = depth;
 	}
 
 	@Override public String toString () {
-	    return getClass ().getSimpleName () + "{id: " + id + 
-		", numElementsLeft: " + numElementsLeft +
-		", currentPositions: " + Arrays.toString (currentPositions) +
-		"}";
+	    return getClass ().getSimpleName () + "{from: " + from +
+		", to: " + to + ", depth: " + depth + "}";
 	}
     }
 }
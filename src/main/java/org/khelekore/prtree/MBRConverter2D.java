@@ -0,0 +1,31 @@
+package org.khelekore.prtree;
+
+/** A class that given a T can tell the bounding rectangle of that
+ *  object, used by PRTree2D.
+ * @param <T> the data type stored in the PRTree2D
+ */
+public interface MBRConverter2D<T> {
+    /** Get the minimum x value for the given t.
+     * @param t the object to get the mbr ordinate for
+     * @return the min x value
+     */
+    double getMinX (T t);
+
+    /** Get the minimum y value for the given t.
+     * @param t the object to get the mbr ordinate for
+     * @return the min y value
+     */
+    double getMinY (T t);
+
+    /** Get the maximum x value for the given t.
+     * @param t the object to get the mbr ordinate for
+     * @return the max x value
+     */
+    double getMaxX (T t);
+
+    /** Get the maximum y value for the given t.
+     * @param t the object to get the mbr ordinate for
+     * @return the max y value
+     */
+    double getMaxY (T t);
+}
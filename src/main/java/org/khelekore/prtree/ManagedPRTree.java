@@ -0,0 +1,197 @@
+package org.khelekore.prtree;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/** Holds a PRTree that is rebuilt from new data in the background.
+ *
+ *  <p>Each rebuild bulk loads a new PRTree on the given executor and
+ *  then publishes it with one atomic swap, the old tree is never
+ *  modified. Readers get the current tree from {@link #getTree} and
+ *  never block, a reader that runs all the queries of one operation
+ *  on the tree it got sees one consistent snapshot even if a swap
+ *  happens meanwhile.
+ *
+ *  <p>Rebuilds may run at the same time, each rebuild is numbered when
+ *  it is started and a tree is only published if no later rebuild has
+ *  been published already, so an old data set never replaces a newer
+ *  one.
+ *
+ *  <p>Until the first rebuild is done the tree is loaded but empty.
+ *
+ * @param <T> the data type stored in the tree
+ */
+public class ManagedPRTree<T> {
+    private final MBRConverter<T> converter;
+    private final int branchFactor;
+    private final Executor executor;
+    private final Supplier<? extends Collection<? extends T>> source;
+    private volatile boolean cacheEntryBounds;
+    private volatile boolean floatBounds;
+
+    private final AtomicReference<Snapshot<T>> current;
+    private final AtomicLong generations = new AtomicLong ();
+    private final AtomicLong swaps = new AtomicLong ();
+    private final AtomicLong failedBuilds = new AtomicLong ();
+    private volatile long lastBuildNanos;
+
+    /** Create a new ManagedPRTree that rebuilds from the given source.
+     * @param converter the MBRConverter to use for the trees
+     * @param branchFactor the number of child nodes for each internal node.
+     * @param executor the executor that runs the rebuilds
+     * @param source the supplier of the data for {@link #rebuild()},
+     *        may be null if only {@link #rebuild(Collection)} is used
+     */
+    public ManagedPRTree (MBRConverter<T> converter, int branchFactor,
+			  Executor executor,
+			  Supplier<? extends Collection<? extends T>> source) {
+	if (executor == null)
+	    throw new NullPointerException ("executor may not be null");
+	this.converter = converter;
+	this.branchFactor = branchFactor;
+	this.executor = executor;
+	this.source = source;
+	PRTree<T> empty = new PRTree<T> (converter, branchFactor);
+	empty.load (Collections.<T>emptyList ());
+	current = new AtomicReference<Snapshot<T>> (new Snapshot<T> (empty, 0));
+    }
+
+    /** Set if the trees built by later rebuilds should cache the
+     *  entry bounds, see {@link PRTree#setCacheEntryBounds}.
+     * @param cacheEntryBounds true to cache the entry bounds
+     */
+    public void setCacheEntryBounds (boolean cacheEntryBounds) {
+	this.cacheEntryBounds = cacheEntryBounds;
+    }
+
+    /** Set if the trees built by later rebuilds should store their
+     *  bounds as floats, see {@link PRTree#setFloatBounds}.
+     * @param floatBounds true to store the bounds as floats
+     */
+    public void setFloatBounds (boolean floatBounds) {
+	this.floatBounds = floatBounds;
+    }
+
+    /** Get the current tree.
+     *  The returned tree is fully loaded and is never modified.
+     * @return the latest published tree
+     */
+    public PRTree<T> getTree () {
+	return current.get ().tree;
+    }
+
+    /** Start a rebuild with the data of the source.
+     *  The source is called on the executor.
+     * @return a future that completes with the current tree once the
+     *         new tree is published, or is dropped because a later
+     *         rebuild was published first
+     * @throws IllegalStateException if this tree has no source
+     */
+    public CompletableFuture<PRTree<T>> rebuild () {
+	if (source == null)
+	    throw new IllegalStateException ("No source to rebuild from");
+	return rebuild (source);
+    }
+
+    /** Start a rebuild with the given data.
+     *  The data may not be modified until the returned future is done.
+     * @param data the data of the new tree
+     * @return a future that completes with the current tree once the
+     *         new tree is published, or is dropped because a later
+     *         rebuild was published first
+     */
+    public CompletableFuture<PRTree<T>> rebuild (final Collection<? extends T> data) {
+	return rebuild (new Supplier<Collection<? extends T>> () {
+		public Collection<? extends T> get () {
+		    return data;
+		}
+	    });
+    }
+
+    private CompletableFuture<PRTree<T>> rebuild (final Supplier<? extends Collection<? extends T>> data) {
+	final long generation = generations.incrementAndGet ();
+	return CompletableFuture.supplyAsync (new Supplier<PRTree<T>> () {
+		public PRTree<T> get () {
+		    return build (generation, data);
+		}
+	    }, executor);
+    }
+
+    private PRTree<T> build (long generation,
+			     Supplier<? extends Collection<? extends T>> data) {
+	long start = System.nanoTime ();
+	PRTree<T> tree = new PRTree<T> (converter, branchFactor);
+	try {
+	    tree.setCacheEntryBounds (cacheEntryBounds);
+	    tree.setFloatBounds (floatBounds);
+	    tree.load (data.get ());
+	} catch (RuntimeException e) {
+	    failedBuilds.incrementAndGet ();
+	    throw e;
+	}
+	lastBuildNanos = System.nanoTime () - start;
+	publish (new Snapshot<T> (tree, generation));
+	return getTree ();
+    }
+
+    private void publish (Snapshot<T> s) {
+	while (true) {
+	    Snapshot<T> old = current.get ();
+	    if (old.generation > s.generation)
+		return;
+	    if (current.compareAndSet (old, s)) {
+		swaps.incrementAndGet ();
+		return;
+	    }
+	}
+    }
+
+    /** Get the number of times a new tree has been published.
+     * @return the number of swaps
+     */
+    public long getSwapCount () {
+	return swaps.get ();
+    }
+
+    /** Get the number of rebuilds that failed with an exception.
+     *  A failed rebuild leaves the current tree in place.
+     * @return the number of failed rebuilds
+     */
+    public long getFailedBuildCount () {
+	return failedBuilds.get ();
+    }
+
+    /** Get the time the last finished rebuild took to build its tree.
+     * @return the build time in nanoseconds, 0 if no rebuild is done
+     */
+    public long getLastBuildNanos () {
+	return lastBuildNanos;
+    }
+
+    /** Get the time since the current tree was published.
+     * @return the age of the current tree in nanoseconds
+     */
+    public long getSnapshotAgeNanos () {
+	return System.nanoTime () - current.get ().published;
+    }
+
+    /** A published tree. */
+    private static class Snapshot<T> {
+	private final PRTree<T> tree;
+	/** The number of the rebuild that built the tree, 0 for the first tree */
+	private final long generation;
+	/** The System.nanoTime when the tree was created */
+	private final long published;
+
+	public Snapshot (PRTree<T> tree, long generation) {
+	    this.tree = tree;
+	    this.generation = generation;
+	    published = System.nanoTime ();
+	}
+    }
+}
@@ -0,0 +1,279 @@
+package org.khelekore.prtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** A read only PRTree that is queried directly in a memory mapped
+ *  tree file written by {@link PRTree#write(File, EntryIdConverter)}.
+ *
+ *  <p>Opening the file only reads the header, the nodes are read by
+ *  the queries through the mapping, so the tree can be queried right
+ *  away and the pages are shared by all processes that map the file.
+ *  The queries return the ids of the entries.
+ *
+ *  <p>Each section of the file, for instance the bounds of all entries,
+ *  has to be smaller than 2 GB.
+ *
+ *  <p>A MappedPRTree is never modified, any number of threads may query
+ *  it at the same time.
+ */
+public class MappedPRTree {
+    private final int dimensions;
+    private final int numEntries;
+    private final IntBuffer[] children;
+    private final DoubleBuffer[] bounds;
+    private final DoubleBuffer entryBounds;
+    private final LongBuffer ids;
+
+    private MappedPRTree (int dimensions, int numEntries,
+			  IntBuffer[] children, DoubleBuffer[] bounds,
+			  DoubleBuffer entryBounds, LongBuffer ids) {
+	this.dimensions = dimensions;
+	this.numEntries = numEntries;
+	this.children = children;
+	this.bounds = bounds;
+	this.entryBounds = entryBounds;
+	this.ids = ids;
+    }
+
+    /** Open a tree file.
+     * @param file the file to open
+     * @return the mapped tree
+     * @throws IOException if the file can not be read or is not a
+     *         valid tree file
+     */
+    public static MappedPRTree open (File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile (file, "r");
+	try {
+	    FileChannel channel = raf.getChannel ();
+	    long fileSize = channel.size ();
+	    ByteBuffer header = ByteBuffer.allocate (5 * 4);
+	    header.order (ByteOrder.LITTLE_ENDIAN);
+	    read (channel, header, 0);
+	    if (header.getInt (0) != TreeFile.MAGIC)
+		throw new IOException ("Not a tree file: " + file);
+	    int version = header.getInt (4);
+	    if (version != TreeFile.VERSION)
+		throw new IOException ("Unsupported tree file version: " +
+				       version);
+	    int dims = header.getInt (8);
+	    int height = header.getInt (12);
+	    int numEntries = header.getInt (16);
+	    if (dims < 1 || height < 1 || numEntries < 0)
+		throw new IOException ("Corrupt tree file header: " + file);
+	    ByteBuffer levelHeader = ByteBuffer.allocate (height * 4);
+	    levelHeader.order (ByteOrder.LITTLE_ENDIAN);
+	    read (channel, levelHeader, 5 * 4);
+
+	    long pos = TreeFile.getHeaderSize (height);
+	    IntBuffer[] children = new IntBuffer[height];
+	    DoubleBuffer[] bounds = new DoubleBuffer[height];
+	    for (int level = 0; level < height; level++) {
+		int numNodes = levelHeader.getInt (level * 4);
+		long size = (numNodes + 1L) * 4;
+		children[level] = map (channel, pos, size, fileSize).asIntBuffer ();
+		pos = TreeFile.align (pos + size);
+		size = (long)numNodes * dims * 2 * 8;
+		bounds[level] = map (channel, pos, size, fileSize).asDoubleBuffer ();
+		pos += size;
+	    }
+	    long size = (long)numEntries * dims * 2 * 8;
+	    DoubleBuffer entryBounds =
+		map (channel, pos, size, fileSize).asDoubleBuffer ();
+	    pos += size;
+	    size = (long)numEntries * 8;
+	    LongBuffer ids = map (channel, pos, size, fileSize).asLongBuffer ();
+	    return new MappedPRTree (dims, numEntries, children, bounds,
+				     entryBounds, ids);
+	} finally {
+	    // the mappings stay valid after the file is closed
+	    raf.close ();
+	}
+    }
+
+    private static void read (FileChannel channel, ByteBuffer buf, long pos)
+	throws IOException {
+	while (buf.hasRemaining ()) {
+	    int read = channel.read (buf, pos + buf.position ());
+	    if (read < 0)
+		throw new IOException ("Truncated tree file");
+	}
+    }
+
+    private static ByteBuffer map (FileChannel channel, long pos, long size,
+				   long fileSize) throws IOException {
+	if (pos + size > fileSize)
+	    throw new IOException ("Truncated tree file");
+	if (size > Integer.MAX_VALUE)
+	    throw new IOException ("Tree file section too large to map: " +
+				   size);
+	ByteBuffer buf = channel.map (FileChannel.MapMode.READ_ONLY, pos, size);
+	buf.order (ByteOrder.LITTLE_ENDIAN);
+	return buf;
+    }
+
+    /** Get the number of dimensions of this tree.
+     * @return the number of dimensions
+     */
+    public int getDimensions () {
+	return dimensions;
+    }
+
+    /** Get the number of entries in this tree.
+     * @return the total number of entries in this tree
+     */
+    public int getNumberOfLeaves () {
+	return numEntries;
+    }
+
+    /** Check if this tree is empty
+     * @return true if the number of entries is 0, false otherwise
+     */
+    public boolean isEmpty () {
+	return numEntries == 0;
+    }
+
+    /** Get the height of this tree.
+     * @return the total height of this tree
+     */
+    public int getHeight () {
+	return bounds.length;
+    }
+
+    /** Get an N dimensional minimum bounding box of the data stored
+     *  in this tree.
+     * @return the MBR of the whole tree, null if the tree is empty
+     */
+    public MBR getMBR () {
+	if (isEmpty ())
+	    return null;
+	double[] values = new double[dimensions * 2];
+	for (int i = 0; i < values.length; i++)
+	    values[i] = bounds[0].get (i);
+	return new SimpleMBR (values);
+    }
+
+    /** Finds the ids of all entries that intersect the given rectangle
+     *  and hands them to the visitor.
+     * @param query the bounds of the query
+     * @param visitor the receiver of the matching ids
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     */
+    public boolean find (MBR query, IdVisitor visitor) {
+	for (int i = 0; i < dimensions; i++) {
+	    double max = query.getMax (i);
+	    double min = query.getMin (i);
+	    if (max < min)
+		throw new IllegalArgumentException ("max: " + max +
+						    " < min: " + min +
+						    ", axis: " + i +
+						    ", query: " + query);
+	}
+	return find (0, 0, query, visitor);
+    }
+
+    private boolean find (int level, int node, MBR query, IdVisitor visitor) {
+	IntBuffer c = children[level];
+	int start = c.get (node);
+	int end = c.get (node + 1);
+	boolean leaf = level == bounds.length - 1;
+	DoubleBuffer b = leaf ? entryBounds : bounds[level + 1];
+	for (int i = start; i < end; i++) {
+	    if (intersects (b, i, query)) {
+		if (leaf) {
+		    if (!visitor.visit (ids.get (i)))
+			return false;
+		} else if (!find (level + 1, i, query, visitor)) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    private boolean intersects (DoubleBuffer b, int node, MBR query) {
+	int offset = node * dimensions * 2;
+	for (int i = 0; i < dimensions; i++) {
+	    if (query.getMax (i) < b.get (offset + 2 * i) ||
+		query.getMin (i) > b.get (offset + 2 * i + 1))
+		return false;
+	}
+	return true;
+    }
+
+    /** Get the nearest neighbours of the given point.
+     *  The distance of an entry is the euclidean distance from the
+     *  point to the closest point of the bounds of the entry.
+     * @param p the point to find the nearest neighbour to.
+     * @param maxHits the maximum number of entries to find.
+     * @return A List of DistanceResult, holding the entry ids, with up
+     *         to maxHits results, sorted by distance.
+     *         Will return an empty list if this tree is empty.
+     */
+    public List<DistanceResult<Long>> nearestNeighbour (PointND p,
+							int maxHits) {
+	if (isEmpty () || maxHits <= 0)
+	    return Collections.emptyList ();
+	double[] point = new double[dimensions];
+	for (int i = 0; i < dimensions; i++)
+	    point[i] = p.getOrd (i);
+	int leafLevel = bounds.length - 1;
+	// the distances are squared until the results are returned
+	ResultHeap results = new ResultHeap (Math.min (maxHits, numEntries));
+	NodeHeap queue = new NodeHeap (64);
+	queue.add (0, 0, 0);
+	while (!queue.isEmpty ()) {
+	    if (queue.peekDistance () > results.getMaxDistance ())
+		break;
+	    int level = queue.peekLevel ();
+	    int node = queue.peekNode ();
+	    queue.remove ();
+	    IntBuffer c = children[level];
+	    boolean leaf = level == leafLevel;
+	    DoubleBuffer b = leaf ? entryBounds : bounds[level + 1];
+	    for (int i = c.get (node), e = c.get (node + 1); i < e; i++) {
+		double d = getMinDist (b, i, point);
+		if (leaf)
+		    results.add (i, d);
+		else if (d <= results.getMaxDistance ())
+		    queue.add (level + 1, i, d);
+	    }
+	}
+	results.sort ();
+	List<DistanceResult<Long>> ret =
+	    new ArrayList<DistanceResult<Long>> (results.size ());
+	for (int i = 0; i < results.size (); i++)
+	    ret.add (new DistanceResult<Long> (ids.get (results.getPosition (i)),
+					       Math.sqrt (results.getDistance (i))));
+	return ret;
+    }
+
+    /** Get the squared MINDIST between a node and a point. */
+    private double getMinDist (DoubleBuffer b, int node, double[] p) {
+	int offset = node * dimensions * 2;
+	double res = 0;
+	for (int i = 0; i < dimensions; i++) {
+	    double o = p[i];
+	    double min = b.get (offset + 2 * i);
+	    double max = b.get (offset + 2 * i + 1);
+	    double dr = 0;
+	    if (o < min)
+		dr = min - o;
+	    else if (o > max)
+		dr = o - max;
+	    res += dr * dr;
+	}
+	return res;
+    }
+}
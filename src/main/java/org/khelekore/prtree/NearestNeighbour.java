@@ -1,48 +1,120 @@
 package org.khelekore.prtree;
 
-import java.util.PriorityQueue;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import org.khelekore.prtree.DistanceResult;
 import org.khelekore.prtree.NodeFilter;
 
+/** Finds the k nearest entries of a point.
+ *
+ *  <p>The nodes are visited in increasing distance order from a
+ *  NodeHeap and the best entries so far are kept in a ResultHeap.
+ *  Once k entries are found the k-th distance prunes the nodes, and
+ *  the entries if their bounds are cached, and the search ends when
+ *  the closest node left is further away than the k-th entry.
+ */
 class NearestNeighbour<T> {
 
-    private final MBRConverter<T> converter;
+    private final FlatTree tree;
+    private final Object[] entries;
     private final NodeFilter<T> filter;
     private final int maxHits;
-    private final Node<T> root;
     private final DistanceCalculator<T> dc;
     private final PointND p;
+    private final double[] point;
+    /** The statistics to count the work in, null to not count it. */
+    private final QueryStats stats;
 
-    public NearestNeighbour (MBRConverter<T> converter,
+    public NearestNeighbour (FlatTree tree,
+			     Object[] entries,
 			     NodeFilter<T> filter,
 			     int maxHits,
-			     Node<T> root,
 			     DistanceCalculator<T> dc,
-			     PointND p) {
-	this.converter = converter;
+			     PointND p,
+			     QueryStats stats) {
+	this.tree = tree;
+	this.entries = entries;
 	this.filter = filter;
 	this.maxHits = maxHits;
-	this.root = root;
 	this.dc = dc;
 	this.p = p;
+	this.stats = stats;
+	point = new double[p.getDimensions ()];
+	for (int i = 0; i < point.length; i++)
+	    point[i] = p.getOrd (i);
     }
 
     /**
      * @return the nearest neighbour
      */
     public List<DistanceResult<T>> find () {
-	List<DistanceResult<T>> ret =
-	    new ArrayList<DistanceResult<T>> (maxHits);
-	MinDistComparator<T, Node<T>> nc =
-	    new MinDistComparator<T, Node<T>> (converter, p);
-	PriorityQueue<Node<T>> queue = new PriorityQueue<Node<T>> (20, nc);
-	queue.add (root);
+	int size = Math.min (maxHits, entries.length);
+	if (size <= 0)
+	    return Collections.emptyList ();
+	ResultHeap results = new ResultHeap (size);
+	NodeHeap queue = new NodeHeap (64);
+	queue.add (0, 0, 0);
 	while (!queue.isEmpty ()) {
-	    Node<T> n = queue.remove ();
-	    n.nnExpand (dc, filter, ret, maxHits, queue, nc);
+	    if (queue.peekDistance () > results.getMaxDistance ())
+		break;
+	    int level = queue.peekLevel ();
+	    int node = queue.peekNode ();
+	    queue.remove ();
+	    if (stats != null)
+		stats.visitNode (level);
+	    if (level == tree.getLeafLevel ())
+		expandLeaf (node, results);
+	    else
+		expandInternal (level, node, results, queue);
+	}
+
+	results.sort ();
+	if (stats != null)
+	    stats.returnEntries (results.size ());
+	List<DistanceResult<T>> ret =
+	    new ArrayList<DistanceResult<T>> (results.size ());
+	for (int i = 0; i < results.size (); i++) {
+	    @SuppressWarnings("unchecked")
+	    T t = (T)entries[results.getPosition (i)];
+	    ret.add (new DistanceResult<T> (t, results.getDistance (i)));
 	}
 	return ret;
     }
+
+    private void expandInternal (int level, int node, ResultHeap results,
+				 NodeHeap queue) {
+	int[] children = tree.getChildren (level);
+	double maxDist = results.getMaxDistance ();
+	if (stats != null)
+	    stats.testMBRs (children[node + 1] - children[node]);
+	for (int i = children[node], e = children[node + 1]; i < e; i++) {
+	    double minDist =
+		Math.sqrt (tree.getMinDist (level + 1, i, point));
+	    if (minDist <= maxDist)
+		queue.add (level + 1, i, minDist);
+	}
+    }
+
+    private void expandLeaf (int node, ResultHeap results) {
+	int[] children = tree.getChildren (tree.getLeafLevel ());
+	double[] entryBounds = tree.getEntryBounds ();
+	float[] floatEntryBounds = tree.getFloatEntryBounds ();
+	for (int i = children[node], e = children[node + 1]; i < e; i++) {
+	    if (stats != null)
+		stats.testEntry ();
+	    if (entryBounds != null &&
+		Math.sqrt (FlatTree.getMinDist (entryBounds, i, point)) >
+		results.getMaxDistance ())
+		continue;
+	    // the rounded float bounds are never further away than the entry
+	    if (floatEntryBounds != null &&
+		Math.sqrt (FlatTree.getMinDist (floatEntryBounds, i, point)) >
+		results.getMaxDistance ())
+		continue;
+	    @SuppressWarnings("unchecked") T t = (T)entries[i];
+	    if (filter.accept (t))
+		results.add (i, dc.distanceTo (t, p));
+	}
+    }
 }
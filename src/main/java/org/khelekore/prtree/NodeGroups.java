@@ -0,0 +1,62 @@
+package org.khelekore.prtree;
+
+/** The result of grouping elements into nodes. The elements of node
+ *  i are getElement (getStart (i)) to getElement (getStart (i + 1) - 1).
+ */
+class NodeGroups {
+    private final int[] order;
+    private final int[] starts;
+
+    /** Create a new NodeGroups.
+     * @param order the element indices, in node order
+     * @param starts the start position in order for each node, with
+     *        one extra entry that holds the length of order
+     */
+    public NodeGroups (int[] order, int[] starts) {
+	this.order = order;
+	this.starts = starts;
+    }
+
+    /** Get the number of nodes
+     * @return the number of nodes
+     */
+    public int size () {
+	return starts.length - 1;
+    }
+
+    public int getStart (int node) {
+	return starts[node];
+    }
+
+    public int getElement (int pos) {
+	return order[pos];
+    }
+
+    /** Calculate the bounds of each node.
+     * @param keys the keys of the elements, the first half of the
+     *        arrays holds the min values for each axis and the second
+     *        half the max values.
+     * @return the bounds of each node, in the same layout as the keys
+     */
+    public double[][] getBounds (double[][] keys) {
+	int numKeys = keys.length;
+	int dims = numKeys / 2;
+	int numNodes = size ();
+	double[][] ret = new double[numKeys][numNodes];
+	for (int k = 0; k < numKeys; k++) {
+	    double[] key = keys[k];
+	    double[] bounds = ret[k];
+	    boolean min = k < dims;
+	    for (int i = 0; i < numNodes; i++) {
+		int pos = starts[i];
+		double v = key[order[pos]];
+		for (int end = starts[i + 1], j = pos + 1; j < end; j++) {
+		    double d = key[order[j]];
+		    v = min ? Math.min (v, d) : Math.max (v, d);
+		}
+		bounds[i] = v;
+	    }
+	}
+	return ret;
+    }
+}
@@ -0,0 +1,93 @@
+package org.khelekore.prtree;
+
+import java.util.Arrays;
+
+/** A binary min heap of tree nodes ordered by distance.
+ *
+ *  <p>The distance of each node is calculated once, when it is added,
+ *  and the heap is kept in primitive arrays so adding a node does not
+ *  allocate anything unless the heap has to grow.
+ */
+class NodeHeap {
+    private double[] dists;
+    private int[] levels;
+    private int[] nodes;
+    private int size;
+
+    /** Create a new NodeHeap.
+     * @param capacity the initial capacity
+     */
+    public NodeHeap (int capacity) {
+	capacity = Math.max (capacity, 1);
+	dists = new double[capacity];
+	levels = new int[capacity];
+	nodes = new int[capacity];
+    }
+
+    public boolean isEmpty () {
+	return size == 0;
+    }
+
+    /** Add a node.
+     * @param level the level of the node
+     * @param node the index of the node in its level
+     * @param dist the distance to the node
+     */
+    public void add (int level, int node, double dist) {
+	if (size == dists.length) {
+	    dists = Arrays.copyOf (dists, size * 2);
+	    levels = Arrays.copyOf (levels, size * 2);
+	    nodes = Arrays.copyOf (nodes, size * 2);
+	}
+	int pos = size++;
+	while (pos > 0) {
+	    int parent = (pos - 1) >>> 1;
+	    if (dists[parent] <= dist)
+		break;
+	    move (parent, pos);
+	    pos = parent;
+	}
+	dists[pos] = dist;
+	levels[pos] = level;
+	nodes[pos] = node;
+    }
+
+    /** Get the distance of the closest node. */
+    public double peekDistance () {
+	return dists[0];
+    }
+
+    /** Get the level of the closest node. */
+    public int peekLevel () {
+	return levels[0];
+    }
+
+    /** Get the index of the closest node. */
+    public int peekNode () {
+	return nodes[0];
+    }
+
+    /** Remove the closest node. */
+    public void remove () {
+	int last = --size;
+	double dist = dists[last];
+	int pos = 0;
+	int half = last >>> 1;
+	while (pos < half) {
+	    int child = 2 * pos + 1;
+	    if (child + 1 < last && dists[child + 1] < dists[child])
+		child++;
+	    if (dist <= dists[child])
+		break;
+	    move (child, pos);
+	    pos = child;
+	}
+	move (last, pos);
+    }
+
+    private void move (int from, int to) {
+	dists[to] = dists[from];
+	levels[to] = levels[from];
+	nodes[to] = nodes[from];
+    }
+}
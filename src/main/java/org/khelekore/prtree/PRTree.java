@@ -1,24 +1,50 @@
 package org.khelekore.prtree;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /** A Priority R-Tree, a spatial index, for N dimensions.
  *  This tree only supports bulk loading.
  *
+ *  <p>All the node bounds are calculated during load and the loaded
+ *  tree is never modified, so once load has returned any number of
+ *  threads may query the tree at the same time without any locking.
+ *  The loaded tree is safely published, the querying threads do not
+ *  need to synchronize with the loading thread. The entries and the
+ *  MBRConverter must also be safe to read from many threads.
+ *
  * @param <T> the data type stored in the PRTree
  */
 public class PRTree<T> {
 
-    private MBRConverter<T> converter;
-    private int branchFactor;
+    private final MBRConverter<T> converter;
+    private final int branchFactor;
+    private boolean cacheEntryBounds;
+    private boolean floatBounds;
+
+    /** The number of close queries that are pushed down the tree together. */
+    private static final int BATCH_GROUP_SIZE = 32;
+    /** The number of queries each task of a parallel batch runs. */
+    private static final int BATCH_TASK_SIZE = 1024;
+
+    /** The loaded tree, null until load has been called. */
+    private volatile LoadedTree loaded;
 
-    private Node<T> root;
-    private int numLeafs;
-    private int height;
+    /** The receiver of query statistics, null when they are not collected. */
+    private volatile QueryListener queryListener;
 
     /** Create a new PRTree using the specified branch factor.
      * @param converter the MBRConverter to use for this tree
@@ -29,6 +55,63 @@ public PRTree (MBRConverter<T> converter, int branchFactor) {
 	this.branchFactor = branchFactor;
     }
 
+    /** Set if this tree should keep a copy of the bounds of each entry.
+     *
+     *  <p>When the bounds are cached the tree uses 2 * dimensions extra
+     *  doubles for each entry. Queries then test the entries against
+     *  the cached bounds, the MBRConverter is only used during load and
+     *  the entry objects are only read for the matching entries.
+     *  The default is to not cache the bounds.
+     *
+     * @param cacheEntryBounds true to cache the entry bounds
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public synchronized void setCacheEntryBounds (boolean cacheEntryBounds) {
+	if (loaded != null)
+	    throw new IllegalStateException ("Tree is already loaded");
+	this.cacheEntryBounds = cacheEntryBounds;
+    }
+
+    /** Set if this tree should store the node bounds and the cached
+     *  entry bounds as floats instead of doubles.
+     *
+     *  <p>This halves the memory used by the bounds. Each min value is
+     *  rounded down and each max value is rounded up, so the float
+     *  bounds are only used to skip nodes and entries that can not
+     *  match. An entry that the float bounds can not decide is checked
+     *  with the MBRConverter, so the queries return the same results
+     *  as a tree with double bounds. The MBR of the tree is not
+     *  rounded. The default is to store doubles.
+     *
+     * @param floatBounds true to store the bounds as floats
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public synchronized void setFloatBounds (boolean floatBounds) {
+	if (loaded != null)
+	    throw new IllegalStateException ("Tree is already loaded");
+	this.floatBounds = floatBounds;
+    }
+
+    /** Set the listener that gets the statistics of each query.
+     *
+     *  <p>When a listener is set the find methods that fill a list or
+     *  call a ResultVisitor, the Iterables returned by find and the
+     *  nearestNeighbour methods that return a list count the work they
+     *  do and hand it to the listener once the query is done, see
+     *  {@link QueryCounters} for a listener that sums the statistics of
+     *  all queries. The other queries, count, intersectsAny, findWithin,
+     *  findContaining, findBatch, withinDistance, the joins, the
+     *  streams and the nearestNeighbours iterator, are not counted.
+     *  When no listener is set, the default, the queries count nothing.
+     *  The listener may be changed at any time.
+     *
+     * @param queryListener the listener to use, null to stop collecting
+     *        statistics
+     */
+    public void setQueryListener (QueryListener queryListener) {
+	this.queryListener = queryListener;
+    }
+
     /** Bulk load data into this tree.
      *
      *  Create the leaf nodes that each hold (up to) branchFactor data entries.
@@ -39,55 +122,135 @@ public PRTree (MBRConverter<T> converter, int branchFactor) {
      * @throws IllegalStateException if the tree is already loaded
      */
     public void load (Collection<? extends T> data) {
-	if (root != null)
-	    throw new IllegalStateException ("Tree is already loaded");
-	numLeafs = data.size ();
-	LeafBuilder lb = new LeafBuilder (converter.getDimensions (), branchFactor);
+	load (data, new LeafBuilder (converter.getDimensions (), branchFactor));
+    }
 
-	List<LeafNode<T>> leafNodes =
-	    new ArrayList<LeafNode<T>> (estimateSize (numLeafs));
-	lb.buildLeafs (data, new DataComparators<T> (converter),
-		       new LeafNodeFactory (), leafNodes);
+    /** Bulk load data into this tree using the threads of the given pool.
+     *
+     *  The sorting of each axis and the expansion of the partitions
+     *  that the data is split into are run as fork join tasks.
+     *  The resulting tree has the same shape as a tree loaded by
+     *  {@link #load(Collection)}.
+     *
+     * @param data the collection of data to store in the tree.
+     * @param pool the ForkJoinPool to run the build in
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public void load (Collection<? extends T> data, ForkJoinPool pool) {
+	if (pool == null)
+	    throw new NullPointerException ("pool may not be null");
+	load (data, new LeafBuilder (converter.getDimensions (), branchFactor,
+				     pool));
+    }
 
-	height = 1;
-	List<? extends Node<T>> nodes = leafNodes;
-	while (nodes.size () > branchFactor) {
-	    height++;
-	    List<InternalNode<T>> internalNodes =
-		new ArrayList<InternalNode<T>> (estimateSize (nodes.size ()));
-	    lb.buildLeafs (nodes, new InternalNodeComparators<T> (converter),
-			   new InternalNodeFactory (), internalNodes);
-	    nodes = internalNodes;
-	}
-	setRoot (nodes);
+    private synchronized void load (Collection<? extends T> data,
+				    LeafBuilder lb) {
+	if (loaded != null)
+	    throw new IllegalStateException ("Tree is already loaded");
+
+	Object[] input = data.toArray ();
+	TreeBuilder tb = new TreeBuilder (converter.getDimensions (),
+					  branchFactor, lb, cacheEntryBounds);
+	FlatTree ft = tb.build (getKeys (input));
+	int[] order = tb.getEntryOrder ();
+	Object[] entries = new Object[order.length];
+	for (int i = 0; i < order.length; i++)
+	    entries[i] = input[order[i]];
+	MBR mbr = entries.length == 0 ? null : ft.getMBR (0, 0);
+	if (floatBounds)
+	    ft = ft.toFloatBounds ();
+	// the volatile write publishes the fully built tree
+	loaded = new LoadedTree (ft, entries, mbr);
     }
 
-    private int estimateSize (int dataSize) {
-	return (int)(1.0 / (branchFactor - 1) * dataSize);
+    /** Get the loaded tree.
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    private LoadedTree getLoaded () {
+	LoadedTree lt = loaded;
+	if (lt == null)
+	    throw new IllegalStateException ("Tree is not loaded");
+	return lt;
     }
 
-    private <N extends Node<T>> void setRoot (List<N> nodes) {
-	if (nodes.size () == 0)
-	    root = new InternalNode<T> (new Object[0]);
-	else if (nodes.size () == 1) {
-	    root = nodes.get (0);
-	} else {
-	    height++;
-	    root = new InternalNode<T> (nodes.toArray ());
+    /** Read the min and max values of every entry, each value is only
+     *  read once.
+     */
+    private double[][] getKeys (Object[] entries) {
+	int dims = converter.getDimensions ();
+	double[][] keys = new double[dims * 2][entries.length];
+	for (int i = 0; i < entries.length; i++) {
+	    @SuppressWarnings("unchecked") T t = (T)entries[i];
+	    for (int j = 0; j < dims; j++) {
+		keys[j][i] = converter.getMin (j, t);
+		keys[dims + j][i] = converter.getMax (j, t);
+	    }
 	}
+	return keys;
     }
 
-    private class LeafNodeFactory
-	implements NodeFactory<LeafNode<T>> {
-	public LeafNode<T> create (Object[] data) {
-	    return new LeafNode<T> (data);
-	}
+    @SuppressWarnings("unchecked")
+    private T getEntry (LoadedTree lt, int pos) {
+	return (T)lt.entries[pos];
     }
 
-    private class InternalNodeFactory
-	implements NodeFactory<InternalNode<T>> {
-	public InternalNode<T> create (Object[] data) {
-	    return new InternalNode<T> (data);
+    /** Write this tree to a file that can be opened with
+     *  {@link MappedPRTree#open(File)}.
+     *
+     *  <p>The file holds the nodes, the bounds of every entry and one id
+     *  for each entry, the entries themselves are not stored.
+     *
+     * @param file the file to write, any existing file is replaced
+     * @param ids the converter that gives the id of each entry
+     * @throws IOException if the file can not be written
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public void write (File file, EntryIdConverter<? super T> ids)
+	throws IOException {
+	LoadedTree lt = getLoaded ();
+	FlatTree tree = lt.tree;
+	int dims = tree.getDimensions ();
+	int height = tree.getHeight ();
+	int[] numNodes = new int[height];
+	for (int level = 0; level < height; level++)
+	    numNodes[level] = tree.getNumNodes (level);
+	TreeFileWriter w = new TreeFileWriter (file);
+	try {
+	    w.writeHeader (dims, lt.entries.length, numNodes);
+	    for (int level = 0; level < height; level++) {
+		w.writeInts (tree.getChildren (level));
+		w.endSection ();
+		double[] bounds = tree.getBounds (level);
+		if (bounds != null) {
+		    w.writeDoubles (bounds);
+		} else if (level == 0 && lt.mbr != null) {
+		    // keep the MBR of the file exact
+		    for (int j = 0; j < dims; j++) {
+			w.writeDouble (lt.mbr.getMin (j));
+			w.writeDouble (lt.mbr.getMax (j));
+		    }
+		} else {
+		    // the rounded floats still hold the children
+		    for (float f : tree.getFloatBounds (level))
+			w.writeDouble (f);
+		}
+	    }
+	    double[] entryBounds = tree.getEntryBounds ();
+	    if (entryBounds != null) {
+		w.writeDoubles (entryBounds);
+	    } else {
+		for (int i = 0; i < lt.entries.length; i++) {
+		    T t = getEntry (lt, i);
+		    for (int j = 0; j < dims; j++) {
+			w.writeDouble (converter.getMin (j, t));
+			w.writeDouble (converter.getMax (j, t));
+		    }
+		}
+	    }
+	    for (int i = 0; i < lt.entries.length; i++)
+		w.writeLong (ids.getId (getEntry (lt, i)));
+	} finally {
+	    w.close ();
 	}
     }
 
@@ -109,28 +272,54 @@ public MBR2D getMBR2D () {
      * @return the MBR of the whole PRTree
      */
     public MBR getMBR () {
-	return root.getMBR (converter);
+	LoadedTree lt = loaded;
+	return lt == null ? null : lt.mbr;
     }
 
     /** Get the number of data leafs in this tree.
      * @return the total number of leafs in this tree
      */
     public int getNumberOfLeaves () {
-	return numLeafs;
+	LoadedTree lt = loaded;
+	return lt == null ? 0 : lt.entries.length;
     }
 
     /** Check if this tree is empty
      * @return true if the number of leafs is 0, false otherwise
      */
     public boolean isEmpty () {
-	return numLeafs == 0;
+	return getNumberOfLeaves () == 0;
     }
 
     /** Get the height of this tree.
-     * @return the total height of this tree
+     * @return the total height of this tree, 0 if the tree is not loaded
      */
     public int getHeight () {
-	return height;
+	LoadedTree lt = loaded;
+	return lt == null ? 0 : lt.tree.getHeight ();
+    }
+
+    /** Measure how well the loaded tree is packed.
+     *
+     *  <p>This walks the whole tree and reads the bounds of every
+     *  entry from the MBRConverter, so it is meant for tuning and
+     *  testing, not for the query path.
+     *
+     * @return the overlap, dead space and fill factor of each level
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public TreeQuality getTreeQuality () {
+	LoadedTree lt = getLoaded ();
+	int dims = converter.getDimensions ();
+	double[] entryBounds = new double[lt.entries.length * dims * 2];
+	for (int i = 0; i < lt.entries.length; i++) {
+	    T t = getEntry (lt, i);
+	    for (int j = 0; j < dims; j++) {
+		entryBounds[(i * dims + j) * 2] = converter.getMin (j, t);
+		entryBounds[(i * dims + j) * 2 + 1] = converter.getMax (j, t);
+	    }
+	}
+	return new TreeQuality (lt.tree, entryBounds, branchFactor);
     }
 
     /** Finds all objects that intersect the given rectangle and stores
@@ -152,10 +341,668 @@ public void find (double xmin, double ymin, double xmax, double ymax,
      *  the found node in the given list.
      * @param query the bounds of the query
      * @param resultNodes the list that will be filled with the result
+     * @throws IllegalStateException if the tree is not loaded
      */
     public void find (MBR query, List<T> resultNodes) {
-	validateRect (query);
-	root.find (query, converter, resultNodes);
+	if (queryListener != null) {
+	    find (query, collect (resultNodes), new QueryStats ());
+	    return;
+	}
+	double[] q = getQuery (query);
+	find (getLoaded (), 0, 0, q, resultNodes);
+    }
+
+    /** Add the matching entries below the given node to the result.
+     */
+    private void find (LoadedTree lt, int level, int node, double[] query,
+		       List<T> result) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    for (int i = start; i < end; i++) {
+		if (entryIntersects (lt, i, query))
+		    result.add (getEntry (lt, i));
+	    }
+	} else {
+	    for (int i = start; i < end; i++) {
+		if (tree.intersects (level + 1, i, query))
+		    find (lt, level + 1, i, query, result);
+	    }
+	}
+    }
+
+    /** Finds all objects that intersect the given rectangle and hands
+     *  them to the visitor, in the same order as the other find methods.
+     *
+     *  <p>The tree is searched recursively and the query is read
+     *  directly from the MBR, so a query allocates no objects of its own.
+     *  All entries of a node that is fully inside the query are handed
+     *  to the visitor without testing them.
+     *
+     * @param query the bounds of the query
+     * @param visitor the receiver of the matching entries
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean find (MBR query, ResultVisitor<? super T> visitor) {
+	if (queryListener != null)
+	    return find (query, visitor, new QueryStats ());
+	validate (query);
+	return find (getLoaded (), 0, 0, query, visitor);
+    }
+
+    /** Finds all objects that intersect the given rectangle and hands
+     *  them to the visitor, like {@link #find(MBR, ResultVisitor)},
+     *  and counts the work done in the given stats.
+     *
+     *  <p>The stats are reset before the query starts and are handed
+     *  to the query listener, if one is set, once the query is done.
+     *
+     * @param query the bounds of the query
+     * @param visitor the receiver of the matching entries
+     * @param stats the statistics to fill in
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean find (MBR query, ResultVisitor<? super T> visitor,
+			 QueryStats stats) {
+	validate (query);
+	LoadedTree lt = getLoaded ();
+	stats.reset ();
+	boolean ret = find (lt, 0, 0, query, visitor, stats);
+	queryDone (stats);
+	return ret;
+    }
+
+    /** The same search as find without stats, but counting the work.
+     */
+    private boolean find (LoadedTree lt, int level, int node, MBR query,
+			  ResultVisitor<? super T> visitor, QueryStats stats) {
+	FlatTree tree = lt.tree;
+	stats.visitNode (level);
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    for (int i = start; i < end; i++) {
+		stats.testEntry ();
+		if (entryIntersects (lt, i, query)) {
+		    stats.returnEntry ();
+		    if (!visitor.visit (getEntry (lt, i)))
+			return false;
+		}
+	    }
+	} else {
+	    int[] entryStart = tree.getEntryStart (level + 1);
+	    for (int i = start; i < end; i++) {
+		stats.testMBR ();
+		if (tree.isContainedIn (level + 1, i, query)) {
+		    for (int j = entryStart[i], e = entryStart[i + 1]; j < e; j++) {
+			stats.returnEntry ();
+			if (!visitor.visit (getEntry (lt, j)))
+			    return false;
+		    }
+		    continue;
+		}
+		if (tree.intersects (level + 1, i, query) &&
+		    !find (lt, level + 1, i, query, visitor, stats)) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    /** Hand the stats of a finished query to the listener, if any.
+     */
+    private void queryDone (QueryStats stats) {
+	QueryListener ql = queryListener;
+	if (ql != null)
+	    ql.queryDone (stats);
+    }
+
+    private boolean find (LoadedTree lt, int level, int node, MBR query,
+			  ResultVisitor<? super T> visitor) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    for (int i = start; i < end; i++) {
+		if (entryIntersects (lt, i, query) &&
+		    !visitor.visit (getEntry (lt, i)))
+		    return false;
+	    }
+	} else {
+	    int[] entryStart = tree.getEntryStart (level + 1);
+	    for (int i = start; i < end; i++) {
+		if (tree.isContainedIn (level + 1, i, query)) {
+		    if (!visitAll (lt, entryStart[i], entryStart[i + 1], visitor))
+			return false;
+		} else if (tree.intersects (level + 1, i, query) &&
+			   !find (lt, level + 1, i, query, visitor)) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    /** Hand the entries from position start to end - 1 to the visitor.
+     */
+    private boolean visitAll (LoadedTree lt, int start, int end,
+			      ResultVisitor<? super T> visitor) {
+	for (int i = start; i < end; i++)
+	    if (!visitor.visit (getEntry (lt, i)))
+		return false;
+	return true;
+    }
+
+    /** Count the objects that intersect the given rectangle.
+     *
+     *  <p>Nodes that are fully inside the query are counted without
+     *  visiting them, so large queries are much cheaper than a find.
+     *
+     * @param query the bounds of the query
+     * @return the number of entries that intersect the query
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public int count (MBR query) {
+	validate (query);
+	LoadedTree lt = getLoaded ();
+	FlatTree tree = lt.tree;
+	if (tree.isContainedIn (0, 0, query))
+	    return tree.getNumEntries ();
+	if (!tree.intersects (0, 0, query))
+	    return 0;
+	return count (lt, 0, 0, query);
+    }
+
+    /** Count the matching entries below a node that intersects the
+     *  query but is not contained in it.
+     */
+    private int count (LoadedTree lt, int level, int node, MBR query) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	int ret = 0;
+	if (level == tree.getLeafLevel ()) {
+	    for (int i = start; i < end; i++) {
+		if (entryIntersects (lt, i, query))
+		    ret++;
+	    }
+	} else {
+	    int[] entryStart = tree.getEntryStart (level + 1);
+	    for (int i = start; i < end; i++) {
+		if (tree.isContainedIn (level + 1, i, query))
+		    ret += entryStart[i + 1] - entryStart[i];
+		else if (tree.intersects (level + 1, i, query))
+		    ret += count (lt, level + 1, i, query);
+	    }
+	}
+	return ret;
+    }
+
+    /** Check if any object intersects the given rectangle.
+     *  The search stops at the first match.
+     * @param query the bounds of the query
+     * @return true if at least one entry intersects the query
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean intersectsAny (MBR query) {
+	validate (query);
+	return !find (getLoaded (), 0, 0, query, STOP);
+    }
+
+    private static final ResultVisitor<Object> STOP =
+	new ResultVisitor<Object> () {
+	public boolean visit (Object t) {
+	    return false;
+	}
+    };
+
+    /** Finds all objects that are fully inside the given rectangle and
+     *  stores them in the given list.
+     * @param query the bounds of the query
+     * @param resultNodes the list that will be filled with the result
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public void findWithin (MBR query, List<T> resultNodes) {
+	findWithin (query, collect (resultNodes));
+    }
+
+    /** Finds all objects that are fully inside the given rectangle and
+     *  hands them to the visitor.
+     *
+     *  <p>Only nodes that intersect the query are searched and all
+     *  entries of a node that is fully inside the query are handed to
+     *  the visitor without testing them.
+     *
+     * @param query the bounds of the query
+     * @param visitor the receiver of the matching entries
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean findWithin (MBR query, ResultVisitor<? super T> visitor) {
+	validate (query);
+	return findWithin (getLoaded (), 0, 0, query, visitor);
+    }
+
+    private boolean findWithin (LoadedTree lt, int level, int node, MBR query,
+				ResultVisitor<? super T> visitor) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    for (int i = start; i < end; i++) {
+		if (entryIsContainedIn (lt, i, query) &&
+		    !visitor.visit (getEntry (lt, i)))
+		    return false;
+	    }
+	} else {
+	    int[] entryStart = tree.getEntryStart (level + 1);
+	    for (int i = start; i < end; i++) {
+		if (tree.isContainedIn (level + 1, i, query)) {
+		    if (!visitAll (lt, entryStart[i], entryStart[i + 1], visitor))
+			return false;
+		} else if (tree.intersects (level + 1, i, query) &&
+			   !findWithin (lt, level + 1, i, query, visitor)) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    /** Finds all objects that fully contain the given rectangle and
+     *  stores them in the given list. Use a rectangle with the same
+     *  min and max values to find the objects that contain a point.
+     * @param query the bounds of the query
+     * @param resultNodes the list that will be filled with the result
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public void findContaining (MBR query, List<T> resultNodes) {
+	findContaining (query, collect (resultNodes));
+    }
+
+    /** Finds all objects that fully contain the given rectangle and
+     *  hands them to the visitor. Use a rectangle with the same
+     *  min and max values to find the objects that contain a point.
+     *
+     *  <p>Only nodes that contain the query are searched, since the
+     *  entries of any other node can not contain it.
+     *
+     * @param query the bounds of the query
+     * @param visitor the receiver of the matching entries
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean findContaining (MBR query,
+				   ResultVisitor<? super T> visitor) {
+	validate (query);
+	return findContaining (getLoaded (), 0, 0, query, visitor);
+    }
+
+    private boolean findContaining (LoadedTree lt, int level, int node,
+				    MBR query,
+				    ResultVisitor<? super T> visitor) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    for (int i = start; i < end; i++) {
+		if (entryContains (lt, i, query) &&
+		    !visitor.visit (getEntry (lt, i)))
+		    return false;
+	    }
+	} else {
+	    for (int i = start; i < end; i++) {
+		if (tree.contains (level + 1, i, query) &&
+		    !findContaining (lt, level + 1, i, query, visitor))
+		    return false;
+	    }
+	}
+	return true;
+    }
+
+    /** Check an entry against its cached bounds. Float bounds that do
+     *  not intersect the query rule the entry out, any other entry
+     *  without double bounds is checked with the converter.
+     */
+    private boolean entryIntersects (LoadedTree lt, int pos, MBR query) {
+	double[] entryBounds = lt.tree.getEntryBounds ();
+	if (entryBounds != null)
+	    return FlatTree.intersects (entryBounds, pos,
+					lt.tree.getDimensions (), query);
+	float[] fb = lt.tree.getFloatEntryBounds ();
+	if (fb != null &&
+	    !FlatTree.intersects (fb, pos, lt.tree.getDimensions (), query))
+	    return false;
+	return query.intersects (getEntry (lt, pos), converter);
+    }
+
+    /** Check if an entry is inside the query. Float bounds inside the
+     *  query prove that the entry is inside it.
+     */
+    private boolean entryIsContainedIn (LoadedTree lt, int pos, MBR query) {
+	double[] entryBounds = lt.tree.getEntryBounds ();
+	if (entryBounds != null)
+	    return FlatTree.isContainedIn (entryBounds, pos,
+					   lt.tree.getDimensions (), query);
+	float[] fb = lt.tree.getFloatEntryBounds ();
+	if (fb != null) {
+	    int dims = lt.tree.getDimensions ();
+	    if (FlatTree.isContainedIn (fb, pos, dims, query))
+		return true;
+	    if (!FlatTree.intersects (fb, pos, dims, query))
+		return false;
+	}
+	return isContainedIn (getEntry (lt, pos), query);
+    }
+
+    /** Check if an entry contains the query.
+     */
+    private boolean entryContains (LoadedTree lt, int pos, MBR query) {
+	double[] entryBounds = lt.tree.getEntryBounds ();
+	if (entryBounds != null)
+	    return FlatTree.contains (entryBounds, pos,
+				      lt.tree.getDimensions (), query);
+	float[] fb = lt.tree.getFloatEntryBounds ();
+	if (fb != null &&
+	    !FlatTree.contains (fb, pos, lt.tree.getDimensions (), query))
+	    return false;
+	return contains (getEntry (lt, pos), query);
+    }
+
+    private boolean isContainedIn (T t, MBR query) {
+	int dims = converter.getDimensions ();
+	for (int i = 0; i < dims; i++) {
+	    if (converter.getMin (i, t) < query.getMin (i) ||
+		converter.getMax (i, t) > query.getMax (i))
+		return false;
+	}
+	return true;
+    }
+
+    private boolean contains (T t, MBR query) {
+	int dims = converter.getDimensions ();
+	for (int i = 0; i < dims; i++) {
+	    if (converter.getMin (i, t) > query.getMin (i) ||
+		converter.getMax (i, t) < query.getMax (i))
+		return false;
+	}
+	return true;
+    }
+
+    private ResultVisitor<T> collect (final List<T> result) {
+	return new ResultVisitor<T> () {
+	    public boolean visit (T t) {
+		result.add (t);
+		return true;
+	    }
+	};
+    }
+
+    /** Finds all objects that intersect each of the given rectangles.
+     * @param queries the bounds of the queries
+     * @return a list of results for each query, the results of each
+     *         query are in the same order as the other find methods use
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public List<List<T>> findBatch (MBR[] queries) {
+	final List<List<T>> ret = new ArrayList<List<T>> (queries.length);
+	for (int i = 0; i < queries.length; i++)
+	    ret.add (new ArrayList<T> ());
+	findBatch (queries, new BatchResultVisitor<T> () {
+		public boolean visit (int query, T t) {
+		    ret.get (query).add (t);
+		    return true;
+		}
+	    });
+	return ret;
+    }
+
+    /** Finds all objects that intersect each of the given rectangles and
+     *  hands them to the visitor together with the index of the query.
+     * @param queries the bounds of the queries
+     * @param visitor the receiver of the matching entries
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     * @see #findBatch(double[], BatchResultVisitor)
+     */
+    public void findBatch (MBR[] queries,
+			   BatchResultVisitor<? super T> visitor) {
+	int dims = converter.getDimensions ();
+	double[] packed = new double[queries.length * dims * 2];
+	for (int i = 0; i < queries.length; i++)
+	    System.arraycopy (getQuery (queries[i]), 0,
+			      packed, i * dims * 2, dims * 2);
+	findBatch (packed, visitor);
+    }
+
+    /** Finds all objects that intersect each of the given rectangles and
+     *  hands them to the visitor together with the index of the query.
+     *
+     *  <p>The queries are sorted on the Z-order curve of their centers
+     *  on the first two axes and pushed down the tree in groups of 32.
+     *  The queries of a group that intersect a node are pushed down
+     *  together, so each node is read once for the group instead of
+     *  once for each query. The results of each query are handed to
+     *  the visitor in the same order as the other find methods use, but
+     *  the results of different queries are interleaved.
+     *
+     * @param queries the bounds of the queries, 2 * dimensions values
+     *        laid out as min, max, min, max... for each query
+     * @param visitor the receiver of the matching entries
+     * @throws IllegalArgumentException if the length of queries is not
+     *         a multiple of 2 * dimensions or if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public void findBatch (double[] queries,
+			   BatchResultVisitor<? super T> visitor) {
+	findBatch (queries, visitor, null);
+    }
+
+    /** Finds all objects that intersect each of the given rectangles
+     *  using the threads of the given pool.
+     *
+     *  <p>The queries are sorted on the Z-order curve of their centers
+     *  on the first two axes, so queries that are close to each other
+     *  end up next to each other. The sorted queries are pushed down
+     *  the tree in groups of 32, and each fork join task handles 1024
+     *  consecutive sorted queries. The visitor is called from the
+     *  threads of the pool, but only from one thread at a time for each
+     *  query.
+     *
+     * @param queries the bounds of the queries, 2 * dimensions values
+     *        laid out as min, max, min, max... for each query
+     * @param visitor the receiver of the matching entries, it has to be
+     *        thread safe if the pool is not null.
+     * @param pool the ForkJoinPool to run the queries in, if null the
+     *        queries are run on the calling thread
+     * @throws IllegalArgumentException if the length of queries is not
+     *         a multiple of 2 * dimensions or if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public void findBatch (final double[] queries,
+			   final BatchResultVisitor<? super T> visitor,
+			   ForkJoinPool pool) {
+	int dims = converter.getDimensions ();
+	validate (queries);
+	final LoadedTree lt = getLoaded ();
+	int numQueries = queries.length / (dims * 2);
+	final boolean[] done = new boolean[numQueries];
+	final int[] order = BatchFinder.sortQueries (queries, dims);
+	if (pool == null) {
+	    BatchFinder<T> bf =
+		new BatchFinder<T> (lt.tree, lt.entries, converter, queries,
+				    done, visitor, BATCH_GROUP_SIZE);
+	    for (int i = 0; i < numQueries; i += BATCH_GROUP_SIZE)
+		bf.find (order, i, Math.min (numQueries, i + BATCH_GROUP_SIZE));
+	    return;
+	}
+
+	final List<RecursiveAction> tasks = new ArrayList<RecursiveAction> ();
+	for (int i = 0; i < numQueries; i += BATCH_TASK_SIZE) {
+	    final int from = i;
+	    final int to = Math.min (numQueries, i + BATCH_TASK_SIZE);
+	    tasks.add (new RecursiveAction () {
+		    @Override protected void compute () {
+			BatchFinder<T> bf =
+			    new BatchFinder<T> (lt.tree, lt.entries, converter,
+						queries, done, visitor,
+						BATCH_GROUP_SIZE);
+			for (int j = from; j < to; j += BATCH_GROUP_SIZE)
+			    bf.find (order, j,
+				     Math.min (to, j + BATCH_GROUP_SIZE));
+		    }
+		});
+	}
+	pool.invoke (new RecursiveAction () {
+		@Override protected void compute () {
+		    invokeAll (tasks);
+		}
+	    });
+    }
+
+    /** Find all pairs of intersecting entries, one from this tree and
+     *  one from the other tree.
+     *
+     *  <p>Both trees are traversed at once and only node pairs that
+     *  intersect are expanded, so the upper levels are read once for
+     *  the whole join instead of once for each entry. The pairs are
+     *  handed to the visitor in no particular order.
+     *
+     * @param other the tree to join with, it must have the same number
+     *        of dimensions as this tree
+     * @param visitor the receiver of the intersecting pairs
+     * @return false if the visitor stopped the join, true otherwise
+     * @throws IllegalArgumentException if the trees have a different
+     *         number of dimensions
+     * @throws IllegalStateException if either tree is not loaded
+     */
+    public <U> boolean join (PRTree<U> other,
+			     JoinVisitor<? super T, ? super U> visitor) {
+	return join (other, visitor, null);
+    }
+
+    /** Find all pairs of intersecting entries, one from this tree and
+     *  one from the other tree, using the threads of the given pool.
+     *
+     *  <p>The top of both trees is expanded until there are enough
+     *  node pairs for the pool and each node pair is joined as one
+     *  fork join task. The visitor is called from the threads of the
+     *  pool. Once the visitor has stopped the join the tasks stop, but
+     *  other threads may hand a few more pairs to the visitor.
+     *
+     * @param other the tree to join with, it must have the same number
+     *        of dimensions as this tree
+     * @param visitor the receiver of the intersecting pairs, it has to
+     *        be thread safe if the pool is not null
+     * @param pool the ForkJoinPool to run the join in, if null the join
+     *        is run on the calling thread
+     * @return false if the visitor stopped the join, true otherwise
+     * @throws IllegalArgumentException if the trees have a different
+     *         number of dimensions
+     * @throws IllegalStateException if either tree is not loaded
+     */
+    public <U> boolean join (PRTree<U> other,
+			     JoinVisitor<? super T, ? super U> visitor,
+			     ForkJoinPool pool) {
+	if (other.converter.getDimensions () != converter.getDimensions ())
+	    throw new IllegalArgumentException ("dimensions: " +
+						converter.getDimensions () +
+						" != " +
+						other.converter.getDimensions ());
+	LoadedTree lt = getLoaded ();
+	LoadedTree olt = other.getLoaded ();
+	SpatialJoin<T, U> sj =
+	    new SpatialJoin<T, U> (lt.tree, lt.entries, converter,
+				   olt.tree, olt.entries, other.converter,
+				   false, visitor);
+	return sj.join (pool);
+    }
+
+    /** Find all pairs of different entries of this tree that intersect
+     *  each other. Each pair is handed to the visitor once, in no
+     *  particular order.
+     * @param visitor the receiver of the intersecting pairs
+     * @return false if the visitor stopped the join, true otherwise
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean selfJoin (JoinVisitor<? super T, ? super T> visitor) {
+	return selfJoin (visitor, null);
+    }
+
+    /** Find all pairs of different entries of this tree that intersect
+     *  each other using the threads of the given pool.
+     * @param visitor the receiver of the intersecting pairs, it has to
+     *        be thread safe if the pool is not null
+     * @param pool the ForkJoinPool to run the join in, if null the join
+     *        is run on the calling thread
+     * @return false if the visitor stopped the join, true otherwise
+     * @throws IllegalStateException if the tree is not loaded
+     * @see #join(PRTree, JoinVisitor, ForkJoinPool)
+     */
+    public boolean selfJoin (JoinVisitor<? super T, ? super T> visitor,
+			     ForkJoinPool pool) {
+	LoadedTree lt = getLoaded ();
+	SpatialJoin<T, T> sj =
+	    new SpatialJoin<T, T> (lt.tree, lt.entries, converter,
+				   lt.tree, lt.entries, converter,
+				   true, visitor);
+	return sj.join (pool);
+    }
+
+    /** Validate packed query bounds.
+     */
+    private void validate (double[] queries) {
+	int dims2 = converter.getDimensions () * 2;
+	if (queries.length % dims2 != 0)
+	    throw new IllegalArgumentException ("queries.length: " +
+						queries.length +
+						" is not a multiple of " +
+						dims2);
+	for (int i = 0; i < queries.length; i += 2) {
+	    if (queries[i + 1] < queries[i])
+		throw new IllegalArgumentException ("max: " + queries[i + 1] +
+						    " < min: " + queries[i] +
+						    ", axis: " + (i % dims2) / 2 +
+						    ", query: " + i / dims2);
+	}
+    }
+
+    private boolean entryIntersects (LoadedTree lt, int pos, double[] query) {
+	double[] entryBounds = lt.tree.getEntryBounds ();
+	if (entryBounds != null)
+	    return FlatTree.intersects (entryBounds, pos, query);
+	float[] fb = lt.tree.getFloatEntryBounds ();
+	if (fb != null && !FlatTree.intersects (fb, pos, query))
+	    return false;
+	return intersects (getEntry (lt, pos), query);
+    }
+
+    private boolean intersects (T t, double[] query) {
+	for (int i = 0, j = 0; i < query.length; i += 2, j++) {
+	    if (converter.getMax (j, t) < query[i] ||
+		converter.getMin (j, t) > query[i + 1])
+		return false;
+	}
+	return true;
     }
 
     /** Find all objects that intersect the given rectangle.
@@ -177,18 +1024,92 @@ public Iterable<T> find (double xmin, double ymin,
      * @param query the bounds of the query
      * @throws IllegalArgumentException if xmin &gt; xmax or ymin &gt; ymax
      * @return an iterable of the elements inside the query rectangle
+     * @throws IllegalStateException if the tree is not loaded
      */
-    public Iterable<T> find (final MBR query) {
-	validateRect (query);
+    public Iterable<T> find (MBR query) {
+	final double[] q = getQuery (query);
+	final LoadedTree lt = getLoaded ();
 	return new Iterable<T> () {
 	    public Iterator<T> iterator () {
-		return new Finder (query);
+		return new Finder (lt, q, queryListener);
 	    }
 	};
     }
 
-    private void validateRect (MBR query) {
-	for (int i = 0; i < converter.getDimensions (); i++) {
+    /** Get a Spliterator over all objects that intersect the given
+     *  rectangle, in the same order as the other find methods.
+     *
+     *  <p>The spliterator walks the tree with a stack of the subtrees
+     *  left to visit and trySplit hands the first half of that stack
+     *  to the new spliterator, so a parallel stream splits the query
+     *  along the tree. All entries of a node that is fully inside the
+     *  query are returned without testing them.
+     *
+     * @param query the bounds of the query
+     * @return an ordered spliterator of the matching entries
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public Spliterator<T> spliterator (MBR query) {
+	MBR q = new SimpleMBR (getQuery (query));
+	LoadedTree lt = getLoaded ();
+	QuerySpliterator s = new QuerySpliterator (lt, q, 1);
+	if (lt.tree.intersects (0, 0, q))
+	    s.push (0, 0, lt.tree.isContainedIn (0, 0, q));
+	return s;
+    }
+
+    /** Get a stream of all objects that intersect the given rectangle.
+     * @param query the bounds of the query
+     * @return a sequential stream, use parallel () to split the query
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     * @see #spliterator(MBR)
+     */
+    public Stream<T> stream (MBR query) {
+	return StreamSupport.stream (spliterator (query), false);
+    }
+
+    /** Get a Spliterator over all the objects in this tree, in leaf
+     *  order. Entries that are next to each other in the tree are
+     *  close to each other in space, so each part of a split holds a
+     *  spatially compact group. The spliterator is sized.
+     * @return an ordered and sized spliterator of all entries
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public Spliterator<T> spliterator () {
+	@SuppressWarnings("unchecked") Spliterator<T> s = (Spliterator<T>)
+	    Spliterators.spliterator (getLoaded ().entries,
+				      Spliterator.ORDERED |
+				      Spliterator.IMMUTABLE);
+	return s;
+    }
+
+    /** Get a stream of all the objects in this tree, in leaf order.
+     * @return a sequential stream, use parallel () to split the scan
+     * @throws IllegalStateException if the tree is not loaded
+     * @see #spliterator()
+     */
+    public Stream<T> stream () {
+	return StreamSupport.stream (spliterator (), false);
+    }
+
+    /** Validate the query and get its bounds as min, max, min, max...
+     */
+    private double[] getQuery (MBR query) {
+	validate (query);
+	int dims = converter.getDimensions ();
+	double[] ret = new double[dims * 2];
+	for (int i = 0; i < dims; i++) {
+	    ret[i * 2] = query.getMin (i);
+	    ret[i * 2 + 1] = query.getMax (i);
+	}
+	return ret;
+    }
+
+    private void validate (MBR query) {
+	int dims = converter.getDimensions ();
+	for (int i = 0; i < dims; i++) {
 	    double max = query.getMax (i);
 	    double min = query.getMin (i);
 	    if (max < min)
@@ -200,18 +1121,34 @@ private void validateRect (MBR query) {
     }
 
     private class Finder implements Iterator<T> {
-	private MBR mbr;
+	private final LoadedTree lt;
+	private final FlatTree tree;
+	private final double[] query;
 
-	private List<T> ts = new ArrayList<T> ();
-	private List<Node<T>> toVisit = new ArrayList<Node<T>> ();
+	// the nodes to visit, as level and node index
+	private int[] levels;
+	private int[] nodes;
+	private int toVisit;
+	// the entries of the current leaf node
+	private int entryPos;
+	private int entryEnd;
 	private T next;
 
-	private int visitedNodes = 0;
-	private int dataNodesVisited = 0;
+	// the statistics of the query, only counted when there is a listener
+	private final QueryListener listener;
+	private final QueryStats stats;
+	private boolean done;
 
-	public Finder (MBR mbr) {
-	    this.mbr = mbr;
-	    toVisit.add (root);
+	public Finder (LoadedTree lt, double[] query, QueryListener listener) {
+	    this.lt = lt;
+	    this.tree = lt.tree;
+	    this.query = query;
+	    this.listener = listener;
+	    stats = listener == null ? null : new QueryStats ();
+	    int size = tree.getHeight () * branchFactor + 1;
+	    levels = new int[size];
+	    nodes = new int[size];
+	    push (0, 0);
 	    findNext ();
 	}
 
@@ -226,17 +1163,53 @@ public T next () {
 	}
 
 	private void findNext () {
-	    while (ts.isEmpty () && !toVisit.isEmpty ()) {
-		Node<T> n = toVisit.remove (toVisit.size () - 1);
-		visitedNodes++;
-		n.expand (mbr, converter, ts, toVisit);
+	    while (true) {
+		while (entryPos < entryEnd) {
+		    int pos = entryPos++;
+		    if (stats != null)
+			stats.testEntry ();
+		    if (entryIntersects (lt, pos, query)) {
+			next = getEntry (lt, pos);
+			if (stats != null)
+			    stats.returnEntry ();
+			return;
+		    }
+		}
+		if (toVisit == 0) {
+		    if (stats != null && !done)
+			listener.queryDone (stats);
+		    done = true;
+		    next = null;
+		    return;
+		}
+		toVisit--;
+		int level = levels[toVisit];
+		int node = nodes[toVisit];
+		if (stats != null)
+		    stats.visitNode (level);
+		int[] children = tree.getChildren (level);
+		if (level == tree.getLeafLevel ()) {
+		    entryPos = children[node];
+		    entryEnd = children[node + 1];
+		} else {
+		    // push in reverse so that the first child is visited first
+		    for (int i = children[node + 1] - 1; i >= children[node]; i--)
+			if (tree.intersects (level + 1, i, query))
+			    push (level + 1, i);
+		    if (stats != null)
+			stats.testMBRs (children[node + 1] - children[node]);
+		}
 	    }
-	    if (ts.isEmpty ()) {
-		next = null;
-	    } else {
-		next = ts.remove (ts.size () - 1);
-		dataNodesVisited++;
+	}
+
+	private void push (int level, int node) {
+	    if (toVisit == levels.length) {
+		levels = Arrays.copyOf (levels, toVisit * 2);
+		nodes = Arrays.copyOf (nodes, toVisit * 2);
 	    }
+	    levels[toVisit] = level;
+	    nodes[toVisit] = node;
+	    toVisit++;
 	}
 
 	public void remove () {
@@ -244,7 +1217,142 @@ public void remove () {
 	}
     }
 
+    private class QuerySpliterator implements Spliterator<T> {
+	private final LoadedTree lt;
+	private final FlatTree tree;
+	private final MBR query;
+
+	// the subtrees to visit, the next one is on top
+	private int[] levels;
+	private int[] nodes;
+	private boolean[] inside;
+	private int toVisit;
+	// the entries of the current leaf node or inside node
+	private int entryPos;
+	private int entryEnd;
+	private boolean entriesInside;
+
+	public QuerySpliterator (LoadedTree lt, MBR query, int size) {
+	    this.lt = lt;
+	    this.tree = lt.tree;
+	    this.query = query;
+	    size = Math.max (size, tree.getHeight () * branchFactor + 1);
+	    levels = new int[size];
+	    nodes = new int[size];
+	    inside = new boolean[size];
+	}
+
+	public boolean tryAdvance (Consumer<? super T> action) {
+	    while (true) {
+		while (entryPos < entryEnd) {
+		    int pos = entryPos++;
+		    if (entriesInside || entryIntersects (lt, pos, query)) {
+			action.accept (getEntry (lt, pos));
+			return true;
+		    }
+		}
+		if (toVisit == 0)
+		    return false;
+		expand ();
+	    }
+	}
+
+	/** Replace the subtree on top of the stack with its matching
+	 *  children, or with its entries if it is a leaf or inside the
+	 *  query.
+	 */
+	private void expand () {
+	    toVisit--;
+	    int level = levels[toVisit];
+	    int node = nodes[toVisit];
+	    if (inside[toVisit]) {
+		int[] entryStart = tree.getEntryStart (level);
+		entryPos = entryStart[node];
+		entryEnd = entryStart[node + 1];
+		entriesInside = true;
+	    } else if (level == tree.getLeafLevel ()) {
+		int[] children = tree.getChildren (level);
+		entryPos = children[node];
+		entryEnd = children[node + 1];
+		entriesInside = false;
+	    } else {
+		int[] children = tree.getChildren (level);
+		// push in reverse so that the first child is visited first
+		for (int i = children[node + 1] - 1; i >= children[node]; i--) {
+		    if (tree.isContainedIn (level + 1, i, query))
+			push (level + 1, i, true);
+		    else if (tree.intersects (level + 1, i, query))
+			push (level + 1, i, false);
+		}
+	    }
+	}
+
+	private void push (int level, int node, boolean in) {
+	    if (toVisit == levels.length) {
+		levels = Arrays.copyOf (levels, toVisit * 2);
+		nodes = Arrays.copyOf (nodes, toVisit * 2);
+		inside = Arrays.copyOf (inside, toVisit * 2);
+	    }
+	    levels[toVisit] = level;
+	    nodes[toVisit] = node;
+	    inside[toVisit] = in;
+	    toVisit++;
+	}
+
+	public Spliterator<T> trySplit () {
+	    // a single subtree is opened up until there is something to share
+	    while (toVisit == 1 && entryPos == entryEnd)
+		expand ();
+	    if (toVisit == 0) {
+		if (entryEnd - entryPos < 2)
+		    return null;
+		QuerySpliterator prefix = new QuerySpliterator (lt, query, 1);
+		int mid = (entryPos + entryEnd) >>> 1;
+		prefix.setEntries (entryPos, mid, entriesInside);
+		entryPos = mid;
+		return prefix;
+	    }
+	    // the current entries and the top half of the stack come first
+	    int n = toVisit / 2;
+	    QuerySpliterator prefix = new QuerySpliterator (lt, query, n);
+	    prefix.setEntries (entryPos, entryEnd, entriesInside);
+	    for (int i = toVisit - n; i < toVisit; i++)
+		prefix.push (levels[i], nodes[i], inside[i]);
+	    toVisit -= n;
+	    entryPos = entryEnd;
+	    return prefix;
+	}
+
+	private void setEntries (int start, int end, boolean in) {
+	    entryPos = start;
+	    entryEnd = end;
+	    entriesInside = in;
+	}
+
+	/** The number of entries below the subtrees that are left,
+	 *  an upper bound of the number of matches.
+	 */
+	public long estimateSize () {
+	    long size = entryEnd - entryPos;
+	    for (int i = 0; i < toVisit; i++) {
+		int[] entryStart = tree.getEntryStart (levels[i]);
+		size += entryStart[nodes[i] + 1] - entryStart[nodes[i]];
+	    }
+	    return size;
+	}
+
+	public int characteristics () {
+	    return ORDERED | IMMUTABLE;
+	}
+    }
+
     /** Get the nearest neighbour of the given point
+     *
+     *  <p>Each node distance is calculated once and the search stops
+     *  when no node left can hold an entry closer than the maxHits-th
+     *  entry found, see DistanceCalculator for the distances this
+     *  requires. Entries at equal distance are returned in tree order.
+     *
      * @param dc the DistanceCalculator to use.
      * @param filter a NodeFilter that can be used to ignore some leaf nodes.
      * @param maxHits the maximum number of entries to find.
@@ -256,10 +1364,313 @@ public List<DistanceResult<T>> nearestNeighbour (DistanceCalculator<T> dc,
 						     NodeFilter<T> filter,
 						     int maxHits,
 						     PointND p) {
-	if (isEmpty ())
+	if (queryListener != null)
+	    return nearestNeighbour (dc, filter, maxHits, p, new QueryStats ());
+	LoadedTree lt = loaded;
+	if (lt == null || lt.entries.length == 0)
 	    return Collections.emptyList ();
 	NearestNeighbour<T> nn =
-	    new NearestNeighbour<T> (converter, filter, maxHits, root, dc, p);
+	    new NearestNeighbour<T> (lt.tree, lt.entries, filter, maxHits, dc, p,
+				     null);
 	return nn.find ();
     }
+
+    /** Get the nearest neighbour of the given point, like
+     *  {@link #nearestNeighbour(DistanceCalculator, NodeFilter, int, PointND)},
+     *  and count the work done in the given stats.
+     *
+     *  <p>The stats are reset before the query starts and are handed
+     *  to the query listener, if one is set, once the query is done.
+     *
+     * @param dc the DistanceCalculator to use.
+     * @param filter a NodeFilter that can be used to ignore some leaf nodes.
+     * @param maxHits the maximum number of entries to find.
+     * @param p the point to find the nearest neighbour to.
+     * @param stats the statistics to fill in
+     * @return A List of DistanceResult with up to maxHits results.
+     *         Will return an empty list if this tree is empty.
+     */
+    public List<DistanceResult<T>> nearestNeighbour (DistanceCalculator<T> dc,
+						     NodeFilter<T> filter,
+						     int maxHits,
+						     PointND p,
+						     QueryStats stats) {
+	stats.reset ();
+	LoadedTree lt = loaded;
+	List<DistanceResult<T>> ret;
+	if (lt == null || lt.entries.length == 0) {
+	    ret = Collections.emptyList ();
+	} else {
+	    NearestNeighbour<T> nn =
+		new NearestNeighbour<T> (lt.tree, lt.entries, filter, maxHits,
+					 dc, p, stats);
+	    ret = nn.find ();
+	}
+	queryDone (stats);
+	return ret;
+    }
+
+    /** Get the entries in increasing distance from the given point.
+     *
+     *  <p>The entries are found lazily, each step of the iteration only
+     *  expands the nodes that may hold the next entry, so the caller
+     *  can stop at any time and only pays for the entries consumed.
+     *
+     *  <p>The order is exact for the distances that DistanceCalculator
+     *  describes.
+     *
+     * @param dc the DistanceCalculator to use.
+     * @param filter a NodeFilter that can be used to ignore some leaf nodes.
+     * @param p the point to find the nearest neighbours to.
+     * @return an iterable of the entries and their distances, sorted
+     *         by distance
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public Iterable<DistanceResult<T>> nearestNeighbours (DistanceCalculator<T> dc,
+							  NodeFilter<T> filter,
+							  PointND p) {
+	return nearestNeighbours (dc, filter, p, Double.POSITIVE_INFINITY);
+    }
+
+    /** Get the entries that are within the given distance from the point,
+     *  in increasing distance from the point.
+     *
+     *  <p>This works like
+     *  {@link #nearestNeighbours(DistanceCalculator, NodeFilter, PointND)}
+     *  but the iteration ends at the first entry that is further away
+     *  than maxDistance and nodes further away are never expanded.
+     *
+     * @param dc the DistanceCalculator to use.
+     * @param filter a NodeFilter that can be used to ignore some leaf nodes.
+     * @param p the point to find the nearest neighbours to.
+     * @param maxDistance the largest distance of any returned entry
+     * @return an iterable of the entries and their distances, sorted
+     *         by distance
+     * @throws IllegalArgumentException if maxDistance is negative or NaN
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public Iterable<DistanceResult<T>> nearestNeighbours (final DistanceCalculator<T> dc,
+							  final NodeFilter<T> filter,
+							  final PointND p,
+							  final double maxDistance) {
+	if (!(maxDistance >= 0))
+	    throw new IllegalArgumentException ("Bad max distance: " +
+						maxDistance);
+	final LoadedTree lt = getLoaded ();
+	return new Iterable<DistanceResult<T>> () {
+	    public Iterator<DistanceResult<T>> iterator () {
+		return new DistanceBrowser<T> (lt.tree, lt.entries, filter,
+					       dc, p, maxDistance);
+	    }
+	};
+    }
+
+    /** Finds all objects that are within the given distance from a
+     *  point and stores them in the given list.
+     * @param p the center of the query
+     * @param r the largest distance of any returned entry
+     * @param dc the DistanceCalculator to use
+     * @param resultNodes the list that will be filled with the result
+     * @throws IllegalArgumentException if r is negative or NaN
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public void withinDistance (PointND p, double r, DistanceCalculator<T> dc,
+				List<T> resultNodes) {
+	withinDistance (p, r, dc, collect (resultNodes));
+    }
+
+    /** Finds all objects that are within the given distance from a
+     *  point and hands them to the visitor, in tree order.
+     *
+     *  <p>Nodes, and entries if their bounds are cached, are skipped
+     *  when the MINDIST from the point to their bounds is larger than
+     *  r. The other entries are tested with the DistanceCalculator,
+     *  which has to follow the rules described in
+     *  {@link DistanceCalculator}. The search allocates no objects
+     *  except for a copy of the point.
+     *
+     * @param p the center of the query
+     * @param r the largest distance of any returned entry
+     * @param dc the DistanceCalculator to use
+     * @param visitor the receiver of the matching entries
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if r is negative or NaN
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean withinDistance (PointND p, double r,
+				   DistanceCalculator<T> dc,
+				   ResultVisitor<? super T> visitor) {
+	validateDistance (r);
+	LoadedTree lt = getLoaded ();
+	if (lt.entries.length == 0)
+	    return true;
+	double[] point = new double[converter.getDimensions ()];
+	for (int i = 0; i < point.length; i++)
+	    point[i] = p.getOrd (i);
+	// a little slack so that rounding never skips an entry at distance r
+	double r2 = r * r * (1 + 1e-12);
+	if (lt.tree.getMinDist (0, 0, point) > r2)
+	    return true;
+	return withinDistance (lt, 0, 0, p, point, r, r2, dc, visitor);
+    }
+
+    private boolean withinDistance (LoadedTree lt, int level, int node,
+				    PointND p, double[] point,
+				    double r, double r2,
+				    DistanceCalculator<T> dc,
+				    ResultVisitor<? super T> visitor) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    double[] entryBounds = tree.getEntryBounds ();
+	    float[] floatEntryBounds = tree.getFloatEntryBounds ();
+	    for (int i = start; i < end; i++) {
+		if (entryBounds != null &&
+		    FlatTree.getMinDist (entryBounds, i, point) > r2)
+		    continue;
+		if (floatEntryBounds != null &&
+		    FlatTree.getMinDist (floatEntryBounds, i, point) > r2)
+		    continue;
+		T t = getEntry (lt, i);
+		if (dc.distanceTo (t, p) <= r && !visitor.visit (t))
+		    return false;
+	    }
+	} else {
+	    for (int i = start; i < end; i++) {
+		if (tree.getMinDist (level + 1, i, point) <= r2 &&
+		    !withinDistance (lt, level + 1, i, p, point, r, r2,
+				     dc, visitor))
+		    return false;
+	    }
+	}
+	return true;
+    }
+
+    /** Finds all objects whose bounds are within the given distance
+     *  from a box and stores them in the given list.
+     * @param query the box
+     * @param r the largest distance between the query and the bounds
+     *        of any returned entry
+     * @param resultNodes the list that will be filled with the result
+     * @throws IllegalArgumentException if min &gt; max for any axis or
+     *         if r is negative or NaN
+     * @throws IllegalStateException if the tree is not loaded
+     * @see #withinDistance(MBR, double, ResultVisitor)
+     */
+    public void withinDistance (MBR query, double r, List<T> resultNodes) {
+	withinDistance (query, r, collect (resultNodes));
+    }
+
+    /** Finds all objects whose bounds are within the given euclidean
+     *  distance from a box and hands them to the visitor, in tree order.
+     *  A query box with the same min and max values gives a circle or
+     *  sphere query, a larger box gives a box with rounded corners.
+     *
+     *  <p>Nodes that are further away than r are skipped and all
+     *  entries of a node whose every point is within r are handed to
+     *  the visitor without testing them. Like the other box queries
+     *  the query is read directly from the MBR and the search
+     *  allocates no objects.
+     *
+     * @param query the box
+     * @param r the largest distance between the query and the bounds
+     *        of any returned entry
+     * @param visitor the receiver of the matching entries
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if min &gt; max for any axis or
+     *         if r is negative or NaN
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean withinDistance (MBR query, double r,
+				   ResultVisitor<? super T> visitor) {
+	validate (query);
+	validateDistance (r);
+	LoadedTree lt = getLoaded ();
+	if (lt.entries.length == 0 || lt.tree.getMinDist (0, 0, query) > r * r)
+	    return true;
+	return withinDistance (lt, 0, 0, query, r * r, visitor);
+    }
+
+    private boolean withinDistance (LoadedTree lt, int level, int node,
+				    MBR query, double r2,
+				    ResultVisitor<? super T> visitor) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    for (int i = start; i < end; i++) {
+		if (entryMinDist (lt, i, query, r2) <= r2 &&
+		    !visitor.visit (getEntry (lt, i)))
+		    return false;
+	    }
+	} else {
+	    int[] entryStart = tree.getEntryStart (level + 1);
+	    for (int i = start; i < end; i++) {
+		if (tree.getMinDist (level + 1, i, query) > r2)
+		    continue;
+		if (tree.getMaxDist (level + 1, i, query) <= r2) {
+		    if (!visitAll (lt, entryStart[i], entryStart[i + 1], visitor))
+			return false;
+		} else if (!withinDistance (lt, level + 1, i, query, r2,
+					    visitor)) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    /** Get the squared distance from the bounds of an entry to a box.
+     *  Float bounds that are further away than r2 rule the entry out,
+     *  the returned value is then only known to be larger than r2.
+     */
+    private double entryMinDist (LoadedTree lt, int pos, MBR query,
+				 double r2) {
+	FlatTree tree = lt.tree;
+	int dims = tree.getDimensions ();
+	double[] entryBounds = tree.getEntryBounds ();
+	if (entryBounds != null)
+	    return FlatTree.getMinDist (entryBounds, pos, dims, query);
+	float[] fb = tree.getFloatEntryBounds ();
+	if (fb != null) {
+	    double d = FlatTree.getMinDist (fb, pos, dims, query);
+	    if (d > r2)
+		return d;
+	}
+	T t = getEntry (lt, pos);
+	double res = 0;
+	for (int i = 0; i < dims; i++) {
+	    double dr = 0;
+	    if (query.getMax (i) < converter.getMin (i, t))
+		dr = converter.getMin (i, t) - query.getMax (i);
+	    else if (query.getMin (i) > converter.getMax (i, t))
+		dr = query.getMin (i) - converter.getMax (i, t);
+	    res += dr * dr;
+	}
+	return res;
+    }
+
+    private void validateDistance (double r) {
+	if (!(r >= 0))
+	    throw new IllegalArgumentException ("Bad distance: " + r);
+    }
+
+    /** The result of a load, never modified after it is created.
+     */
+    private static class LoadedTree {
+	private final FlatTree tree;
+	/** The entries in leaf order. */
+	private final Object[] entries;
+	/** The MBR of the whole tree, null if the tree is empty. */
+	private final MBR mbr;
+
+	public LoadedTree (FlatTree tree, Object[] entries, MBR mbr) {
+	    this.tree = tree;
+	    this.entries = entries;
+	    this.mbr = mbr;
+	}
+    }
 }
@@ -0,0 +1,311 @@
+package org.khelekore.prtree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/** A Priority R-Tree for 2 dimensional data.
+ *
+ *  <p>The tree is built the same way as a PRTree with two dimensions,
+ *  but the queries are written for two dimensions only. The bounds of
+ *  the nodes and of the entries are stored in packed arrays, four
+ *  values for each rectangle, and tested without any loops or calls
+ *  through the MBR interfaces. The MBRConverter2D is only used during
+ *  load. The tree uses 4 doubles for each entry for the cached bounds.
+ *
+ *  <p>Like PRTree, once load has returned any number of threads may
+ *  query the tree at the same time without any locking.
+ *
+ * @param <T> the data type stored in the PRTree2D
+ */
+public class PRTree2D<T> {
+    private final MBRConverter2D<T> converter;
+    private final int branchFactor;
+
+    /** The loaded tree, null until load has been called. */
+    private volatile LoadedTree loaded;
+
+    /** Create a new PRTree2D using the specified branch factor.
+     * @param converter the MBRConverter2D to use for this tree
+     * @param branchFactor the number of child nodes for each internal node.
+     */
+    public PRTree2D (MBRConverter2D<T> converter, int branchFactor) {
+	this.converter = converter;
+	this.branchFactor = branchFactor;
+    }
+
+    /** Bulk load data into this tree.
+     * @param data the collection of data to store in the tree.
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public synchronized void load (Collection<? extends T> data) {
+	if (loaded != null)
+	    throw new IllegalStateException ("Tree is already loaded");
+
+	Object[] input = data.toArray ();
+	double[][] keys = new double[4][input.length];
+	for (int i = 0; i < input.length; i++) {
+	    @SuppressWarnings("unchecked") T t = (T)input[i];
+	    keys[0][i] = converter.getMinX (t);
+	    keys[1][i] = converter.getMinY (t);
+	    keys[2][i] = converter.getMaxX (t);
+	    keys[3][i] = converter.getMaxY (t);
+	}
+	TreeBuilder tb = new TreeBuilder (2, branchFactor,
+					  new LeafBuilder (2, branchFactor),
+					  true);
+	FlatTree ft = tb.build (keys);
+	int[] order = tb.getEntryOrder ();
+	Object[] entries = new Object[order.length];
+	for (int i = 0; i < order.length; i++)
+	    entries[i] = input[order[i]];
+	MBR2D mbr = null;
+	if (entries.length > 0) {
+	    double[] b = ft.getBounds (0);
+	    mbr = new SimpleMBR2D (b[0], b[2], b[1], b[3]);
+	}
+	// the volatile write publishes the fully built tree
+	loaded = new LoadedTree (ft, entries, mbr);
+    }
+
+    /** Get the loaded tree.
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    private LoadedTree getLoaded () {
+	LoadedTree lt = loaded;
+	if (lt == null)
+	    throw new IllegalStateException ("Tree is not loaded");
+	return lt;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T getEntry (LoadedTree lt, int pos) {
+	return (T)lt.entries[pos];
+    }
+
+    /** Get the minimum bounding rectangle of the data stored in this tree.
+     * @return the MBR of the whole tree, null if the tree is empty or
+     *         not loaded
+     */
+    public MBR2D getMBR2D () {
+	LoadedTree lt = loaded;
+	return lt == null ? null : lt.mbr;
+    }
+
+    /** Get the number of data leafs in this tree.
+     * @return the total number of leafs in this tree
+     */
+    public int getNumberOfLeaves () {
+	LoadedTree lt = loaded;
+	return lt == null ? 0 : lt.entries.length;
+    }
+
+    /** Check if this tree is empty
+     * @return true if the number of leafs is 0, false otherwise
+     */
+    public boolean isEmpty () {
+	return getNumberOfLeaves () == 0;
+    }
+
+    /** Get the height of this tree.
+     * @return the total height of this tree, 0 if the tree is not loaded
+     */
+    public int getHeight () {
+	LoadedTree lt = loaded;
+	return lt == null ? 0 : lt.tree.getHeight ();
+    }
+
+    /** Finds all objects that intersect the given rectangle and stores
+     *  the found node in the given list.
+     * @param query the bounds of the query
+     * @param resultNodes the list that will be filled with the result
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public void find (MBR2D query, List<T> resultNodes) {
+	find (query.getMinX (), query.getMinY (),
+	      query.getMaxX (), query.getMaxY (), resultNodes);
+    }
+
+    /** Finds all objects that intersect the given rectangle and stores
+     *  the found node in the given list.
+     * @param xmin the minimum value of the x coordinate when searching
+     * @param ymin the minimum value of the y coordinate when searching
+     * @param xmax the maximum value of the x coordinate when searching
+     * @param ymax the maximum value of the y coordinate when searching
+     * @param resultNodes the list that will be filled with the result
+     * @throws IllegalArgumentException if xmin &gt; xmax or ymin &gt; ymax
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public void find (double xmin, double ymin, double xmax, double ymax,
+		      List<T> resultNodes) {
+	find (xmin, ymin, xmax, ymax, collect (resultNodes));
+    }
+
+    private ResultVisitor<T> collect (final List<T> result) {
+	return new ResultVisitor<T> () {
+	    public boolean visit (T t) {
+		result.add (t);
+		return true;
+	    }
+	};
+    }
+
+    /** Finds all objects that intersect the given rectangle and hands
+     *  them to the visitor.
+     *
+     *  <p>All entries of a node that is fully inside the query are
+     *  handed to the visitor without testing them.
+     *
+     * @param xmin the minimum value of the x coordinate when searching
+     * @param ymin the minimum value of the y coordinate when searching
+     * @param xmax the maximum value of the x coordinate when searching
+     * @param ymax the maximum value of the y coordinate when searching
+     * @param visitor the receiver of the matching entries
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if xmin &gt; xmax or ymin &gt; ymax
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean find (double xmin, double ymin, double xmax, double ymax,
+			 ResultVisitor<? super T> visitor) {
+	validate (xmin, ymin, xmax, ymax);
+	return find (getLoaded (), 0, 0, xmin, ymin, xmax, ymax, visitor);
+    }
+
+    private boolean find (LoadedTree lt, int level, int node,
+			  double xmin, double ymin, double xmax, double ymax,
+			  ResultVisitor<? super T> visitor) {
+	FlatTree tree = lt.tree;
+	int[] children = tree.getChildren (level);
+	int start = children[node];
+	int end = children[node + 1];
+	if (level == tree.getLeafLevel ()) {
+	    double[] b = tree.getEntryBounds ();
+	    for (int i = start; i < end; i++) {
+		int o = i * 4;
+		if (b[o] <= xmax && b[o + 1] >= xmin &&
+		    b[o + 2] <= ymax && b[o + 3] >= ymin &&
+		    !visitor.visit (getEntry (lt, i)))
+		    return false;
+	    }
+	} else {
+	    double[] b = tree.getBounds (level + 1);
+	    int[] entryStart = tree.getEntryStart (level + 1);
+	    for (int i = start; i < end; i++) {
+		int o = i * 4;
+		if (b[o] > xmax || b[o + 1] < xmin ||
+		    b[o + 2] > ymax || b[o + 3] < ymin)
+		    continue;
+		if (b[o] >= xmin && b[o + 1] <= xmax &&
+		    b[o + 2] >= ymin && b[o + 3] <= ymax) {
+		    for (int j = entryStart[i], e = entryStart[i + 1]; j < e; j++)
+			if (!visitor.visit (getEntry (lt, j)))
+			    return false;
+		} else if (!find (lt, level + 1, i, xmin, ymin, xmax, ymax,
+				  visitor)) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    private void validate (double xmin, double ymin, double xmax, double ymax) {
+	if (xmax < xmin)
+	    throw new IllegalArgumentException ("xmax: " + xmax +
+						" < xmin: " + xmin);
+	if (ymax < ymin)
+	    throw new IllegalArgumentException ("ymax: " + ymax +
+						" < ymin: " + ymin);
+    }
+
+    /** Get the nearest neighbours of the given point.
+     *  The DistanceCalculator has to follow the rules described in
+     *  {@link DistanceCalculator}.
+     * @param dc the DistanceCalculator to use.
+     * @param filter a NodeFilter that can be used to ignore some leaf nodes.
+     * @param maxHits the maximum number of entries to find.
+     * @param x the x coordinate of the point
+     * @param y the y coordinate of the point
+     * @return A List of DistanceResult with up to maxHits results,
+     *         sorted by distance.
+     *         Will return an empty list if this tree is empty or,
+     *         like PRTree, if it is not loaded.
+     */
+    public List<DistanceResult<T>> nearestNeighbour (DistanceCalculator<T> dc,
+						     NodeFilter<T> filter,
+						     int maxHits,
+						     double x, double y) {
+	LoadedTree lt = loaded;
+	if (lt == null)
+	    return Collections.emptyList ();
+	int size = Math.min (maxHits, lt.entries.length);
+	if (size <= 0)
+	    return Collections.emptyList ();
+	FlatTree tree = lt.tree;
+	PointND p = new SimplePointND (x, y);
+	ResultHeap results = new ResultHeap (size);
+	NodeHeap queue = new NodeHeap (64);
+	queue.add (0, 0, 0);
+	int leafLevel = tree.getLeafLevel ();
+	while (!queue.isEmpty ()) {
+	    double maxDist = results.getMaxDistance ();
+	    if (queue.peekDistance () > maxDist)
+		break;
+	    int level = queue.peekLevel ();
+	    int node = queue.peekNode ();
+	    queue.remove ();
+	    int[] children = tree.getChildren (level);
+	    boolean leaf = level == leafLevel;
+	    double[] b = leaf ? tree.getEntryBounds () : tree.getBounds (level + 1);
+	    for (int i = children[node], e = children[node + 1]; i < e; i++) {
+		double d = getMinDist (b, i, x, y);
+		if (d > maxDist)
+		    continue;
+		if (!leaf) {
+		    queue.add (level + 1, i, d);
+		    continue;
+		}
+		T t = getEntry (lt, i);
+		if (filter.accept (t)) {
+		    results.add (i, dc.distanceTo (t, p));
+		    maxDist = results.getMaxDistance ();
+		}
+	    }
+	}
+
+	results.sort ();
+	List<DistanceResult<T>> ret =
+	    new ArrayList<DistanceResult<T>> (results.size ());
+	for (int i = 0; i < results.size (); i++)
+	    ret.add (new DistanceResult<T> (getEntry (lt, results.getPosition (i)),
+					    results.getDistance (i)));
+	return ret;
+    }
+
+    /** Get the euclidean distance from a point to a rectangle. */
+    private static double getMinDist (double[] b, int node,
+				      double x, double y) {
+	int o = node * 4;
+	double dx = Math.max (0, Math.max (b[o] - x, x - b[o + 1]));
+	double dy = Math.max (0, Math.max (b[o + 2] - y, y - b[o + 3]));
+	return Math.sqrt (dx * dx + dy * dy);
+    }
+
+    /** The result of a load, never modified after it is created.
+     */
+    private static class LoadedTree {
+	private final FlatTree tree;
+	/** The entries in leaf order. */
+	private final Object[] entries;
+	/** The MBR of the whole tree, null if the tree is empty. */
+	private final MBR2D mbr;
+
+	public LoadedTree (FlatTree tree, Object[] entries, MBR2D mbr) {
+	    this.tree = tree;
+	    this.entries = entries;
+	    this.mbr = mbr;
+	}
+    }
+}
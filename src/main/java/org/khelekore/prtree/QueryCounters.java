@@ -0,0 +1,78 @@
+package org.khelekore.prtree;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** A QueryListener that sums the statistics of all queries.
+ *
+ *  <p>The sums are kept in LongAdders so many threads can add to them
+ *  without contending on one counter.
+ */
+public class QueryCounters implements QueryListener {
+    private final LongAdder queries = new LongAdder ();
+    private final LongAdder nodesVisited = new LongAdder ();
+    private final LongAdder mbrTests = new LongAdder ();
+    private final LongAdder entriesTested = new LongAdder ();
+    private final LongAdder entriesReturned = new LongAdder ();
+
+    public void queryDone (QueryStats stats) {
+	queries.increment ();
+	nodesVisited.add (stats.getNodesVisited ());
+	mbrTests.add (stats.getMBRTests ());
+	entriesTested.add (stats.getEntriesTested ());
+	entriesReturned.add (stats.getEntriesReturned ());
+    }
+
+    /** Set all the sums to zero.
+     *  Queries that finish during the reset may be partly counted.
+     */
+    public void reset () {
+	queries.reset ();
+	nodesVisited.reset ();
+	mbrTests.reset ();
+	entriesTested.reset ();
+	entriesReturned.reset ();
+    }
+
+    /** Get the number of finished queries.
+     * @return the number of queries
+     */
+    public long getQueries () {
+	return queries.sum ();
+    }
+
+    /** Get the number of nodes visited by all queries.
+     * @return the number of visited nodes
+     */
+    public long getNodesVisited () {
+	return nodesVisited.sum ();
+    }
+
+    /** Get the number of node bound tests done by all queries.
+     * @return the number of node bound tests
+     */
+    public long getMBRTests () {
+	return mbrTests.sum ();
+    }
+
+    /** Get the number of entries tested by all queries.
+     * @return the number of tested entries
+     */
+    public long getEntriesTested () {
+	return entriesTested.sum ();
+    }
+
+    /** Get the number of entries returned by all queries.
+     * @return the number of returned entries
+     */
+    public long getEntriesReturned () {
+	return entriesReturned.sum ();
+    }
+
+    @Override public String toString () {
+	return getClass ().getSimpleName () + "{queries: " + getQueries () +
+	    ", nodesVisited: " + getNodesVisited () +
+	    ", mbrTests: " + getMBRTests () +
+	    ", entriesTested: " + getEntriesTested () +
+	    ", entriesReturned: " + getEntriesReturned () + "}";
+    }
+}
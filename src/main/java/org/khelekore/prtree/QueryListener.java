@@ -0,0 +1,15 @@
+package org.khelekore.prtree;
+
+/** A receiver of the statistics of finished queries.
+ *
+ *  <p>The listener is called on the thread that ran the query, so a
+ *  listener of a tree that is queried by many threads has to be
+ *  thread safe.
+ */
+public interface QueryListener {
+    /** Handle the statistics of one finished query.
+     *  The stats may be reused once this method returns.
+     * @param stats the work done by the query
+     */
+    void queryDone (QueryStats stats);
+}
@@ -0,0 +1,107 @@
+package org.khelekore.prtree;
+
+import java.util.Arrays;
+
+/** The amount of work done by one query.
+ *
+ *  <p>A query that is given a QueryStats resets it before it starts
+ *  and counts the nodes it visits on each level, the node bounds it
+ *  tests, the entries it tests and the entries it returns. Entries of
+ *  a node that is fully inside the query are returned without being
+ *  tested. A QueryStats may be reused for many queries but it may
+ *  only be used by one query at a time.
+ */
+public class QueryStats {
+    private long[] nodesVisited = new long[8];
+    private long mbrTests;
+    private long entriesTested;
+    private long entriesReturned;
+
+    /** Set all the counts to zero.
+     */
+    public void reset () {
+	Arrays.fill (nodesVisited, 0);
+	mbrTests = 0;
+	entriesTested = 0;
+	entriesReturned = 0;
+    }
+
+    void visitNode (int level) {
+	if (level >= nodesVisited.length)
+	    nodesVisited = Arrays.copyOf (nodesVisited, level * 2);
+	nodesVisited[level]++;
+    }
+
+    void testMBR () {
+	mbrTests++;
+    }
+
+    void testMBRs (int count) {
+	mbrTests += count;
+    }
+
+    void testEntry () {
+	entriesTested++;
+    }
+
+    void returnEntry () {
+	entriesReturned++;
+    }
+
+    void returnEntries (int count) {
+	entriesReturned += count;
+    }
+
+    /** Get the number of nodes visited on the given level.
+     *  A node is visited when its children or entries are examined.
+     * @param level the level, 0 is the root
+     * @return the number of visited nodes on the level
+     */
+    public long getNodesVisited (int level) {
+	return level < nodesVisited.length ? nodesVisited[level] : 0;
+    }
+
+    /** Get the number of nodes visited on all levels.
+     * @return the number of visited nodes
+     */
+    public long getNodesVisited () {
+	long ret = 0;
+	for (long n : nodesVisited)
+	    ret += n;
+	return ret;
+    }
+
+    /** Get the number of times the bounds of a child node were tested.
+     *  Each child node that is tested counts once, also when the query
+     *  checks both if the child is inside the query and if it
+     *  intersects the query.
+     * @return the number of node bound tests
+     */
+    public long getMBRTests () {
+	return mbrTests;
+    }
+
+    /** Get the number of leaf entries that were tested.
+     * @return the number of tested entries
+     */
+    public long getEntriesTested () {
+	return entriesTested;
+    }
+
+    /** Get the number of entries handed to the caller.
+     * @return the number of returned entries
+     */
+    public long getEntriesReturned () {
+	return entriesReturned;
+    }
+
+    @Override public String toString () {
+	int levels = nodesVisited.length;
+	while (levels > 0 && nodesVisited[levels - 1] == 0)
+	    levels--;
+	return getClass ().getSimpleName () + "{nodesVisited: " +
+	    Arrays.toString (Arrays.copyOf (nodesVisited, levels)) +
+	    ", mbrTests: " + mbrTests + ", entriesTested: " + entriesTested +
+	    ", entriesReturned: " + entriesReturned + "}";
+    }
+}
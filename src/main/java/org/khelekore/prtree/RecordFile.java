@@ -0,0 +1,226 @@
+package org.khelekore.prtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/** Temporary files of fixed size records used by the external build.
+ *
+ *  <p>Each record holds a sequence number, an id and the bounds of
+ *  the element laid out as min, max, min, max..., all little endian.
+ *  The sequence number gives the order of the elements in the
+ *  in memory build and is used to break ties when sorting.
+ */
+class RecordFile {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Do not instantiate
+     */
+    private RecordFile () {
+	// empty
+    }
+
+    /** Get the size of a record.
+     * @param dimensions the number of dimensions
+     * @return the record size in bytes
+     */
+    public static int getRecordSize (int dimensions) {
+	return 16 + dimensions * 16;
+    }
+
+    private static ByteBuffer getBuffer (int recordSize) {
+	ByteBuffer buf =
+	    ByteBuffer.allocateDirect (BUFFER_SIZE / recordSize * recordSize);
+	buf.order (ByteOrder.LITTLE_ENDIAN);
+	return buf;
+    }
+
+    /** Appends records to a file. */
+    public static class Writer {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buf;
+	private final int recordSize;
+	private long count;
+
+	public Writer (File f, int dimensions) throws IOException {
+	    file = new RandomAccessFile (f, "rw");
+	    file.setLength (0);
+	    channel = file.getChannel ();
+	    recordSize = getRecordSize (dimensions);
+	    buf = getBuffer (recordSize);
+	}
+
+	public void write (long seq, long id, double[] bounds)
+	    throws IOException {
+	    write (seq, id, bounds, 0);
+	}
+
+	/** Write one record.
+	 * @param seq the sequence number
+	 * @param id the id
+	 * @param bounds an array that holds the bounds
+	 * @param offset the position of the bounds in the array
+	 * @throws IOException if writing fails
+	 */
+	public void write (long seq, long id, double[] bounds, int offset)
+	    throws IOException {
+	    if (buf.remaining () < recordSize)
+		flush ();
+	    buf.putLong (seq);
+	    buf.putLong (id);
+	    for (int i = 0, e = recordSize / 8 - 2; i < e; i++)
+		buf.putDouble (bounds[offset + i]);
+	    count++;
+	}
+
+	public long getCount () {
+	    return count;
+	}
+
+	private void flush () throws IOException {
+	    buf.flip ();
+	    while (buf.hasRemaining ())
+		channel.write (buf);
+	    buf.clear ();
+	}
+
+	public void close () throws IOException {
+	    try {
+		flush ();
+	    } finally {
+		file.close ();
+	    }
+	}
+    }
+
+    /** Reads the records of a file in order. */
+    public static class Reader {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buf;
+	private final double[] bounds;
+	private long seq;
+	private long id;
+
+	public Reader (File f, int dimensions) throws IOException {
+	    file = new RandomAccessFile (f, "r");
+	    channel = file.getChannel ();
+	    buf = getBuffer (getRecordSize (dimensions));
+	    buf.flip ();
+	    bounds = new double[dimensions * 2];
+	}
+
+	/** Read the next record.
+	 * @return false if there are no more records
+	 * @throws IOException if reading fails
+	 */
+	public boolean next () throws IOException {
+	    if (!buf.hasRemaining ()) {
+		buf.clear ();
+		while (buf.hasRemaining ()) {
+		    if (channel.read (buf) < 0)
+			break;
+		}
+		buf.flip ();
+		if (!buf.hasRemaining ())
+		    return false;
+	    }
+	    seq = buf.getLong ();
+	    id = buf.getLong ();
+	    for (int i = 0; i < bounds.length; i++)
+		bounds[i] = buf.getDouble ();
+	    return true;
+	}
+
+	public long getSeq () {
+	    return seq;
+	}
+
+	public long getId () {
+	    return id;
+	}
+
+	/** Get the bounds of the current record.
+	 * @return the bounds, the array is reused for the next record
+	 */
+	public double[] getBounds () {
+	    return bounds;
+	}
+
+	public void close () throws IOException {
+	    file.close ();
+	}
+    }
+
+    /** Reads runs of records at any position of a file. */
+    public static class RangeReader {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int recordSize;
+	private final ByteBuffer buf;
+	private final long[] ids;
+	private final double[] bounds;
+
+	/** Create a new RangeReader.
+	 * @param f the file to read
+	 * @param dimensions the number of dimensions
+	 * @param maxRecords the largest number of records read at once
+	 * @throws IOException if the file can not be opened
+	 */
+	public RangeReader (File f, int dimensions, int maxRecords)
+	    throws IOException {
+	    file = new RandomAccessFile (f, "r");
+	    channel = file.getChannel ();
+	    recordSize = getRecordSize (dimensions);
+	    buf = ByteBuffer.allocateDirect (recordSize * maxRecords);
+	    buf.order (ByteOrder.LITTLE_ENDIAN);
+	    ids = new long[maxRecords];
+	    bounds = new double[maxRecords * dimensions * 2];
+	}
+
+	/** Read count records starting at the given record.
+	 * @param start the first record to read
+	 * @param count the number of records to read
+	 * @throws IOException if reading fails
+	 */
+	public void read (long start, int count) throws IOException {
+	    buf.clear ();
+	    buf.limit (count * recordSize);
+	    long pos = start * recordSize;
+	    while (buf.hasRemaining ()) {
+		if (channel.read (buf, pos + buf.position ()) < 0)
+		    throw new IOException ("Truncated record file");
+	    }
+	    buf.flip ();
+	    int dims2 = recordSize / 8 - 2;
+	    for (int i = 0; i < count; i++) {
+		buf.getLong ();
+		ids[i] = buf.getLong ();
+		for (int j = 0; j < dims2; j++)
+		    bounds[i * dims2 + j] = buf.getDouble ();
+	    }
+	}
+
+	/** Get the ids of the last read records.
+	 * @return the ids, the array is reused for the next read
+	 */
+	public long[] getIds () {
+	    return ids;
+	}
+
+	/** Get the bounds of the last read records.
+	 * @return the bounds, the array is reused for the next read
+	 */
+	public double[] getBounds () {
+	    return bounds;
+	}
+
+	public void close () throws IOException {
+	    file.close ();
+	}
+    }
+}
@@ -0,0 +1,108 @@
+package org.khelekore.prtree;
+
+/** Keeps the entries with the smallest distances in a bounded binary
+ *  max heap, the entry with the largest distance is on top so the
+ *  current k-th distance is always available for pruning.
+ *
+ *  <p>The entries are stored as positions in primitive arrays. Equal
+ *  distances are ordered by position so the result does not depend on
+ *  the order the entries are added in.
+ */
+class ResultHeap {
+    private final int maxSize;
+    private final double[] dists;
+    private final int[] positions;
+    private int size;
+
+    /** Create a new ResultHeap.
+     * @param maxSize the maximum number of entries to keep
+     */
+    public ResultHeap (int maxSize) {
+	this.maxSize = maxSize;
+	dists = new double[maxSize];
+	positions = new int[maxSize];
+    }
+
+    public int size () {
+	return size;
+    }
+
+    /** Get the largest distance an entry may have to be kept.
+     * @return the k-th distance if the heap is full, infinity otherwise
+     */
+    public double getMaxDistance () {
+	return size == maxSize ? dists[0] : Double.POSITIVE_INFINITY;
+    }
+
+    /** Add an entry, if the heap is full the entry replaces the entry
+     *  with the largest distance if it comes before it.
+     * @param pos the position of the entry
+     * @param dist the distance to the entry
+     */
+    public void add (int pos, double dist) {
+	if (size < maxSize) {
+	    int i = size++;
+	    while (i > 0) {
+		int parent = (i - 1) >>> 1;
+		if (!greater (dist, pos, dists[parent], positions[parent]))
+		    break;
+		dists[i] = dists[parent];
+		positions[i] = positions[parent];
+		i = parent;
+	    }
+	    dists[i] = dist;
+	    positions[i] = pos;
+	} else if (greater (dists[0], positions[0], dist, pos)) {
+	    siftDown (0, dist, pos, size);
+	}
+    }
+
+    private void siftDown (int i, double dist, int pos, int n) {
+	int half = n >>> 1;
+	while (i < half) {
+	    int child = 2 * i + 1;
+	    if (child + 1 < n &&
+		greater (dists[child + 1], positions[child + 1],
+			 dists[child], positions[child]))
+		child++;
+	    if (!greater (dists[child], positions[child], dist, pos))
+		break;
+	    dists[i] = dists[child];
+	    positions[i] = positions[child];
+	    i = child;
+	}
+	dists[i] = dist;
+	positions[i] = pos;
+    }
+
+    private static boolean greater (double d1, int p1, double d2, int p2) {
+	return d1 > d2 || (d1 == d2 && p1 > p2);
+    }
+
+    /** Sort the entries by increasing distance, the heap can not be
+     *  added to after this.
+     */
+    public void sort () {
+	for (int n = size - 1; n > 0; n--) {
+	    double dist = dists[n];
+	    int pos = positions[n];
+	    dists[n] = dists[0];
+	    positions[n] = positions[0];
+	    siftDown (0, dist, pos, n);
+	}
+    }
+
+    /** Get the distance of an entry.
+     * @param i the index of the entry, after sort the closest entry is 0
+     */
+    public double getDistance (int i) {
+	return dists[i];
+    }
+
+    /** Get the position of an entry.
+     * @param i the index of the entry, after sort the closest entry is 0
+     */
+    public int getPosition (int i) {
+	return positions[i];
+    }
+}
@@ -0,0 +1,12 @@
+package org.khelekore.prtree;
+
+/** A receiver of query results.
+ * @param <T> the data type stored in the PRTree
+ */
+public interface ResultVisitor<T> {
+    /** Handle one entry that matches the query.
+     * @param t the matching entry
+     * @return true to continue the query, false to stop it
+     */
+    boolean visit (T t);
+}
@@ -0,0 +1,477 @@
+package org.khelekore.prtree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** A spatial index made of several independent PRTrees, the shards.
+ *
+ *  <p>During load the data space is split into the shards like a kd
+ *  tree: the entries are sorted on the center of the axis where the
+ *  centers are most spread out and split at the position that gives
+ *  each side its share of the shards, and each side is split again
+ *  until there is one part for each shard. Each part is bulk loaded
+ *  into its own PRTree, the shards can be loaded in parallel.
+ *
+ *  <p>Queries only go to the shards whose MBR intersects the query.
+ *  The nearest neighbour search visits the shards in increasing
+ *  distance and stops when the next shard is further away than the
+ *  maxHits-th entry found so far.
+ *
+ *  <p>A single shard can be rebuilt with {@link #rebuildShard}, the
+ *  other shards are not touched. The queries use the MBR of each
+ *  shard tree, so the results are correct even if a rebuilt shard
+ *  holds entries outside of its part of the split, but the shards
+ *  stay small and apart only if the entries are given to the shard
+ *  that {@link #getShardIndex} picks for them.
+ *
+ *  <p>Like PRTree, once load has returned any number of threads may
+ *  query the tree at the same time. A rebuild replaces the shard with
+ *  one atomic write, a query sees either the old or the new shard.
+ *
+ * @param <T> the data type stored in the tree
+ */
+public class ShardedPRTree<T> {
+    private final MBRConverter<T> converter;
+    private final int branchFactor;
+    private final int numShards;
+
+    /** The loaded shards, null until load has been called. */
+    private volatile Shards<T> loaded;
+
+    /** Create a new ShardedPRTree.
+     * @param converter the MBRConverter to use for this tree
+     * @param branchFactor the number of child nodes for each internal node.
+     * @param numShards the number of shards to split the data into
+     */
+    public ShardedPRTree (MBRConverter<T> converter, int branchFactor,
+			  int numShards) {
+	if (numShards < 1)
+	    throw new IllegalArgumentException ("numShards: " + numShards +
+						" < 1");
+	this.converter = converter;
+	this.branchFactor = branchFactor;
+	this.numShards = numShards;
+    }
+
+    /** Split the data into the shards and bulk load each shard.
+     * @param data the collection of data to store in the tree.
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public synchronized void load (Collection<? extends T> data) {
+	List<List<T>> parts = new ArrayList<List<T>> (numShards);
+	Splits splits = split (data, parts);
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	PRTree<T>[] trees = (PRTree<T>[])new PRTree[numShards];
+	for (int i = 0; i < numShards; i++)
+	    trees[i] = build (parts.get (i));
+	publish (trees, splits);
+    }
+
+    /** Split the data into the shards and bulk load the shards in
+     *  parallel using the threads of the given pool.
+     * @param data the collection of data to store in the tree.
+     * @param pool the ForkJoinPool to run the shard loads in
+     * @throws IllegalStateException if the tree is already loaded
+     */
+    public synchronized void load (Collection<? extends T> data,
+				   ForkJoinPool pool) {
+	if (pool == null)
+	    throw new NullPointerException ("pool may not be null");
+	final List<List<T>> parts = new ArrayList<List<T>> (numShards);
+	Splits splits = split (data, parts);
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	final PRTree<T>[] trees = (PRTree<T>[])new PRTree[numShards];
+	pool.invoke (new RecursiveAction () {
+		@Override protected void compute () {
+		    List<RecursiveAction> tasks =
+			new ArrayList<RecursiveAction> (numShards);
+		    for (int i = 0; i < numShards; i++) {
+			final int shard = i;
+			tasks.add (new RecursiveAction () {
+				@Override protected void compute () {
+				    trees[shard] = build (parts.get (shard));
+				}
+			    });
+		    }
+		    invokeAll (tasks);
+		}
+	    });
+	publish (trees, splits);
+    }
+
+    /** Split the data and set up the split planes. Nothing is stored
+     *  in the tree until the shards are published.
+     * @param data the entries to split
+     * @param parts the list that gets the entries of each shard
+     * @return the split planes
+     */
+    private Splits split (Collection<? extends T> data, List<List<T>> parts) {
+	if (loaded != null)
+	    throw new IllegalStateException ("Tree is already loaded");
+	Object[] input = data.toArray ();
+	int dims = converter.getDimensions ();
+	double[][] centers = new double[dims][input.length];
+	int[] order = new int[input.length];
+	for (int i = 0; i < input.length; i++) {
+	    @SuppressWarnings("unchecked") T t = (T)input[i];
+	    for (int axis = 0; axis < dims; axis++)
+		centers[axis][i] = getCenter (axis, t);
+	    order[i] = i;
+	}
+	Splits splits = new Splits (numShards - 1);
+	split (input, centers, order, 0, input.length, numShards, parts,
+	       splits);
+	return splits;
+    }
+
+    /** Split the entries order[start] to order[end - 1] into count shards.
+     * @return the split node or the encoded shard for the part
+     */
+    private int split (Object[] input, double[][] centers, int[] order,
+		       int start, int end, int count, List<List<T>> parts,
+		       Splits splits) {
+	if (count == 1) {
+	    List<T> part = new ArrayList<T> (end - start);
+	    for (int i = start; i < end; i++) {
+		@SuppressWarnings("unchecked") T t = (T)input[order[i]];
+		part.add (t);
+	    }
+	    parts.add (part);
+	    return -parts.size ();
+	}
+	int axis = getWidestAxis (centers, order, start, end);
+	double[] c = centers[axis];
+	double[] key = new double[end - start];
+	for (int i = start; i < end; i++)
+	    key[i - start] = c[order[i]];
+	int[] perm = IndexSorter.sort (key, false);
+	int[] sorted = new int[end - start];
+	for (int i = 0; i < perm.length; i++)
+	    sorted[i] = order[start + perm[i]];
+	System.arraycopy (sorted, 0, order, start, sorted.length);
+
+	int lowCount = count / 2;
+	int pos = start + (int)((long)(end - start) * lowCount / count);
+	double value;
+	if (pos < end) {
+	    value = c[order[pos]];
+	    // entries with the same center all go to the higher side
+	    while (pos > start && c[order[pos - 1]] == value)
+		pos--;
+	} else {
+	    value = Double.POSITIVE_INFINITY;
+	}
+	int node = splits.size++;
+	splits.axis[node] = axis;
+	splits.value[node] = value;
+	splits.lower[node] = split (input, centers, order, start, pos, lowCount,
+				    parts, splits);
+	splits.higher[node] = split (input, centers, order, pos, end,
+				     count - lowCount, parts, splits);
+	return node;
+    }
+
+    private int getWidestAxis (double[][] centers, int[] order,
+			       int start, int end) {
+	int ret = 0;
+	double widest = -1;
+	for (int axis = 0; axis < centers.length; axis++) {
+	    double[] c = centers[axis];
+	    double min = Double.POSITIVE_INFINITY;
+	    double max = Double.NEGATIVE_INFINITY;
+	    for (int i = start; i < end; i++) {
+		min = Math.min (min, c[order[i]]);
+		max = Math.max (max, c[order[i]]);
+	    }
+	    if (max - min > widest) {
+		widest = max - min;
+		ret = axis;
+	    }
+	}
+	return ret;
+    }
+
+    private double getCenter (int axis, T t) {
+	return (converter.getMin (axis, t) + converter.getMax (axis, t)) / 2;
+    }
+
+    private PRTree<T> build (Collection<? extends T> data) {
+	PRTree<T> tree = new PRTree<T> (converter, branchFactor);
+	tree.load (data);
+	return tree;
+    }
+
+    private void publish (PRTree<T>[] trees, Splits splits) {
+	MBR[] mbrs = new MBR[trees.length];
+	for (int i = 0; i < trees.length; i++)
+	    mbrs[i] = trees[i].getMBR ();
+	// the volatile write publishes the fully built shards
+	loaded = new Shards<T> (trees, mbrs, splits);
+    }
+
+    /** Get the loaded shards.
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    private Shards<T> getLoaded () {
+	Shards<T> s = loaded;
+	if (s == null)
+	    throw new IllegalStateException ("Tree is not loaded");
+	return s;
+    }
+
+    /** Get the number of shards.
+     * @return the number of shards
+     */
+    public int getNumberOfShards () {
+	return numShards;
+    }
+
+    /** Get the tree of one shard.
+     * @param shard the index of the shard
+     * @return the loaded tree of the shard
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public PRTree<T> getShard (int shard) {
+	return getLoaded ().trees[shard];
+    }
+
+    /** Get the shard that the load split would put an entry in.
+     *  Entries are routed on the center of their bounds.
+     * @param t the entry
+     * @return the index of the shard
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public int getShardIndex (T t) {
+	Splits splits = getLoaded ().splits;
+	int node = numShards == 1 ? -1 : 0;
+	while (node >= 0)
+	    node = getCenter (splits.axis[node], t) < splits.value[node] ?
+		splits.lower[node] : splits.higher[node];
+	return -(node + 1);
+    }
+
+    /** Rebuild one shard with new data, the other shards are kept.
+     *  Queries that run during the rebuild use the old shard.
+     * @param shard the index of the shard
+     * @param data the new entries of the shard
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public synchronized void rebuildShard (int shard,
+					   Collection<? extends T> data) {
+	Shards<T> s = getLoaded ();
+	PRTree<T>[] trees = s.trees.clone ();
+	trees[shard] = build (data);
+	publish (trees, s.splits);
+    }
+
+    /** Get the minimum bounding rectangle of the data stored in this tree.
+     * @return the MBR of the whole tree, null if the tree is empty or
+     *         not loaded
+     */
+    public MBR getMBR () {
+	Shards<T> s = loaded;
+	if (s == null)
+	    return null;
+	MBR ret = null;
+	for (MBR mbr : s.mbrs)
+	    if (mbr != null)
+		ret = ret == null ? mbr : ret.union (mbr);
+	return ret;
+    }
+
+    /** Get the number of data leafs in this tree.
+     * @return the total number of leafs in this tree
+     */
+    public int getNumberOfLeaves () {
+	Shards<T> s = loaded;
+	if (s == null)
+	    return 0;
+	int ret = 0;
+	for (PRTree<T> tree : s.trees)
+	    ret += tree.getNumberOfLeaves ();
+	return ret;
+    }
+
+    /** Check if this tree is empty
+     * @return true if the number of leafs is 0, false otherwise
+     */
+    public boolean isEmpty () {
+	return getNumberOfLeaves () == 0;
+    }
+
+    /** Finds all objects that intersect the given rectangle and stores
+     *  the found node in the given list.
+     * @param query the bounds of the query
+     * @param resultNodes the list that will be filled with the result
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public void find (MBR query, final List<T> resultNodes) {
+	find (query, new ResultVisitor<T> () {
+		public boolean visit (T t) {
+		    resultNodes.add (t);
+		    return true;
+		}
+	    });
+    }
+
+    /** Finds all objects that intersect the given rectangle and hands
+     *  them to the visitor, shard by shard.
+     * @param query the bounds of the query
+     * @param visitor the receiver of the matching entries
+     * @return false if the visitor stopped the query, true otherwise
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public boolean find (MBR query, ResultVisitor<? super T> visitor) {
+	validate (query);
+	Shards<T> s = getLoaded ();
+	for (int i = 0; i < s.trees.length; i++) {
+	    MBR mbr = s.mbrs[i];
+	    if (mbr != null && mbr.intersects (query) &&
+		!s.trees[i].find (query, visitor))
+		return false;
+	}
+	return true;
+    }
+
+    /** Count the objects that intersect the given rectangle.
+     * @param query the bounds of the query
+     * @return the number of entries that intersect the query
+     * @throws IllegalArgumentException if min &gt; max for any axis
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public int count (MBR query) {
+	validate (query);
+	Shards<T> s = getLoaded ();
+	int ret = 0;
+	for (int i = 0; i < s.trees.length; i++) {
+	    MBR mbr = s.mbrs[i];
+	    if (mbr != null && mbr.intersects (query))
+		ret += s.trees[i].count (query);
+	}
+	return ret;
+    }
+
+    /** Check the query here, a query with min &gt; max never
+     *  intersects a shard MBR so no shard would check it.
+     */
+    private void validate (MBR query) {
+	int dims = converter.getDimensions ();
+	for (int i = 0; i < dims; i++) {
+	    double max = query.getMax (i);
+	    double min = query.getMin (i);
+	    if (max < min)
+		throw new IllegalArgumentException ("max: " + max +
+						    " < min: " + min +
+						    ", axis: " + i +
+						    ", query: " + query);
+	}
+    }
+
+    /** Get the nearest neighbours of the given point from all shards.
+     *
+     *  <p>The shards are searched in increasing distance from the
+     *  point and each shard is only searched out to the distance of
+     *  the maxHits-th entry found so far.
+     *
+     * @param dc the DistanceCalculator to use.
+     * @param filter a NodeFilter that can be used to ignore some leaf nodes.
+     * @param maxHits the maximum number of entries to find.
+     * @param p the point to find the nearest neighbour to.
+     * @return A List of DistanceResult with up to maxHits results,
+     *         sorted by distance.
+     *         Will return an empty list if this tree is empty.
+     * @throws IllegalStateException if the tree is not loaded
+     */
+    public List<DistanceResult<T>> nearestNeighbour (DistanceCalculator<T> dc,
+						     NodeFilter<T> filter,
+						     int maxHits,
+						     PointND p) {
+	Shards<T> s = getLoaded ();
+	if (maxHits <= 0)
+	    return Collections.emptyList ();
+	final double[] dist = new double[s.trees.length];
+	List<Integer> order = new ArrayList<Integer> (s.trees.length);
+	for (int i = 0; i < s.trees.length; i++) {
+	    if (s.mbrs[i] == null)
+		continue;
+	    dist[i] = Math.sqrt (MinDist.get (s.mbrs[i], p));
+	    order.add (i);
+	}
+	Collections.sort (order, new Comparator<Integer> () {
+		public int compare (Integer i1, Integer i2) {
+		    return Double.compare (dist[i1], dist[i2]);
+		}
+	    });
+
+	List<DistanceResult<T>> ret = new ArrayList<DistanceResult<T>> ();
+	double maxDist = Double.POSITIVE_INFINITY;
+	for (int shard : order) {
+	    if (dist[shard] > maxDist)
+		break;
+	    int found = 0;
+	    for (DistanceResult<T> dr :
+		     s.trees[shard].nearestNeighbours (dc, filter, p, maxDist)) {
+		ret.add (dr);
+		if (++found == maxHits)
+		    break;
+	    }
+	    if (ret.size () >= maxHits) {
+		Collections.sort (ret, BY_DISTANCE);
+		ret.subList (maxHits, ret.size ()).clear ();
+		maxDist = ret.get (maxHits - 1).getDistance ();
+	    }
+	}
+	Collections.sort (ret, BY_DISTANCE);
+	return ret;
+    }
+
+    private static final Comparator<DistanceResult<?>> BY_DISTANCE =
+	new Comparator<DistanceResult<?>> () {
+	public int compare (DistanceResult<?> d1, DistanceResult<?> d2) {
+	    return Double.compare (d1.getDistance (), d2.getDistance ());
+	}
+    };
+
+    /** The loaded shard trees and their MBRs, never modified after
+     *  it is created.
+     */
+    private static class Shards<T> {
+	private final PRTree<T>[] trees;
+	/** The MBR of each shard, null for an empty shard. */
+	private final MBR[] mbrs;
+	private final Splits splits;
+
+	public Shards (PRTree<T>[] trees, MBR[] mbrs, Splits splits) {
+	    this.trees = trees;
+	    this.mbrs = mbrs;
+	    this.splits = splits;
+	}
+    }
+
+    /** The split planes, a kd tree with numShards leaves stored in
+     * arrays. Node i sends a center that is lower than value[i]
+     * on axis[i] to lower[i] and other centers to higher[i].
+     * A child that is less than 0 is the shard -(child + 1).
+     */
+    private static class Splits {
+	private final int[] axis;
+	private final double[] value;
+	private final int[] lower;
+	private final int[] higher;
+	private int size;
+
+	public Splits (int numSplits) {
+	    axis = new int[numSplits];
+	    value = new double[numSplits];
+	    lower = new int[numSplits];
+	    higher = new int[numSplits];
+	}
+    }
+}
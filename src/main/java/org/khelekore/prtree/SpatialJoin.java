@@ -0,0 +1,406 @@
+package org.khelekore.prtree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Finds the pairs of intersecting entries of two trees by traversing
+ *  both trees at once.
+ *
+ *  <p>Starting with the two roots, each pair of intersecting nodes is
+ *  expanded together. Only the children that intersect the
+ *  intersection of the two nodes are kept, each side is sorted on the
+ *  min value of the first axis and the intersecting pairs of children
+ *  are found with a plane sweep. When one tree is higher than the
+ *  other, only the side that still has nodes is expanded.
+ *
+ *  <p>In a self join both sides are the same tree. A node paired with
+ *  itself is swept against itself and each child is only paired with
+ *  the children after it, so each pair of entries is found once and
+ *  no entry is paired with itself.
+ *
+ * @param <T> the data type stored in the first tree
+ * @param <U> the data type stored in the second tree
+ */
+class SpatialJoin<T, U> {
+    private final Side<T> a;
+    private final Side<U> b;
+    private final boolean self;
+    private final int dims;
+    private final JoinVisitor<? super T, ? super U> visitor;
+    private final AtomicBoolean stopped;
+    /** The intersection of the current node pair at each depth */
+    private final double[][] rects;
+
+    /** The depth where node pairs are collected instead of expanded */
+    private int splitDepth = Integer.MAX_VALUE;
+    private List<Pair> pairs;
+
+    /** The number of node pairs to create for each thread of the pool. */
+    private static final int PAIRS_PER_THREAD = 16;
+
+    /** Create a new SpatialJoin.
+     * @param treeA the first tree
+     * @param entriesA the entries of the first tree in leaf order
+     * @param converterA the converter of the first tree
+     * @param treeB the second tree
+     * @param entriesB the entries of the second tree in leaf order
+     * @param converterB the converter of the second tree
+     * @param self true if both sides are the same tree
+     * @param visitor the receiver of the pairs
+     */
+    public SpatialJoin (FlatTree treeA, Object[] entriesA,
+			MBRConverter<T> converterA,
+			FlatTree treeB, Object[] entriesB,
+			MBRConverter<U> converterB,
+			boolean self, JoinVisitor<? super T, ? super U> visitor) {
+	this (new Side<T> (treeA, entriesA, converterA,
+			   getDepths (treeA, treeB)),
+	      new Side<U> (treeB, entriesB, converterB,
+			   getDepths (treeA, treeB)),
+	      self, visitor, new AtomicBoolean ());
+    }
+
+    /** Each step down the trees expands at least one side, so the
+     *  depth is at most the height of the higher tree.
+     */
+    private static int getDepths (FlatTree treeA, FlatTree treeB) {
+	return Math.max (treeA.getHeight (), treeB.getHeight ()) + 1;
+    }
+
+    private SpatialJoin (Side<T> a, Side<U> b, boolean self,
+			 JoinVisitor<? super T, ? super U> visitor,
+			 AtomicBoolean stopped) {
+	this.a = a;
+	this.b = b;
+	this.self = self;
+	this.visitor = visitor;
+	this.stopped = stopped;
+	dims = a.tree.getDimensions ();
+	rects = new double[a.bounds.length][dims * 2];
+    }
+
+    /** Create a join with its own scratch space that shares the trees,
+     *  the visitor and the stop flag with this join.
+     */
+    private SpatialJoin<T, U> copy () {
+	return new SpatialJoin<T, U> (a.copy (), b.copy (), self, visitor,
+				      stopped);
+    }
+
+    /** Run the join.
+     * @param pool the pool to run the join in, null to run it on the
+     *        calling thread
+     * @return false if the visitor stopped the join, true otherwise
+     */
+    public boolean join (ForkJoinPool pool) {
+	if (a.entries.length == 0 || b.entries.length == 0)
+	    return true;
+	List<Pair> todo = new ArrayList<Pair> ();
+	double[] rect = new double[dims * 2];
+	a.tree.copyBounds (0, 0, rect, 0);
+	double[] rootB = new double[dims * 2];
+	b.tree.copyBounds (0, 0, rootB, 0);
+	if (!FlatTree.intersects (rect, 0, rootB, 0, dims))
+	    return true;
+	intersect (rect, 0, rootB, 0, rect);
+	todo.add (new Pair (0, 0, 0, 0, rect));
+	if (pool == null)
+	    return join (todo.get (0));
+
+	// expand the pairs one level at a time until there is enough work
+	// to share, the entry pairs found on the way are handed to the
+	// visitor from this thread
+	int minPairs = pool.getParallelism () * PAIRS_PER_THREAD;
+	while (!todo.isEmpty () && todo.size () < minPairs) {
+	    List<Pair> next = new ArrayList<Pair> ();
+	    splitDepth = 1;
+	    pairs = next;
+	    for (Pair p : todo)
+		if (!join (p))
+		    return false;
+	    todo = next;
+	}
+	splitDepth = Integer.MAX_VALUE;
+	pairs = null;
+
+	final List<RecursiveAction> tasks = new ArrayList<RecursiveAction> ();
+	for (final Pair p : todo) {
+	    tasks.add (new RecursiveAction () {
+		    @Override protected void compute () {
+			copy ().join (p);
+		    }
+		});
+	}
+	pool.invoke (new RecursiveAction () {
+		@Override protected void compute () {
+		    invokeAll (tasks);
+		}
+	    });
+	return !stopped.get ();
+    }
+
+    private boolean join (Pair p) {
+	System.arraycopy (p.rect, 0, rects[0], 0, p.rect.length);
+	return join (p.levelA, p.nodeA, p.levelB, p.nodeB, 0);
+    }
+
+    /** Join two intersecting nodes, either side may be an entry but
+     *  not both.
+     */
+    private boolean join (int levelA, int nodeA, int levelB, int nodeB,
+			  int depth) {
+	if (stopped.get ())
+	    return false;
+	if (depth == splitDepth) {
+	    pairs.add (new Pair (levelA, nodeA, levelB, nodeB,
+				 rects[depth].clone ()));
+	    return true;
+	}
+	double[] rect = rects[depth];
+	if (self && levelA == levelB && nodeA == nodeB) {
+	    int n = a.gather (levelA, nodeA, true, rect, depth);
+	    return sweepSelf (n, levelA + 1, depth);
+	}
+	boolean expandA = levelA < a.entryLevel;
+	boolean expandB = levelB < b.entryLevel;
+	int numA = a.gather (levelA, nodeA, expandA, rect, depth);
+	int numB = b.gather (levelB, nodeB, expandB, rect, depth);
+	return sweep (numA, expandA ? levelA + 1 : levelA,
+		      numB, expandB ? levelB + 1 : levelB, depth);
+    }
+
+    /** Find the intersecting pairs of the gathered boxes of both sides.
+     */
+    private boolean sweep (int numA, int levelA, int numB, int levelB,
+			   int depth) {
+	int dims2 = dims * 2;
+	double[] boundsA = a.bounds[depth];
+	double[] boundsB = b.bounds[depth];
+	int[] orderA = a.order[depth];
+	int[] orderB = b.order[depth];
+	int i = 0;
+	int j = 0;
+	while (i < numA && j < numB) {
+	    int pa = orderA[i];
+	    int pb = orderB[j];
+	    if (boundsA[pa * dims2] <= boundsB[pb * dims2]) {
+		double max = boundsA[pa * dims2 + 1];
+		for (int k = j; k < numB; k++) {
+		    int p = orderB[k];
+		    if (boundsB[p * dims2] > max)
+			break;
+		    if (FlatTree.intersects (boundsA, pa, boundsB, p, dims) &&
+			!pair (levelA, a.ids[depth], boundsA, pa,
+			       levelB, b.ids[depth], boundsB, p, depth))
+			return false;
+		}
+		i++;
+	    } else {
+		double max = boundsB[pb * dims2 + 1];
+		for (int k = i; k < numA; k++) {
+		    int p = orderA[k];
+		    if (boundsA[p * dims2] > max)
+			break;
+		    if (FlatTree.intersects (boundsA, p, boundsB, pb, dims) &&
+			!pair (levelA, a.ids[depth], boundsA, p,
+			       levelB, b.ids[depth], boundsB, pb, depth))
+			return false;
+		}
+		j++;
+	    }
+	}
+	return true;
+    }
+
+    /** Find the intersecting pairs of the gathered boxes of one side.
+     */
+    private boolean sweepSelf (int n, int level, int depth) {
+	int dims2 = dims * 2;
+	double[] bounds = a.bounds[depth];
+	int[] ids = a.ids[depth];
+	int[] order = a.order[depth];
+	boolean entries = level == a.entryLevel;
+	for (int i = 0; i < n; i++) {
+	    int p = order[i];
+	    // the entries below a node may intersect each other
+	    if (!entries &&
+		!pair (level, ids, bounds, p, level, ids, bounds, p, depth))
+		return false;
+	    double max = bounds[p * dims2 + 1];
+	    for (int k = i + 1; k < n; k++) {
+		int q = order[k];
+		if (bounds[q * dims2] > max)
+		    break;
+		if (FlatTree.intersects (bounds, p, bounds, q, dims) &&
+		    !pair (level, ids, bounds, p, level, ids, bounds, q, depth))
+		    return false;
+	    }
+	}
+	return true;
+    }
+
+    /** Handle a pair of intersecting boxes gathered at the given depth.
+     */
+    private boolean pair (int levelA, int[] idsA, double[] boundsA, int posA,
+			  int levelB, int[] idsB, double[] boundsB, int posB,
+			  int depth) {
+	int idA = idsA[posA];
+	int idB = idsB[posB];
+	if (levelA == a.entryLevel && levelB == b.entryLevel) {
+	    if (stopped.get ())
+		return false;
+	    if (!visitor.visit (a.getEntry (idA), b.getEntry (idB))) {
+		stopped.set (true);
+		return false;
+	    }
+	    return true;
+	}
+	intersect (boundsA, posA, boundsB, posB, rects[depth + 1]);
+	return join (levelA, idA, levelB, idB, depth + 1);
+    }
+
+    /** Store the intersection of two intersecting boxes in dest. */
+    private void intersect (double[] bounds1, int box1,
+			    double[] bounds2, int box2, double[] dest) {
+	int o1 = box1 * dims * 2;
+	int o2 = box2 * dims * 2;
+	for (int i = 0; i < dims * 2; i += 2) {
+	    dest[i] = Math.max (bounds1[o1 + i], bounds2[o2 + i]);
+	    dest[i + 1] = Math.min (bounds1[o1 + i + 1], bounds2[o2 + i + 1]);
+	}
+    }
+
+    /** A pair of nodes left to join. */
+    private static class Pair {
+	private final int levelA;
+	private final int nodeA;
+	private final int levelB;
+	private final int nodeB;
+	private final double[] rect;
+
+	public Pair (int levelA, int nodeA, int levelB, int nodeB,
+		     double[] rect) {
+	    this.levelA = levelA;
+	    this.nodeA = nodeA;
+	    this.levelB = levelB;
+	    this.nodeB = nodeB;
+	    this.rect = rect;
+	}
+    }
+
+    /** One of the trees and the scratch space used to expand its nodes.
+     *  The level after the leaf level holds the entries.
+     */
+    private static class Side<E> {
+	private final FlatTree tree;
+	private final Object[] entries;
+	private final MBRConverter<E> converter;
+	private final int entryLevel;
+	private final int dims;
+	/** The largest number of children of any node */
+	private final int fanout;
+	/** The boxes gathered at each depth */
+	private final double[][] bounds;
+	/** The node or entry index of each gathered box */
+	private final int[][] ids;
+	/** The gathered boxes sorted by the min of the first axis */
+	private final int[][] order;
+
+	public Side (FlatTree tree, Object[] entries, MBRConverter<E> converter,
+		     int depths) {
+	    this.tree = tree;
+	    this.entries = entries;
+	    this.converter = converter;
+	    entryLevel = tree.getHeight ();
+	    dims = tree.getDimensions ();
+	    int fanout = 1;
+	    for (int level = 0; level < entryLevel; level++) {
+		int[] children = tree.getChildren (level);
+		for (int i = 0; i < children.length - 1; i++)
+		    fanout = Math.max (fanout, children[i + 1] - children[i]);
+	    }
+	    this.fanout = fanout;
+	    bounds = new double[depths][];
+	    ids = new int[depths][];
+	    order = new int[depths][];
+	}
+
+	public Side<E> copy () {
+	    return new Side<E> (tree, entries, converter, bounds.length);
+	}
+
+	@SuppressWarnings("unchecked")
+	public E getEntry (int pos) {
+	    return (E)entries[pos];
+	}
+
+	/** Gather the children of a node that intersect the rectangle,
+	 *  or the node itself if it is not expanded, sorted by the min
+	 *  value of the first axis.
+	 * @return the number of gathered boxes
+	 */
+	public int gather (int level, int node, boolean expand, double[] rect,
+			   int depth) {
+	    if (bounds[depth] == null) {
+		bounds[depth] = new double[fanout * dims * 2];
+		ids[depth] = new int[fanout];
+		order[depth] = new int[fanout];
+	    }
+	    double[] dest = bounds[depth];
+	    int[] id = ids[depth];
+	    int n = 0;
+	    if (!expand) {
+		readBox (level, node, dest, 0);
+		id[0] = node;
+		n = 1;
+	    } else {
+		int[] children = tree.getChildren (level);
+		for (int c = children[node], e = children[node + 1]; c < e; c++) {
+		    readBox (level + 1, c, dest, n);
+		    if (FlatTree.intersects (dest, n, rect, 0, dims))
+			id[n++] = c;
+		}
+	    }
+	    sort (dest, order[depth], n);
+	    return n;
+	}
+
+	private void readBox (int level, int pos, double[] dest, int box) {
+	    int dims2 = dims * 2;
+	    if (level < entryLevel) {
+		tree.copyBounds (level, pos, dest, box * dims2);
+		return;
+	    }
+	    double[] entryBounds = tree.getEntryBounds ();
+	    if (entryBounds != null) {
+		System.arraycopy (entryBounds, pos * dims2, dest, box * dims2,
+				  dims2);
+		return;
+	    }
+	    E e = getEntry (pos);
+	    for (int i = 0; i < dims; i++) {
+		dest[box * dims2 + i * 2] = converter.getMin (i, e);
+		dest[box * dims2 + i * 2 + 1] = converter.getMax (i, e);
+	    }
+	}
+
+	/** Insertion sort of the box indices by the min of the first
+	 *  axis, there are at most fanout boxes.
+	 */
+	private void sort (double[] boxes, int[] order, int n) {
+	    int dims2 = dims * 2;
+	    for (int i = 0; i < n; i++) {
+		double key = boxes[i * dims2];
+		int j = i;
+		while (j > 0 && boxes[order[j - 1] * dims2] > key) {
+		    order[j] = order[j - 1];
+		    j--;
+		}
+		order[j] = i;
+	    }
+	}
+    }
+}
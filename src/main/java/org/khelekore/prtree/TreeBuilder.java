@@ -0,0 +1,132 @@
+package org.khelekore.prtree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Builds a FlatTree from the keys of the entries.
+ *
+ *  <p>The levels are built bottom up with the LeafBuilder, until all
+ *  nodes fit in the root node. The levels are then laid out top down
+ *  so that the children of each node are stored next to each other.
+ */
+class TreeBuilder {
+    private final int dimensions;
+    private final int branchFactor;
+    private final LeafBuilder lb;
+    private final boolean storeEntryBounds;
+    private int[] entryOrder;
+
+    /** Create a new TreeBuilder.
+     * @param dimensions the number of dimensions
+     * @param branchFactor the maximum number of children of each node
+     * @param lb the LeafBuilder used to group the nodes of each level
+     * @param storeEntryBounds if true the built tree will hold a copy
+     *        of the bounds of the entries
+     */
+    public TreeBuilder (int dimensions, int branchFactor, LeafBuilder lb,
+			boolean storeEntryBounds) {
+	this.dimensions = dimensions;
+	this.branchFactor = branchFactor;
+	this.lb = lb;
+	this.storeEntryBounds = storeEntryBounds;
+    }
+
+    /** Build the tree.
+     * @param keys the keys of the entries, keys[i] holds the min values
+     *        for axis i and keys[dimensions + i] holds the max values.
+     * @return the new tree
+     */
+    public FlatTree build (double[][] keys) {
+	int numEntries = keys[0].length;
+	if (numEntries == 0)
+	    return buildEmpty ();
+
+	// bottom up, groups.get (i) groups the nodes in keyList.get (i)
+	// and the bounds of the groups are in keyList.get (i + 1)
+	List<NodeGroups> groups = new ArrayList<NodeGroups> ();
+	List<double[][]> keyList = new ArrayList<double[][]> ();
+	keyList.add (keys);
+	NodeGroups g;
+	do {
+	    g = lb.buildLeafs (keys);
+	    keys = g.getBounds (keys);
+	    groups.add (g);
+	    keyList.add (keys);
+	} while (g.size () > branchFactor);
+
+	if (g.size () > 1) {
+	    // add a root that holds all the top level nodes
+	    int[] order = new int[g.size ()];
+	    for (int i = 0; i < order.length; i++)
+		order[i] = i;
+	    g = new NodeGroups (order, new int[] {0, order.length});
+	    groups.add (g);
+	    keyList.add (g.getBounds (keys));
+	}
+
+	int height = groups.size ();
+	double[][] bounds = new double[height][];
+	int[][] children = new int[height][];
+	// the index of each node in the bottom up numbering, top level first
+	int[] nodes = {0};
+	for (int level = 0; level < height; level++) {
+	    int bottomUp = height - 1 - level;
+	    g = groups.get (bottomUp);
+	    bounds[level] = interleave (keyList.get (bottomUp + 1), nodes);
+	    int[] childStart = new int[nodes.length + 1];
+	    int numChildren = 0;
+	    for (int i = 0; i < nodes.length; i++)
+		numChildren += g.getStart (nodes[i] + 1) - g.getStart (nodes[i]);
+	    int[] next = new int[numChildren];
+	    int pos = 0;
+	    for (int i = 0; i < nodes.length; i++) {
+		childStart[i] = pos;
+		for (int j = g.getStart (nodes[i]), e = g.getStart (nodes[i] + 1);
+		     j < e; j++)
+		    next[pos++] = g.getElement (j);
+	    }
+	    childStart[nodes.length] = pos;
+	    children[level] = childStart;
+	    nodes = next;
+	}
+	entryOrder = nodes;
+	double[] entryBounds = null;
+	if (storeEntryBounds)
+	    entryBounds = interleave (keyList.get (0), entryOrder);
+	return new FlatTree (dimensions, bounds, children, entryBounds);
+    }
+
+    /** Get the order of the entries after build.
+     * @return the index of the original entry for each entry position
+     */
+    public int[] getEntryOrder () {
+	return entryOrder;
+    }
+
+    private FlatTree buildEmpty () {
+	double[] rootBounds = new double[dimensions * 2];
+	for (int i = 0; i < dimensions; i++) {
+	    // an empty root does not intersect anything
+	    rootBounds[i * 2] = Double.POSITIVE_INFINITY;
+	    rootBounds[i * 2 + 1] = Double.NEGATIVE_INFINITY;
+	}
+	entryOrder = new int[0];
+	double[] entryBounds = storeEntryBounds ? new double[0] : null;
+	return new FlatTree (dimensions, new double[][] {rootBounds},
+			     new int[][] {{0, 0}}, entryBounds);
+    }
+
+    /** Convert the bounds of the given nodes into the FlatTree layout.
+     */
+    private double[] interleave (double[][] keys, int[] nodes) {
+	double[] ret = new double[nodes.length * dimensions * 2];
+	for (int i = 0, p = 0; i < nodes.length; i++) {
+	    int n = nodes[i];
+	    for (int j = 0; j < dimensions; j++) {
+		ret[p++] = keys[j][n];
+		ret[p++] = keys[dimensions + j][n];
+	    }
+	}
+	return ret;
+    }
+}
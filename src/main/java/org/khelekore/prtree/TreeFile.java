@@ -0,0 +1,45 @@
+package org.khelekore.prtree;
+
+/** The layout of a tree file.
+ *
+ *  <p>All values are little endian. The file starts with a header:
+ *  <pre>
+ *  int magic, int version, int dimensions, int height, int numEntries,
+ *  int numNodes[height]
+ *  </pre>
+ *  followed by the sections, each section starts at a multiple of 8:
+ *  <pre>
+ *  for each level, root first:
+ *      int children[numNodes + 1], double bounds[numNodes * 2 * dimensions]
+ *  double entryBounds[numEntries * 2 * dimensions]
+ *  long ids[numEntries]
+ *  </pre>
+ *  The arrays use the same layout as FlatTree.
+ */
+class TreeFile {
+    /** "PRTF" */
+    public static final int MAGIC = 0x50525446;
+    public static final int VERSION = 1;
+
+    /** Do not instantiate
+     */
+    private TreeFile () {
+	// empty
+    }
+
+    /** Get the size of the header.
+     * @param height the height of the tree
+     * @return the header size, rounded up to a multiple of 8
+     */
+    public static long getHeaderSize (int height) {
+	return align (5 * 4 + height * 4);
+    }
+
+    /** Round up to a multiple of 8.
+     * @param pos the position
+     * @return the aligned position
+     */
+    public static long align (long pos) {
+	return (pos + 7) & ~7L;
+    }
+}
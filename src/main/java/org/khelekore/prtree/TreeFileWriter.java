@@ -0,0 +1,112 @@
+package org.khelekore.prtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/** Writes the tree file format, see TreeFile for the layout.
+ *  The values are written in file order.
+ */
+class TreeFileWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private long pos;
+
+    /** Create a new TreeFileWriter, any existing file is replaced.
+     * @param f the file to write
+     * @throws IOException if the file can not be opened
+     */
+    public TreeFileWriter (File f) throws IOException {
+	file = new RandomAccessFile (f, "rw");
+	file.setLength (0);
+	channel = file.getChannel ();
+	buf = ByteBuffer.allocateDirect (BUFFER_SIZE);
+	buf.order (ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Write the header.
+     * @param dimensions the number of dimensions
+     * @param numEntries the number of entries
+     * @param numNodes the number of nodes in each level, root first
+     * @throws IOException if writing fails
+     */
+    public void writeHeader (int dimensions, int numEntries, int[] numNodes)
+	throws IOException {
+	writeInt (TreeFile.MAGIC);
+	writeInt (TreeFile.VERSION);
+	writeInt (dimensions);
+	writeInt (numNodes.length);
+	writeInt (numEntries);
+	for (int n : numNodes)
+	    writeInt (n);
+	endSection ();
+    }
+
+    public void writeInt (int i) throws IOException {
+	ensure (4);
+	buf.putInt (i);
+	pos += 4;
+    }
+
+    public void writeLong (long l) throws IOException {
+	ensure (8);
+	buf.putLong (l);
+	pos += 8;
+    }
+
+    public void writeDouble (double d) throws IOException {
+	ensure (8);
+	buf.putDouble (d);
+	pos += 8;
+    }
+
+    public void writeInts (int[] values) throws IOException {
+	for (int i : values)
+	    writeInt (i);
+    }
+
+    public void writeDoubles (double[] values) throws IOException {
+	for (double d : values)
+	    writeDouble (d);
+    }
+
+    /** Pad the file so that the next section starts at a multiple of 8.
+     * @throws IOException if writing fails
+     */
+    public void endSection () throws IOException {
+	while (pos != TreeFile.align (pos)) {
+	    ensure (1);
+	    buf.put ((byte)0);
+	    pos++;
+	}
+    }
+
+    private void ensure (int size) throws IOException {
+	if (buf.remaining () < size)
+	    flush ();
+    }
+
+    private void flush () throws IOException {
+	buf.flip ();
+	while (buf.hasRemaining ())
+	    channel.write (buf);
+	buf.clear ();
+    }
+
+    /** Write the buffered values and close the file.
+     * @throws IOException if writing fails
+     */
+    public void close () throws IOException {
+	try {
+	    flush ();
+	} finally {
+	    file.close ();
+	}
+    }
+}
@@ -0,0 +1,267 @@
+package org.khelekore.prtree;
+
+import java.util.Arrays;
+import java.util.Formatter;
+
+/** Measures of how well a loaded tree is packed, for each level.
+ *
+ *  <p>The volume of a node is the product of the sides of its bounds,
+ *  the area for two dimensions. The report holds, for each level:
+ *  <ul>
+ *  <li>the number of nodes and the fill factor, the average number
+ *      of children of a node divided by the branch factor.
+ *  <li>the total and the average volume of the nodes.
+ *  <li>the sibling overlap, the sum of the volume shared by each pair
+ *      of nodes that have the same parent.
+ *  <li>the dead space, the part of the node volume that is not covered
+ *      by the entries below the nodes. The entry volumes are summed
+ *      without removing their overlap, so when the entries overlap
+ *      each other the dead space is underestimated.
+ *  </ul>
+ *
+ *  <p>The report also keeps the sides of every node, so it can
+ *  estimate the number of nodes a query of a given size visits.
+ */
+public class TreeQuality {
+    private final int dimensions;
+    private final int branchFactor;
+    private final int numEntries;
+    private final int[] nodeCount;
+    private final double[] totalVolume;
+    private final double[] siblingOverlap;
+    private final double[] deadSpace;
+    /** The number of children of the nodes on each level. */
+    private final int[] childCount;
+    /** The sides of the tree MBR. */
+    private final double[] treeSides;
+    /** The sides of the nodes on each level, dimensions values for each node. */
+    private final double[][] sides;
+
+    /** Measure the given tree.
+     * @param tree the tree to measure
+     * @param entryBounds the bounds of the entries, in entry order
+     * @param branchFactor the branch factor the tree was built with
+     */
+    TreeQuality (FlatTree tree, double[] entryBounds, int branchFactor) {
+	dimensions = tree.getDimensions ();
+	this.branchFactor = branchFactor;
+	numEntries = tree.getNumEntries ();
+	int height = tree.getHeight ();
+	nodeCount = new int[height];
+	childCount = new int[height];
+	totalVolume = new double[height];
+	siblingOverlap = new double[height];
+	deadSpace = new double[height];
+	sides = new double[height][];
+
+	// prefix sums of the entry volumes, so the volume of the entries
+	// below a node is one subtraction
+	double[] entryVolume = new double[numEntries + 1];
+	for (int i = 0; i < numEntries; i++)
+	    entryVolume[i + 1] = entryVolume[i] + getVolume (entryBounds, i);
+
+	int size = dimensions * 2;
+	double[][] bounds = new double[height][];
+	for (int level = 0; level < height; level++) {
+	    int n = tree.getNumNodes (level);
+	    bounds[level] = new double[n * size];
+	    for (int node = 0; node < n; node++)
+		tree.copyBounds (level, node, bounds[level], node * size);
+	}
+
+	for (int level = 0; level < height; level++) {
+	    double[] b = bounds[level];
+	    int n = tree.getNumNodes (level);
+	    int[] children = tree.getChildren (level);
+	    int[] entryStart = tree.getEntryStart (level);
+	    nodeCount[level] = n;
+	    childCount[level] = children[n] - children[0];
+	    double[] s = new double[n * dimensions];
+	    double dead = 0;
+	    for (int node = 0; node < n; node++) {
+		double volume = getVolume (b, node);
+		totalVolume[level] += volume;
+		double covered =
+		    entryVolume[entryStart[node + 1]] - entryVolume[entryStart[node]];
+		dead += Math.max (0, volume - covered);
+		for (int d = 0; d < dimensions; d++)
+		    s[node * dimensions + d] = getSide (b, node, d);
+		if (level + 1 < height)
+		    siblingOverlap[level + 1] +=
+			getOverlap (bounds[level + 1], children[node],
+				    children[node + 1]);
+	    }
+	    deadSpace[level] = totalVolume[level] > 0 ? dead / totalVolume[level] : 0;
+	    sides[level] = s;
+	}
+	treeSides = Arrays.copyOf (sides[0], dimensions);
+    }
+
+    private double getSide (double[] bounds, int node, int axis) {
+	int pos = node * dimensions * 2 + axis * 2;
+	// an empty tree has an inverted root box
+	return Math.max (0, bounds[pos + 1] - bounds[pos]);
+    }
+
+    private double getVolume (double[] bounds, int node) {
+	double ret = 1;
+	for (int d = 0; d < dimensions; d++)
+	    ret *= getSide (bounds, node, d);
+	return ret;
+    }
+
+    /** Get the sum of the shared volume of each pair of nodes from
+     *  position start to end - 1.
+     */
+    private double getOverlap (double[] bounds, int start, int end) {
+	int size = dimensions * 2;
+	double ret = 0;
+	for (int i = start; i < end; i++) {
+	    for (int j = i + 1; j < end; j++) {
+		double shared = 1;
+		for (int d = 0; d < dimensions && shared > 0; d++) {
+		    int pi = i * size + d * 2;
+		    int pj = j * size + d * 2;
+		    double min = Math.max (bounds[pi], bounds[pj]);
+		    double max = Math.min (bounds[pi + 1], bounds[pj + 1]);
+		    shared *= Math.max (0, max - min);
+		}
+		ret += shared;
+	    }
+	}
+	return ret;
+    }
+
+    /** Get the number of levels in the measured tree.
+     * @return the height of the tree
+     */
+    public int getHeight () {
+	return nodeCount.length;
+    }
+
+    /** Get the number of entries in the measured tree.
+     * @return the number of entries
+     */
+    public int getNumEntries () {
+	return numEntries;
+    }
+
+    /** Get the number of nodes on a level.
+     * @param level the level, 0 is the root
+     * @return the number of nodes
+     */
+    public int getNodeCount (int level) {
+	return nodeCount[level];
+    }
+
+    /** Get the average number of children of the nodes on a level,
+     *  divided by the branch factor.
+     * @param level the level, 0 is the root
+     * @return the fill factor, 1 when all the nodes are full
+     */
+    public double getFillFactor (int level) {
+	return (double)childCount[level] / ((double)nodeCount[level] * branchFactor);
+    }
+
+    /** Get the summed volume of the nodes on a level.
+     * @param level the level, 0 is the root
+     * @return the total volume
+     */
+    public double getTotalVolume (int level) {
+	return totalVolume[level];
+    }
+
+    /** Get the average volume of the nodes on a level.
+     * @param level the level, 0 is the root
+     * @return the average volume
+     */
+    public double getAverageVolume (int level) {
+	return totalVolume[level] / nodeCount[level];
+    }
+
+    /** Get the summed volume that the nodes on a level share with
+     *  their siblings, each pair of siblings is counted once.
+     * @param level the level, 0 is the root
+     * @return the sibling overlap, 0 for the root
+     */
+    public double getSiblingOverlap (int level) {
+	return siblingOverlap[level];
+    }
+
+    /** Get the part of the volume of the nodes on a level that is not
+     *  covered by the entries below the nodes.
+     * @param level the level, 0 is the root
+     * @return the dead space, from 0 to 1
+     */
+    public double getDeadSpace (int level) {
+	return deadSpace[level];
+    }
+
+    /** Estimate the number of nodes visited by a query of the given
+     *  size that is placed uniformly inside the tree MBR.
+     *
+     *  <p>A node is visited if the query intersects it, a query with
+     *  the sides q intersects a node with the sides s with the
+     *  probability of the product of (s + q) / tree side over all
+     *  axes, capped at 1. The estimate is the sum of the probabilities
+     *  of all the nodes, so the root is always counted once.
+     *
+     * @param querySides the side of the query on each axis
+     * @return the expected number of visited nodes
+     * @throws IllegalArgumentException if the number of sides does not
+     *         match the dimensions or if a side is negative
+     */
+    public double getExpectedNodeAccesses (double... querySides) {
+	double ret = 0;
+	for (int level = 0; level < getHeight (); level++)
+	    ret += getExpectedLevelAccesses (level, querySides);
+	return ret;
+    }
+
+    /** Estimate the number of nodes on a level that are visited by a
+     *  query of the given size, see {@link #getExpectedNodeAccesses(double...)}.
+     * @param level the level, 0 is the root
+     * @param querySides the side of the query on each axis
+     * @return the expected number of visited nodes on the level
+     * @throws IllegalArgumentException if the number of sides does not
+     *         match the dimensions or if a side is negative
+     */
+    public double getExpectedLevelAccesses (int level, double... querySides) {
+	if (querySides.length != dimensions)
+	    throw new IllegalArgumentException ("Wrong number of sides: " +
+						querySides.length +
+						", dimensions: " + dimensions);
+	for (double q : querySides)
+	    if (!(q >= 0))
+		throw new IllegalArgumentException ("Bad query side: " + q);
+	if (numEntries == 0)
+	    return 0;
+	double[] s = sides[level];
+	double ret = 0;
+	for (int node = 0; node < nodeCount[level]; node++) {
+	    double p = 1;
+	    for (int d = 0; d < dimensions; d++) {
+		double w = treeSides[d];
+		if (w > 0)
+		    p *= Math.min (1, (s[node * dimensions + d] + querySides[d]) / w);
+	    }
+	    ret += p;
+	}
+	return ret;
+    }
+
+    @Override public String toString () {
+	StringBuilder sb = new StringBuilder ();
+	Formatter f = new Formatter (sb);
+	f.format ("%s{entries: %d, branchFactor: %d}%n",
+		  getClass ().getSimpleName (), numEntries, branchFactor);
+	f.format ("%5s %10s %6s %12s %12s %12s %6s%n", "level", "nodes", "fill",
+		  "volume", "avg volume", "overlap", "dead");
+	for (int level = 0; level < getHeight (); level++)
+	    f.format ("%5d %10d %6.3f %12.4g %12.4g %12.4g %6.3f%n", level,
+		      nodeCount[level], getFillFactor (level), totalVolume[level],
+		      getAverageVolume (level), siblingOverlap[level],
+		      deadSpace[level]);
+	return sb.toString ();
+    }
+}
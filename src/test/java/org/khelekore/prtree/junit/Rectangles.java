@@ -0,0 +1,72 @@
+package org.khelekore.prtree.junit;
+
+import java.awt.geom.Rectangle2D;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.khelekore.prtree.DistanceCalculator;
+import org.khelekore.prtree.EntryIdConverter;
+import org.khelekore.prtree.MBRConverter;
+import org.khelekore.prtree.MinDist2D;
+import org.khelekore.prtree.NodeFilter;
+import org.khelekore.prtree.PointND;
+
+/** Rectangle2D helpers shared by the tests.
+ */
+class Rectangles {
+    private Rectangles () {
+    }
+
+    static class Rectangle2DConverter implements MBRConverter<Rectangle2D> {
+	public int getDimensions () {
+	    return 2;
+	}
+
+	public double getMin (int axis, Rectangle2D t) {
+	    return axis == 0 ? t.getMinX () : t.getMinY ();
+	}
+
+	public double getMax (int axis, Rectangle2D t) {
+	    return axis == 0 ? t.getMaxX () : t.getMaxY ();
+	}
+    }
+
+    /** The euclidean distance from the point to the rectangle. */
+    static class RectDistance implements DistanceCalculator<Rectangle2D> {
+	public double distanceTo (Rectangle2D r, PointND p) {
+	    double md = MinDist2D.get (r.getMinX (), r.getMinY (),
+				       r.getMaxX (), r.getMaxY (),
+				       p.getOrd (0), p.getOrd (1));
+	    return Math.sqrt (md);
+	}
+    }
+
+    static class AcceptAll<T> implements NodeFilter<T> {
+	public boolean accept (T t) {
+	    return true;
+	}
+    }
+
+    /** Uses the position in the input as the id. */
+    static class IndexIds implements EntryIdConverter<Rectangle2D> {
+	// by identity, equal rectangles get different ids
+	private final Map<Rectangle2D, Long> ids =
+	    new IdentityHashMap<Rectangle2D, Long> ();
+
+	public IndexIds () {
+	}
+
+	public IndexIds (List<Rectangle2D> rects) {
+	    for (Rectangle2D r : rects)
+		add (r);
+	}
+
+	public void add (Rectangle2D r) {
+	    ids.put (r, Long.valueOf (ids.size ()));
+	}
+
+	public long getId (Rectangle2D r) {
+	    return ids.get (r);
+	}
+    }
+}
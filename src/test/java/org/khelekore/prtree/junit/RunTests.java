@@ -5,6 +5,13 @@
 public class RunTests {
     public static void main (String args[]) {
 	JUnitCore.main (TestSimpleMBR.class.getName (),
-			TestPRTree.class.getName ());
+			TestPRTree.class.getName (),
+			TestPRTree2D.class.getName (),
+			TestDynamicPRTree.class.getName (),
+			TestManagedPRTree.class.getName (),
+			TestShardedPRTree.class.getName (),
+			TestIntPRTree.class.getName (),
+			TestMappedPRTree.class.getName (),
+			TestExternalPRTree.class.getName ());
     }
 }
@@ -0,0 +1,155 @@
+package org.khelekore.prtree.junit;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.khelekore.prtree.DistanceResult;
+import org.khelekore.prtree.DynamicPRTree;
+import org.khelekore.prtree.MBR;
+import org.khelekore.prtree.PointND;
+import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.SimplePointND;
+import org.khelekore.prtree.junit.Rectangles.AcceptAll;
+import org.khelekore.prtree.junit.Rectangles.RectDistance;
+import org.khelekore.prtree.junit.Rectangles.Rectangle2DConverter;
+
+import static org.junit.Assert.*;
+
+/** Tests for DynamicPRTree.
+ */
+public class TestDynamicPRTree {
+    private static final int BRANCH_FACTOR = 10;
+    private static final int BUFFER_SIZE = 16;
+    private static final double RANDOM_RANGE = 100000;
+
+    private Rectangle2DConverter converter = new Rectangle2DConverter ();
+    private DynamicPRTree<Rectangle2D> tree;
+
+    @Before
+    public void setUp() {
+	tree = new DynamicPRTree<Rectangle2D> (converter, BRANCH_FACTOR,
+					       BUFFER_SIZE);
+    }
+
+    @Test
+    public void testEmpty () {
+	assertTrue ("new tree should be empty", tree.isEmpty ());
+	List<Rectangle2D> result = new ArrayList<Rectangle2D> ();
+	tree.find (new SimpleMBR (0, 1, 0, 1), result);
+	assertEquals ("should not find anything", 0, result.size ());
+	assertFalse ("should not remove anything",
+		     tree.remove (new Rectangle2D.Double (0, 0, 1, 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadQuery () {
+	// the entry stays in the buffer, there is no level to check the query
+	tree.insert (new Rectangle2D.Double (0, 0, 1, 1));
+	tree.find (new SimpleMBR (1, 0, 0, 1), new ArrayList<Rectangle2D> ());
+    }
+
+    @Test
+    public void testInsertRemove () {
+	System.err.println ("TestDynamicPRTree: Testing insert and remove");
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int round = 0; round < 5000; round++) {
+	    if (rects.isEmpty () || random.nextInt (3) > 0) {
+		Rectangle2D r = getRandomRectangle (random);
+		tree.insert (r);
+		rects.add (r);
+	    } else {
+		Rectangle2D r = rects.remove (random.nextInt (rects.size ()));
+		assertTrue ("should remove: " + r, tree.remove (r));
+	    }
+	    assertEquals ("wrong size", rects.size (), tree.size ());
+	    if (round % 100 == 0)
+		checkQueries (rects, random);
+	}
+	checkQueries (rects, random);
+    }
+
+    @Test
+    public void testLoadThenUpdate () {
+	Random random = new Random (4711);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 1000; i++)
+	    rects.add (getRandomRectangle (random));
+	tree.load (rects);
+	assertEquals ("wrong size", rects.size (), tree.size ());
+	for (int i = 0; i < 600; i++)
+	    assertTrue ("should remove", tree.remove (rects.remove (0)));
+	for (int i = 0; i < 100; i++) {
+	    Rectangle2D r = getRandomRectangle (random);
+	    tree.insert (r);
+	    rects.add (r);
+	}
+	assertEquals ("wrong size", rects.size (), tree.size ());
+	checkQueries (rects, random);
+    }
+
+    @Test
+    public void testDuplicates () {
+	Rectangle2D r = new Rectangle2D.Double (0, 0, 1, 1);
+	for (int i = 0; i < 100; i++)
+	    tree.insert (r);
+	for (int i = 100; i > 0; i--) {
+	    List<Rectangle2D> result = new ArrayList<Rectangle2D> ();
+	    tree.find (new SimpleMBR (0, 1, 0, 1), result);
+	    assertEquals ("wrong number of duplicates", i, result.size ());
+	    assertTrue ("should remove duplicate", tree.remove (r));
+	}
+	assertFalse ("all duplicates should be removed", tree.remove (r));
+	assertTrue ("tree should be empty", tree.isEmpty ());
+    }
+
+    private void checkQueries (List<Rectangle2D> rects, Random random) {
+	double x = getRandomRectangleSize (random);
+	double y = getRandomRectangleSize (random);
+	MBR query = new SimpleMBR (x, x + 20000, y, y + 20000);
+	List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+	for (Rectangle2D r : rects)
+	    if (query.intersects (r, converter))
+		expected.add (r);
+	List<Rectangle2D> actual = new ArrayList<Rectangle2D> ();
+	tree.find (query, actual);
+	assertEquals ("should find same number of rectangles",
+		      expected.size (), actual.size ());
+	assertTrue ("should find same rectangles",
+		    actual.containsAll (expected));
+
+	final PointND p = new SimplePointND (x, y);
+	final RectDistance dc = new RectDistance ();
+	int maxHits = 5;
+	List<Rectangle2D> sorted = new ArrayList<Rectangle2D> (rects);
+	Collections.sort (sorted, new Comparator<Rectangle2D> () {
+		public int compare (Rectangle2D r1, Rectangle2D r2) {
+		    return Double.compare (dc.distanceTo (r1, p),
+					   dc.distanceTo (r2, p));
+		}
+	    });
+	List<DistanceResult<Rectangle2D>> nn =
+	    tree.nearestNeighbour (dc, new AcceptAll<Rectangle2D> (), maxHits, p);
+	assertEquals ("wrong number of neighbours",
+		      Math.min (maxHits, rects.size ()), nn.size ());
+	for (int i = 0; i < nn.size (); i++)
+	    assertEquals ("wrong distance", dc.distanceTo (sorted.get (i), p),
+			  nn.get (i).getDistance (), 0);
+    }
+
+    private Rectangle2D getRandomRectangle (Random random) {
+	return new Rectangle2D.Double (getRandomRectangleSize (random),
+				       getRandomRectangleSize (random),
+				       random.nextInt (1000),
+				       random.nextInt (1000));
+    }
+
+    private double getRandomRectangleSize (Random random) {
+	return random.nextDouble () * RANDOM_RANGE - RANDOM_RANGE / 2;
+    }
+}
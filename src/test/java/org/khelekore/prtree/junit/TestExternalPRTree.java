@@ -0,0 +1,151 @@
+package org.khelekore.prtree.junit;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.khelekore.prtree.ExternalPRTreeBuilder;
+import org.khelekore.prtree.IdVisitor;
+import org.khelekore.prtree.MBR;
+import org.khelekore.prtree.MappedPRTree;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.junit.Rectangles.IndexIds;
+import org.khelekore.prtree.junit.Rectangles.Rectangle2DConverter;
+
+import static org.junit.Assert.*;
+
+/** Tests for ExternalPRTreeBuilder.
+ */
+public class TestExternalPRTree {
+    private static final int BRANCH_FACTOR = 10;
+    private static final double RANDOM_RANGE = 100000;
+    /** Small enough to build the lower levels on disk. */
+    private static final long MEMORY_BUDGET = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private Rectangle2DConverter converter = new Rectangle2DConverter ();
+    private int fileCounter;
+
+    @Test
+    public void testEmpty () throws IOException {
+	checkSameAsPRTree (Collections.<Rectangle2D>emptyList ());
+    }
+
+    @Test
+    public void testSmall () throws IOException {
+	Random random = new Random (17);  // same random every time
+	for (int size : new int[] {1, 2, BRANCH_FACTOR, BRANCH_FACTOR + 1, 500})
+	    checkSameAsPRTree (getRandomRectangles (random, size));
+	// one level on disk with few enough nodes to fit in the root
+	checkSameAsPRTree (getRandomRectangles (random, 300), 50);
+    }
+
+    @Test
+    public void testLarge () throws IOException {
+	System.err.println ("TestExternalPRTree: Testing external build");
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = getRandomRectangles (random, 30000);
+	File f = checkSameAsPRTree (rects);
+
+	MappedPRTree mt = MappedPRTree.open (f);
+	assertEquals ("wrong number of entries", rects.size (),
+		      mt.getNumberOfLeaves ());
+	for (int round = 0; round < 50; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    MBR query = new SimpleMBR (x, x + 5000, y, y + 5000);
+	    int expected = 0;
+	    for (Rectangle2D r : rects)
+		if (query.intersects (r, converter))
+		    expected++;
+	    final int[] found = new int[1];
+	    mt.find (query, new IdVisitor () {
+		    public boolean visit (long id) {
+			found[0]++;
+			return true;
+		    }
+		});
+	    assertEquals ("wrong number of matches", expected, found[0]);
+	}
+    }
+
+    @Test
+    public void testDuplicates () throws IOException {
+	// many equal keys, the ties have to be broken as in memory
+	Random random = new Random (4711);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 20000; i++)
+	    rects.add (new Rectangle2D.Double (random.nextInt (20),
+					       random.nextInt (20),
+					       random.nextInt (3),
+					       random.nextInt (3)));
+	checkSameAsPRTree (rects);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadMemoryBudget () {
+	new ExternalPRTreeBuilder<Rectangle2D> (converter, new IndexIds (),
+						BRANCH_FACTOR).setMemoryBudget (0);
+    }
+
+    /** Build the tree file on disk and check that it is the same as
+     *  the file written by a PRTree that was loaded in memory.
+     */
+    private File checkSameAsPRTree (List<Rectangle2D> rects)
+	throws IOException {
+	return checkSameAsPRTree (rects, BRANCH_FACTOR);
+    }
+
+    private File checkSameAsPRTree (List<Rectangle2D> rects, int branchFactor)
+	throws IOException {
+	PRTree<Rectangle2D> tree =
+	    new PRTree<Rectangle2D> (converter, branchFactor);
+	tree.setCacheEntryBounds (true);
+	tree.load (rects);
+	IndexIds ids = new IndexIds ();
+	for (int i = 0; i < rects.size (); i++)
+	    ids.add (rects.get (i));
+	int n = fileCounter++;
+	File expected = folder.newFile ("expected" + n + ".prt");
+	tree.write (expected, ids);
+
+	ExternalPRTreeBuilder<Rectangle2D> builder =
+	    new ExternalPRTreeBuilder<Rectangle2D> (converter, ids,
+						    branchFactor);
+	builder.setMemoryBudget (MEMORY_BUDGET);
+	File tmp = folder.newFolder ("tmp" + n);
+	builder.setTempDirectory (tmp);
+	File actual = folder.newFile ("actual" + n + ".prt");
+	builder.build (rects.iterator (), actual);
+	assertArrayEquals ("files should be equal, size: " + rects.size (),
+			   Files.readAllBytes (expected.toPath ()),
+			   Files.readAllBytes (actual.toPath ()));
+	assertEquals ("temporary files should be removed", 0,
+		      tmp.list ().length);
+	return actual;
+    }
+
+    private List<Rectangle2D> getRandomRectangles (Random random, int size) {
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (size);
+	for (int i = 0; i < size; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	return rects;
+    }
+
+    private double getRandomRectangleSize (Random random) {
+	return random.nextDouble () * RANDOM_RANGE - RANDOM_RANGE / 2;
+    }
+}
@@ -0,0 +1,188 @@
+package org.khelekore.prtree.junit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Before;
+import org.junit.Test;
+import org.khelekore.prtree.DistanceResult;
+import org.khelekore.prtree.IntPRTree;
+import org.khelekore.prtree.IntVisitor;
+import org.khelekore.prtree.MBR;
+import org.khelekore.prtree.MinDist;
+import org.khelekore.prtree.PointND;
+import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.SimplePointND;
+
+import static org.junit.Assert.*;
+
+/** Tests for IntPRTree.
+ */
+public class TestIntPRTree {
+    private static final int BRANCH_FACTOR = 30;
+    private static final double RANDOM_RANGE = 100000;
+
+    private IntPRTree tree;
+
+    @Before
+    public void setUp() {
+	tree = new IntPRTree (2, BRANCH_FACTOR);
+    }
+
+    @Test
+    public void testEmpty () {
+	tree.load (new int[0], new double[0]);
+	assertTrue ("tree should be empty", tree.isEmpty ());
+	assertNull ("empty tree has no mbr", tree.getMBR ());
+	assertEquals ("should not find anything", 0,
+		      tree.count (new SimpleMBR (0, 1, 0, 1)));
+	assertEquals ("should not find anything", 0,
+		      tree.nearestNeighbour (new SimplePointND (0, 0), 10).size ());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFindBeforeLoad () {
+	tree.count (new SimpleMBR (0, 1, 0, 1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMultiLoad () {
+	tree.load (new int[0], new double[0]);
+	tree.load (new int[0], new double[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadBoundsLength () {
+	tree.load (new int[] {1, 2}, new double[4]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadPointsLength () {
+	tree.loadPoints (new int[] {1, 2}, new double[3]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadQuery () {
+	tree.load (new int[0], new double[0]);
+	tree.count (new SimpleMBR (1, 0, 0, 1));
+    }
+
+    @Test
+    public void testBoxes () {
+	System.err.println ("TestIntPRTree: Testing boxes");
+	int numBoxes = 10000;
+	Random random = new Random (1234);  // same random every time
+	int[] ids = new int[numBoxes];
+	double[] bounds = new double[numBoxes * 4];
+	for (int i = 0; i < numBoxes; i++) {
+	    ids[i] = i * 3 + 7;
+	    for (int j = 0; j < 2; j++) {
+		double min = getRandomCoord (random);
+		bounds[i * 4 + j * 2] = min;
+		bounds[i * 4 + j * 2 + 1] = min + random.nextInt (1000);
+	    }
+	}
+	tree.load (ids, bounds);
+	IntPRTree parallel = new IntPRTree (2, BRANCH_FACTOR);
+	ForkJoinPool pool = new ForkJoinPool (4);
+	try {
+	    parallel.load (ids, bounds, pool);
+	} finally {
+	    pool.shutdown ();
+	}
+	assertEquals ("wrong size", numBoxes, tree.getNumberOfLeaves ());
+	checkQueries (random, ids, bounds, tree);
+	checkQueries (random, ids, bounds, parallel);
+    }
+
+    @Test
+    public void testPoints () {
+	System.err.println ("TestIntPRTree: Testing points");
+	int numPoints = 10000;
+	Random random = new Random (5678);
+	int[] ids = new int[numPoints];
+	double[] coords = new double[numPoints * 2];
+	double[] bounds = new double[numPoints * 4];
+	for (int i = 0; i < numPoints; i++) {
+	    ids[i] = -i;
+	    for (int j = 0; j < 2; j++) {
+		double c = getRandomCoord (random);
+		coords[i * 2 + j] = c;
+		bounds[i * 4 + j * 2] = c;
+		bounds[i * 4 + j * 2 + 1] = c;
+	    }
+	}
+	tree.loadPoints (ids, coords);
+	IntPRTree parallel = new IntPRTree (2, BRANCH_FACTOR);
+	ForkJoinPool pool = new ForkJoinPool (4);
+	try {
+	    parallel.loadPoints (ids, coords, pool);
+	} finally {
+	    pool.shutdown ();
+	}
+	// the trees keep their own copy of the coordinates
+	Arrays.fill (coords, Double.NaN);
+	checkQueries (random, ids, bounds, tree);
+	checkQueries (random, ids, bounds, parallel);
+    }
+
+    private void checkQueries (Random random, int[] ids, double[] bounds,
+			       IntPRTree t) {
+	int[] buffer = new int[16];
+	for (int round = 0; round < 100; round++) {
+	    double x = getRandomCoord (random);
+	    double y = getRandomCoord (random);
+	    double size = random.nextInt (20000);
+	    MBR query = new SimpleMBR (x, x + size, y, y + size);
+	    List<Integer> expected = new ArrayList<Integer> ();
+	    for (int i = 0; i < ids.length; i++)
+		if (getMBR (bounds, i).intersects (query))
+		    expected.add (ids[i]);
+
+	    final List<Integer> actual = new ArrayList<Integer> ();
+	    assertTrue ("query stopped", t.find (query, new IntVisitor () {
+		    public boolean visit (int id) {
+			actual.add (id);
+			return true;
+		    }
+		}));
+	    assertEquals ("wrong result size", expected.size (), actual.size ());
+	    assertEquals ("wrong result", sorted (expected), sorted (actual));
+	    assertEquals ("wrong count", expected.size (), t.count (query));
+
+	    int found = t.find (query, buffer);
+	    assertEquals ("wrong buffer count", expected.size (), found);
+	    for (int i = 0; i < Math.min (found, buffer.length); i++)
+		assertEquals ("buffer differs from visitor", (int)actual.get (i),
+			      buffer[i]);
+
+	    PointND p = new SimplePointND (x, y);
+	    double[] dists = new double[ids.length];
+	    for (int i = 0; i < ids.length; i++)
+		dists[i] = Math.sqrt (MinDist.get (getMBR (bounds, i), p));
+	    Arrays.sort (dists);
+	    List<DistanceResult<Integer>> nn = t.nearestNeighbour (p, 10);
+	    assertEquals ("wrong nn size", 10, nn.size ());
+	    for (int i = 0; i < nn.size (); i++)
+		assertEquals ("wrong nn distance", dists[i],
+			      nn.get (i).getDistance (), 1e-9);
+	}
+    }
+
+    private MBR getMBR (double[] bounds, int i) {
+	return new SimpleMBR (Arrays.copyOfRange (bounds, i * 4, i * 4 + 4));
+    }
+
+    private List<Integer> sorted (List<Integer> l) {
+	List<Integer> ret = new ArrayList<Integer> (l);
+	Collections.sort (ret);
+	return ret;
+    }
+
+    private double getRandomCoord (Random random) {
+	return random.nextDouble () * RANDOM_RANGE - RANDOM_RANGE / 2;
+    }
+}
@@ -0,0 +1,173 @@
+package org.khelekore.prtree.junit;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.khelekore.prtree.ManagedPRTree;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.junit.Rectangles.Rectangle2DConverter;
+
+import static org.junit.Assert.*;
+
+/** Tests for ManagedPRTree.
+ */
+public class TestManagedPRTree {
+    private static final int BRANCH_FACTOR = 10;
+
+    private Rectangle2DConverter converter = new Rectangle2DConverter ();
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+	executor = Executors.newSingleThreadExecutor ();
+    }
+
+    @After
+    public void tearDown() {
+	executor.shutdownNow ();
+    }
+
+    /** Get a row of count unit squares. */
+    private List<Rectangle2D> getRects (int count) {
+	List<Rectangle2D> ret = new ArrayList<Rectangle2D> (count);
+	for (int i = 0; i < count; i++)
+	    ret.add (new Rectangle2D.Double (i, 0, 1, 1));
+	return ret;
+    }
+
+    @Test
+    public void testEmpty () {
+	ManagedPRTree<Rectangle2D> tree =
+	    new ManagedPRTree<Rectangle2D> (converter, BRANCH_FACTOR, executor, null);
+	assertTrue ("new tree should be empty", tree.getTree ().isEmpty ());
+	assertEquals ("no swaps yet", 0, tree.getSwapCount ());
+	assertEquals ("no build yet", 0, tree.getLastBuildNanos ());
+	assertTrue ("bad age", tree.getSnapshotAgeNanos () >= 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRebuildWithoutSource () {
+	new ManagedPRTree<Rectangle2D> (converter, BRANCH_FACTOR, executor,
+					null).rebuild ();
+    }
+
+    @Test
+    public void testRebuild () throws InterruptedException, ExecutionException {
+	final AtomicInteger size = new AtomicInteger (100);
+	Supplier<Collection<Rectangle2D>> source =
+	    new Supplier<Collection<Rectangle2D>> () {
+		public Collection<Rectangle2D> get () {
+		    return getRects (size.get ());
+		}
+	    };
+	ManagedPRTree<Rectangle2D> tree =
+	    new ManagedPRTree<Rectangle2D> (converter, BRANCH_FACTOR, executor,
+					    source);
+	PRTree<Rectangle2D> old = tree.getTree ();
+	PRTree<Rectangle2D> t = tree.rebuild ().get ();
+	assertSame ("future should give the current tree", tree.getTree (), t);
+	assertEquals ("wrong size", 100, t.getNumberOfLeaves ());
+	assertTrue ("old tree was modified", old.isEmpty ());
+	assertEquals ("wrong swap count", 1, tree.getSwapCount ());
+	assertTrue ("build time not set", tree.getLastBuildNanos () > 0);
+
+	size.set (200);
+	tree.setCacheEntryBounds (true);
+	t = tree.rebuild ().get ();
+	assertEquals ("wrong size", 200, t.getNumberOfLeaves ());
+	assertEquals ("wrong swap count", 2, tree.getSwapCount ());
+
+	t = tree.rebuild (getRects (50)).get ();
+	assertEquals ("wrong size", 50, t.getNumberOfLeaves ());
+	assertEquals ("wrong swap count", 3, tree.getSwapCount ());
+    }
+
+    @Test
+    public void testOutOfOrderBuilds ()
+	throws InterruptedException, ExecutionException {
+	// run the rebuilds in reverse order
+	final List<Runnable> tasks = new ArrayList<Runnable> ();
+	Executor manual = new Executor () {
+		public void execute (Runnable r) {
+		    tasks.add (r);
+		}
+	    };
+	ManagedPRTree<Rectangle2D> tree =
+	    new ManagedPRTree<Rectangle2D> (converter, BRANCH_FACTOR, manual, null);
+	Future<PRTree<Rectangle2D>> first = tree.rebuild (getRects (10));
+	Future<PRTree<Rectangle2D>> second = tree.rebuild (getRects (20));
+	assertEquals ("wrong number of tasks", 2, tasks.size ());
+	tasks.get (1).run ();
+	assertEquals ("wrong size", 20, second.get ().getNumberOfLeaves ());
+	tasks.get (0).run ();
+	assertEquals ("old data should be dropped", 20,
+		      first.get ().getNumberOfLeaves ());
+	assertEquals ("old data should be dropped", 20,
+		      tree.getTree ().getNumberOfLeaves ());
+	assertEquals ("wrong swap count", 1, tree.getSwapCount ());
+    }
+
+    @Test
+    public void testFailedBuild () throws InterruptedException {
+	Supplier<Collection<Rectangle2D>> source =
+	    new Supplier<Collection<Rectangle2D>> () {
+		public Collection<Rectangle2D> get () {
+		    throw new IllegalStateException ("no data");
+		}
+	    };
+	ManagedPRTree<Rectangle2D> tree =
+	    new ManagedPRTree<Rectangle2D> (converter, BRANCH_FACTOR, executor,
+					    source);
+	PRTree<Rectangle2D> old = tree.getTree ();
+	try {
+	    tree.rebuild ().get ();
+	    fail ("rebuild should fail");
+	} catch (ExecutionException e) {
+	    assertTrue ("wrong cause",
+			e.getCause () instanceof IllegalStateException);
+	}
+	assertSame ("tree should not change", old, tree.getTree ());
+	assertEquals ("wrong failed count", 1, tree.getFailedBuildCount ());
+	assertEquals ("no swaps", 0, tree.getSwapCount ());
+    }
+
+    @Test
+    public void testReadersDuringRebuild ()
+	throws InterruptedException, ExecutionException {
+	final ManagedPRTree<Rectangle2D> tree =
+	    new ManagedPRTree<Rectangle2D> (converter, BRANCH_FACTOR, executor,
+					    null);
+	final AtomicBoolean done = new AtomicBoolean ();
+	final AtomicInteger errors = new AtomicInteger ();
+	Thread reader = new Thread () {
+		@Override public void run () {
+		    SimpleMBR all = new SimpleMBR (0, 1000000, 0, 1);
+		    while (!done.get ()) {
+			PRTree<Rectangle2D> t = tree.getTree ();
+			if (t.count (all) != t.getNumberOfLeaves ())
+			    errors.incrementAndGet ();
+		    }
+		}
+	    };
+	reader.start ();
+	for (int i = 1; i <= 20; i++)
+	    tree.rebuild (getRects (i * 1000)).get ();
+	done.set (true);
+	reader.join ();
+	assertEquals ("reader saw a partial tree", 0, errors.get ());
+	assertEquals ("wrong swap count", 20, tree.getSwapCount ());
+    }
+}
@@ -0,0 +1,175 @@
+package org.khelekore.prtree.junit;
+
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.khelekore.prtree.DistanceResult;
+import org.khelekore.prtree.IdVisitor;
+import org.khelekore.prtree.MBR;
+import org.khelekore.prtree.MappedPRTree;
+import org.khelekore.prtree.MinDist2D;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.SimplePointND;
+import org.khelekore.prtree.junit.Rectangles.IndexIds;
+import org.khelekore.prtree.junit.Rectangles.Rectangle2DConverter;
+
+import static org.junit.Assert.*;
+
+/** Tests for MappedPRTree and the tree file format.
+ */
+public class TestMappedPRTree {
+    private static final int BRANCH_FACTOR = 30;
+    private static final double RANDOM_RANGE = 100000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder ();
+
+    private Rectangle2DConverter converter = new Rectangle2DConverter ();
+
+    @Test
+    public void testEmpty () throws IOException {
+	PRTree<Rectangle2D> tree =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	File f = folder.newFile ("empty.prt");
+	tree.write (f, new IndexIds (Collections.<Rectangle2D>emptyList ()));
+	MappedPRTree mt = MappedPRTree.open (f);
+	assertTrue ("tree should be empty", mt.isEmpty ());
+	assertNull ("empty tree should not have an MBR", mt.getMBR ());
+	assertEquals ("height of empty tree", 1, mt.getHeight ());
+	assertTrue ("should not find anything",
+		    mt.find (new SimpleMBR (0, 1, 0, 1), new FailVisitor ()));
+	assertEquals ("should not find any neighbours", 0,
+		      mt.nearestNeighbour (new SimplePointND (0, 0), 5).size ());
+    }
+
+    @Test
+    public void testWriteAndQuery () throws IOException {
+	testWriteAndQuery (false, false);
+	testWriteAndQuery (true, false);
+	testWriteAndQuery (true, true);
+    }
+
+    private void testWriteAndQuery (boolean cacheEntryBounds,
+				    boolean floatBounds)
+	throws IOException {
+	System.err.println ("TestMappedPRTree: Testing write and query, " +
+			    "cached bounds: " + cacheEntryBounds +
+			    ", float bounds: " + floatBounds);
+	int numRects = 20000;
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	PRTree<Rectangle2D> tree =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	tree.setCacheEntryBounds (cacheEntryBounds);
+	tree.setFloatBounds (floatBounds);
+	tree.load (rects);
+	IndexIds ids = new IndexIds (rects);
+	File f = folder.newFile ("tree" + cacheEntryBounds + floatBounds +
+				 ".prt");
+	tree.write (f, ids);
+	MappedPRTree mt = MappedPRTree.open (f);
+	assertEquals ("wrong number of entries", numRects,
+		      mt.getNumberOfLeaves ());
+	assertEquals ("wrong height", tree.getHeight (), mt.getHeight ());
+	MBR mbr = tree.getMBR ();
+	MBR mmbr = mt.getMBR ();
+	for (int i = 0; i < 2; i++) {
+	    assertEquals ("wrong min", mbr.getMin (i), mmbr.getMin (i), 0);
+	    assertEquals ("wrong max", mbr.getMax (i), mmbr.getMax (i), 0);
+	}
+
+	for (int round = 0; round < 100; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    MBR query = new SimpleMBR (x, x + 5000, y, y + 5000);
+	    List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+	    tree.find (query, expected);
+	    final List<Rectangle2D> actual = new ArrayList<Rectangle2D> ();
+	    final List<Rectangle2D> all = rects;
+	    mt.find (query, new IdVisitor () {
+		    public boolean visit (long id) {
+			actual.add (all.get ((int)id));
+			return true;
+		    }
+		});
+	    assertEquals ("should find same rectangles", expected, actual);
+
+	    SimplePointND p = new SimplePointND (x, y);
+	    List<Double> dists = new ArrayList<Double> ();
+	    for (Rectangle2D r : rects)
+		dists.add (Math.sqrt (MinDist2D.get (r.getMinX (), r.getMinY (),
+						     r.getMaxX (), r.getMaxY (),
+						     x, y)));
+	    Collections.sort (dists);
+	    List<DistanceResult<Long>> nn = mt.nearestNeighbour (p, 10);
+	    assertEquals ("wrong number of neighbours", 10, nn.size ());
+	    for (int i = 0; i < nn.size (); i++) {
+		assertEquals ("wrong distance", dists.get (i),
+			      nn.get (i).getDistance (), 0);
+		Rectangle2D r = rects.get (nn.get (i).get ().intValue ());
+		double d = Math.sqrt (MinDist2D.get (r.getMinX (), r.getMinY (),
+						     r.getMaxX (), r.getMaxY (),
+						     x, y));
+		assertEquals ("wrong id", dists.get (i), d, 0);
+	    }
+	}
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotATreeFile () throws IOException {
+	File f = folder.newFile ("bad.prt");
+	FileOutputStream fos = new FileOutputStream (f);
+	try {
+	    fos.write (new byte[100]);
+	} finally {
+	    fos.close ();
+	}
+	MappedPRTree.open (f);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated () throws IOException {
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 100; i++)
+	    rects.add (new Rectangle2D.Double (i, i, 1, 1));
+	PRTree<Rectangle2D> tree =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	tree.load (rects);
+	File f = folder.newFile ("truncated.prt");
+	tree.write (f, new IndexIds (rects));
+	RandomAccessFile raf = new RandomAccessFile (f, "rw");
+	try {
+	    raf.setLength (raf.length () - 8);
+	} finally {
+	    raf.close ();
+	}
+	MappedPRTree.open (f);
+    }
+
+    private double getRandomRectangleSize (Random random) {
+	return random.nextDouble () * RANDOM_RANGE - RANDOM_RANGE / 2;
+    }
+
+    private static class FailVisitor implements IdVisitor {
+	public boolean visit (long id) {
+	    fail ("Should not get any results, found: " + id);
+	    return false;
+	}
+    }
+}
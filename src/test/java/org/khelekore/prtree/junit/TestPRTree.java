@@ -4,20 +4,36 @@
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.Test;
+import org.khelekore.prtree.BatchResultVisitor;
 import org.khelekore.prtree.DistanceResult;
+import org.khelekore.prtree.JoinVisitor;
 import org.khelekore.prtree.NodeFilter;
-import org.khelekore.prtree.MinDist2D;
 import org.khelekore.prtree.DistanceCalculator;
-import org.khelekore.prtree.MBRConverter;
 import org.khelekore.prtree.MBR;
 import org.khelekore.prtree.PRTree;
 import org.khelekore.prtree.PointND;
+import org.khelekore.prtree.QueryCounters;
+import org.khelekore.prtree.QueryStats;
+import org.khelekore.prtree.ResultVisitor;
 import org.khelekore.prtree.SimpleMBR;
 import org.khelekore.prtree.SimplePointND;
+import org.khelekore.prtree.TreeQuality;
+import org.khelekore.prtree.junit.Rectangles.AcceptAll;
+import org.khelekore.prtree.junit.Rectangles.RectDistance;
+import org.khelekore.prtree.junit.Rectangles.Rectangle2DConverter;
 
 import static org.junit.Assert.*;
 
@@ -36,18 +52,12 @@ public void setUp() {
 	tree = new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
     }
 
-    private class Rectangle2DConverter implements MBRConverter<Rectangle2D> {
-	public int getDimensions () {
-	    return 2;
-	}
-
-	public double getMin (int axis, Rectangle2D t) {
-	    return axis == 0 ? t.getMinX () : t.getMinY ();
-	}
-
-	public double getMax (int axis, Rectangle2D t) {
-	    return axis == 0 ? t.getMaxX () : t.getMaxY ();
-	}
+    @Test
+    public void testNotLoaded () {
+	assertEquals ("Number of leafs in unloaded tree is not zero",
+		      0, tree.getNumberOfLeaves ());
+	assertNull ("mbr of unloaded tree should be null", tree.getMBR ());
+	assertEquals ("height of unloaded tree", 0, tree.getHeight ());
     }
 
     @Test
@@ -207,6 +217,842 @@ public void testRandom () {
 	}
     }
 
+    @Test
+    public void testParallelLoad () {
+	System.err.println ("TestPRTree: Testing parallel load");
+	int numRects = 50000;
+	Random random = new Random (4711);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    // make sure that we get some equal coordinates
+	    rects.add (new Rectangle2D.Double (Math.floor (x / 100),
+					       Math.floor (y / 100),
+					       random.nextInt (10),
+					       random.nextInt (10)));
+	}
+	tree = new PRTree<Rectangle2D> (converter, 10);
+	tree.load (rects);
+	PRTree<Rectangle2D> ptree = new PRTree<Rectangle2D> (converter, 10);
+	ForkJoinPool pool = new ForkJoinPool (4);
+	try {
+	    ptree.load (rects, pool);
+	} finally {
+	    pool.shutdown ();
+	}
+	assertEquals ("Number of leafs in tree is not correct",
+		      tree.getNumberOfLeaves (), ptree.getNumberOfLeaves ());
+	assertEquals ("height of tree", tree.getHeight (), ptree.getHeight ());
+
+	// same tree shape gives the same result order
+	MBR all = new SimpleMBR (-RANDOM_RANGE, RANDOM_RANGE,
+				 -RANDOM_RANGE, RANDOM_RANGE);
+	List<Rectangle2D> expected = new ArrayList<Rectangle2D> (numRects);
+	tree.find (all, expected);
+	List<Rectangle2D> actual = new ArrayList<Rectangle2D> (numRects);
+	ptree.find (all, actual);
+	assertEquals ("should find all rectangles", numRects, actual.size ());
+	for (int i = 0; i < numRects; i++)
+	    assertSame ("different tree shape at: " + i,
+			expected.get (i), actual.get (i));
+    }
+
+    @Test
+    public void testCachedEntryBounds () {
+	System.err.println ("TestPRTree: Testing cached entry bounds");
+	int numRects = 10000;
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	CountingConverter cc = new CountingConverter ();
+	PRTree<Rectangle2D> ctree = new PRTree<Rectangle2D> (cc, BRANCH_FACTOR);
+	ctree.setCacheEntryBounds (true);
+	ctree.load (rects);
+	cc.calls = 0;
+	for (int round = 0; round < 100; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    MBR query = new SimpleMBR (x, x + 5000, y, y + 5000);
+	    List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+	    tree.find (query, expected);
+	    List<Rectangle2D> actual = new ArrayList<Rectangle2D> ();
+	    ctree.find (query, actual);
+	    assertEquals ("should find same rectangles", expected, actual);
+	    int count = 0;
+	    for (Rectangle2D r : ctree.find (query))
+		count++;
+	    assertEquals ("should find same number of rectangles",
+			  expected.size (), count);
+	}
+	assertEquals ("converter should not be used by queries", 0, cc.calls);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCacheEntryBoundsAfterLoad () {
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	tree.setCacheEntryBounds (true);
+    }
+
+    @Test
+    public void testFloatBounds () {
+	System.err.println ("TestPRTree: Testing float bounds");
+	int numRects = 10000;
+	Random random = new Random (4321);  // same random every time
+	// far from 0 so that most values are rounded when stored as floats
+	double base = 1000000;
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (base + random.nextDouble () * 1000,
+					       base + random.nextDouble () * 1000,
+					       random.nextDouble () * 10,
+					       random.nextDouble () * 10));
+	tree.load (rects);
+	PRTree<Rectangle2D> ftree =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	ftree.setFloatBounds (true);
+	ftree.load (rects);
+	PRTree<Rectangle2D> fctree =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	fctree.setFloatBounds (true);
+	fctree.setCacheEntryBounds (true);
+	fctree.load (rects);
+	assertEquals ("mbr should not be rounded", tree.getMBR ().getMin (0),
+		      fctree.getMBR ().getMin (0), 0);
+
+	int numQueries = 200;
+	MBR[] queries = new MBR[numQueries];
+	for (int i = 0; i < numQueries; i++) {
+	    // start the query just after the edge of an entry, the
+	    // rounded bounds of that entry still touch the query
+	    Rectangle2D r = rects.get (random.nextInt (numRects));
+	    double x = Math.nextUp (r.getMaxX ());
+	    double y = r.getMinY ();
+	    double size = random.nextDouble () * 20;
+	    queries[i] = new SimpleMBR (x, x + size, y, y + size);
+	}
+	DistanceCalculator<Rectangle2D> dc = new RectDistance ();
+	for (PRTree<Rectangle2D> t : Arrays.asList (ftree, fctree)) {
+	    for (MBR query : queries) {
+		List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+		tree.find (query, expected);
+		List<Rectangle2D> actual = new ArrayList<Rectangle2D> ();
+		t.find (query, actual);
+		assertEquals ("wrong find result", expected, actual);
+		actual.clear ();
+		t.find (query, collect (actual));
+		assertEquals ("wrong visitor result", expected, actual);
+		actual.clear ();
+		for (Rectangle2D r : t.find (query))
+		    actual.add (r);
+		assertEquals ("wrong iterator result", expected, actual);
+		assertEquals ("wrong count", expected.size (), t.count (query));
+
+		expected.clear ();
+		tree.findWithin (query, expected);
+		actual.clear ();
+		t.findWithin (query, actual);
+		assertEquals ("wrong within result", expected, actual);
+
+		MBR point = new SimpleMBR (query.getMin (0), query.getMin (0),
+					   query.getMin (1), query.getMin (1));
+		expected.clear ();
+		tree.findContaining (point, expected);
+		actual.clear ();
+		t.findContaining (point, actual);
+		assertEquals ("wrong containing result", expected, actual);
+
+		PointND p = new SimplePointND (query.getMin (0),
+					       query.getMin (1));
+		List<DistanceResult<Rectangle2D>> nnExpected =
+		    tree.nearestNeighbour (dc, acceptAll, 10, p);
+		List<DistanceResult<Rectangle2D>> nnActual =
+		    t.nearestNeighbour (dc, acceptAll, 10, p);
+		assertEquals ("wrong nn size", nnExpected.size (),
+			      nnActual.size ());
+		for (int i = 0; i < nnExpected.size (); i++)
+		    assertEquals ("wrong nn distance",
+				  nnExpected.get (i).getDistance (),
+				  nnActual.get (i).getDistance (), 0);
+		Iterator<DistanceResult<Rectangle2D>> it =
+		    t.nearestNeighbours (dc, acceptAll, p).iterator ();
+		for (DistanceResult<Rectangle2D> dr : nnExpected)
+		    assertEquals ("wrong nn iterator distance", dr.getDistance (),
+				  it.next ().getDistance (), 0);
+	    }
+	    assertEquals ("wrong batch result", tree.findBatch (queries),
+			  t.findBatch (queries));
+	}
+    }
+
+    private ResultVisitor<Rectangle2D> collect (final List<Rectangle2D> l) {
+	return new ResultVisitor<Rectangle2D> () {
+	    public boolean visit (Rectangle2D r) {
+		l.add (r);
+		return true;
+	    }
+	};
+    }
+
+    @Test
+    public void testStream () {
+	System.err.println ("TestPRTree: Testing streams");
+	int numRects = 10000;
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	for (int round = 0; round < 100; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    double size = random.nextInt (50000);
+	    MBR query = new SimpleMBR (x, x + size, y, y + size);
+	    List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+	    tree.find (query, expected);
+	    assertEquals ("wrong stream result", expected,
+			  tree.stream (query).collect (Collectors.toList ()));
+	    assertEquals ("wrong parallel stream result", expected,
+			  tree.stream (query).parallel ()
+			  .collect (Collectors.toList ()));
+	    List<Rectangle2D> actual = new ArrayList<Rectangle2D> ();
+	    addSplit (tree.spliterator (query), actual);
+	    assertEquals ("wrong split result", expected, actual);
+	}
+	List<Rectangle2D> all = tree.stream ().collect (Collectors.toList ());
+	assertEquals ("wrong number of entries", numRects, all.size ());
+	assertEquals ("wrong size", numRects, tree.spliterator ().estimateSize ());
+	assertEquals ("full query should give leaf order", all,
+		      tree.stream (tree.getMBR ()).parallel ()
+		      .collect (Collectors.toList ()));
+    }
+
+    /** Split the spliterator as far as it goes and add the results of
+     *  each part in order.
+     */
+    private void addSplit (Spliterator<Rectangle2D> s,
+			   final List<Rectangle2D> result) {
+	Spliterator<Rectangle2D> prefix = s.trySplit ();
+	if (prefix == null) {
+	    long estimate = s.estimateSize ();
+	    int before = result.size ();
+	    s.forEachRemaining (new Consumer<Rectangle2D> () {
+		    public void accept (Rectangle2D r) {
+			result.add (r);
+		    }
+		});
+	    assertTrue ("size estimate too small",
+			result.size () - before <= estimate);
+	    return;
+	}
+	addSplit (prefix, result);
+	addSplit (s, result);
+    }
+
+    @Test
+    public void testJoin () {
+	System.err.println ("TestPRTree: Testing join");
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 5000; i++)
+	    rects.add (new Rectangle2D.Double (random.nextInt (10000),
+					       random.nextInt (10000),
+					       random.nextInt (200),
+					       random.nextInt (200)));
+	List<Rectangle2D> others = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 300; i++)
+	    others.add (new Rectangle2D.Double (random.nextInt (10000),
+						random.nextInt (10000),
+						random.nextInt (500),
+						random.nextInt (500)));
+	tree.load (rects);
+	PRTree<Rectangle2D> cached = new PRTree<Rectangle2D> (converter, 8);
+	cached.setCacheEntryBounds (true);
+	cached.setFloatBounds (true);
+	cached.load (rects);
+	PRTree<Rectangle2D> small = new PRTree<Rectangle2D> (converter, 8);
+	small.load (others);
+
+	final Map<Rectangle2D, Integer> ids =
+	    new IdentityHashMap<Rectangle2D, Integer> ();
+	for (int i = 0; i < rects.size (); i++)
+	    ids.put (rects.get (i), i);
+	for (int i = 0; i < others.size (); i++)
+	    ids.put (others.get (i), rects.size () + i);
+
+	Set<Long> expected = new HashSet<Long> ();
+	for (Rectangle2D r : rects)
+	    for (Rectangle2D o : others)
+		if (intersects (r, o))
+		    expected.add (pairId (ids.get (r), ids.get (o)));
+	ForkJoinPool pool = new ForkJoinPool (4);
+	try {
+	    for (PRTree<Rectangle2D> t : Arrays.asList (tree, cached)) {
+		assertEquals ("wrong join", expected, join (t, small, ids, null));
+		assertEquals ("wrong parallel join", expected,
+			      join (t, small, ids, pool));
+		assertEquals ("wrong swapped join", expected,
+			      join (small, t, ids, null));
+	    }
+
+	    expected.clear ();
+	    for (int i = 0; i < rects.size (); i++)
+		for (int j = i + 1; j < rects.size (); j++)
+		    if (intersects (rects.get (i), rects.get (j)))
+			expected.add (pairId (i, j));
+	    for (PRTree<Rectangle2D> t : Arrays.asList (tree, cached)) {
+		assertEquals ("wrong self join", expected,
+			      selfJoin (t, ids, null));
+		assertEquals ("wrong parallel self join", expected,
+			      selfJoin (t, ids, pool));
+	    }
+	} finally {
+	    pool.shutdown ();
+	}
+
+	final int[] found = new int[1];
+	assertFalse ("join should be stopped",
+		     tree.selfJoin (new JoinVisitor<Rectangle2D, Rectangle2D> () {
+			     public boolean visit (Rectangle2D a, Rectangle2D b) {
+				 return ++found[0] < 5;
+			     }
+			 }));
+	assertEquals ("wrong number of pairs after stop", 5, found[0]);
+    }
+
+    private boolean intersects (Rectangle2D a, Rectangle2D b) {
+	return a.getMinX () <= b.getMaxX () && a.getMaxX () >= b.getMinX () &&
+	    a.getMinY () <= b.getMaxY () && a.getMaxY () >= b.getMinY ();
+    }
+
+    /** Get an id for a pair that does not depend on the order. */
+    private static long pairId (int a, int b) {
+	return ((long)Math.max (a, b) << 32) | Math.min (a, b);
+    }
+
+    private Set<Long> join (PRTree<Rectangle2D> a, PRTree<Rectangle2D> b,
+			    final Map<Rectangle2D, Integer> ids,
+			    ForkJoinPool pool) {
+	final Set<Long> result = Collections.synchronizedSet (new HashSet<Long> ());
+	assertTrue ("join should not be stopped",
+		    a.join (b, new JoinVisitor<Rectangle2D, Rectangle2D> () {
+			    public boolean visit (Rectangle2D r, Rectangle2D o) {
+				assertTrue ("duplicate pair",
+					    result.add (pairId (ids.get (r),
+								ids.get (o))));
+				return true;
+			    }
+			}, pool));
+	return result;
+    }
+
+    private Set<Long> selfJoin (PRTree<Rectangle2D> t,
+				final Map<Rectangle2D, Integer> ids,
+				ForkJoinPool pool) {
+	final Set<Long> result = Collections.synchronizedSet (new HashSet<Long> ());
+	assertTrue ("join should not be stopped",
+		    t.selfJoin (new JoinVisitor<Rectangle2D, Rectangle2D> () {
+			    public boolean visit (Rectangle2D r, Rectangle2D o) {
+				assertNotSame ("entry paired with itself", r, o);
+				assertTrue ("duplicate pair",
+					    result.add (pairId (ids.get (r),
+								ids.get (o))));
+				return true;
+			    }
+			}, pool));
+	return result;
+    }
+
+    @Test
+    public void testWithinDistance () {
+	System.err.println ("TestPRTree: Testing within distance");
+	Random random = new Random (1357);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 20000; i++)
+	    rects.add (new Rectangle2D.Double (random.nextInt (100000),
+					       random.nextInt (100000),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	PRTree<Rectangle2D> cached =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	cached.setCacheEntryBounds (true);
+	cached.load (rects);
+	PRTree<Rectangle2D> floats =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	floats.setCacheEntryBounds (true);
+	floats.setFloatBounds (true);
+	floats.load (rects);
+	DistanceCalculator<Rectangle2D> dc = new RectDistance ();
+	for (int round = 0; round < 50; round++) {
+	    double x = random.nextInt (100000);
+	    double y = random.nextInt (100000);
+	    double r = random.nextInt (5000);
+	    PointND p = new SimplePointND (x, y);
+	    MBR box = new SimpleMBR (x, x + random.nextInt (5000),
+				     y, y + random.nextInt (5000));
+	    List<Rectangle2D> expectedPoint = new ArrayList<Rectangle2D> ();
+	    List<Rectangle2D> expectedBox = new ArrayList<Rectangle2D> ();
+	    for (Rectangle2D rect : rects) {
+		if (dc.distanceTo (rect, p) <= r)
+		    expectedPoint.add (rect);
+		double dx = Math.max (0, Math.max (rect.getMinX () - box.getMax (0),
+						   box.getMin (0) - rect.getMaxX ()));
+		double dy = Math.max (0, Math.max (rect.getMinY () - box.getMax (1),
+						   box.getMin (1) - rect.getMaxY ()));
+		if (dx * dx + dy * dy <= r * r)
+		    expectedBox.add (rect);
+	    }
+	    for (PRTree<Rectangle2D> t : Arrays.asList (tree, cached, floats)) {
+		List<Rectangle2D> result = new ArrayList<Rectangle2D> ();
+		t.withinDistance (p, r, dc, result);
+		assertEquals ("wrong point count", expectedPoint.size (),
+			      result.size ());
+		assertTrue ("wrong point result",
+			    result.containsAll (expectedPoint));
+		result.clear ();
+		t.withinDistance (box, r, result);
+		assertEquals ("wrong box count", expectedBox.size (),
+			      result.size ());
+		assertTrue ("wrong box result", result.containsAll (expectedBox));
+	    }
+	}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWithinBadDistance () {
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	tree.withinDistance (new SimplePointND (0, 0), -1, new RectDistance (),
+			     new ArrayList<Rectangle2D> ());
+    }
+
+    @Test
+    public void testQueryStats () {
+	System.err.println ("TestPRTree: Testing query statistics");
+	int numRects = 10000;
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	int leafLevel = tree.getHeight () - 1;
+	QueryStats stats = new QueryStats ();
+	for (int round = 0; round < 100; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    double size = random.nextInt (50000);
+	    MBR query = new SimpleMBR (x, x + size, y, y + size);
+	    List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+	    tree.find (query, expected);
+	    List<Rectangle2D> actual = new ArrayList<Rectangle2D> ();
+	    assertTrue ("query stopped", tree.find (query, collect (actual), stats));
+	    assertEquals ("wrong result", expected, actual);
+	    assertEquals ("wrong returned", expected.size (),
+			  stats.getEntriesReturned ());
+	    assertEquals ("root not visited", 1, stats.getNodesVisited (0));
+	    assertTrue ("too many tested",
+			stats.getEntriesTested () <=
+			BRANCH_FACTOR * stats.getNodesVisited (leafLevel));
+	    assertTrue ("no mbr tests", stats.getMBRTests () > 0);
+	}
+
+	QueryCounters counters = new QueryCounters ();
+	tree.setQueryListener (counters);
+	long returned = 0;
+	for (int round = 0; round < 10; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    MBR query = new SimpleMBR (x, x + 10000, y, y + 10000);
+	    List<Rectangle2D> result = new ArrayList<Rectangle2D> ();
+	    tree.find (query, result);
+	    int found = 0;
+	    for (Rectangle2D r : tree.find (query))
+		found++;
+	    assertEquals ("iterator and list differ", result.size (), found);
+	    returned += 2 * found;
+	}
+	assertEquals ("wrong number of queries", 20, counters.getQueries ());
+	assertEquals ("wrong sum of returned", returned,
+		      counters.getEntriesReturned ());
+
+	// a point query contains no node, so both searches do the same work
+	MBR point = new SimpleMBR (100, 100, 100, 100);
+	counters.reset ();
+	List<Rectangle2D> pointResult = new ArrayList<Rectangle2D> ();
+	tree.find (point, pointResult);
+	long mbrTests = counters.getMBRTests ();
+	long nodesVisited = counters.getNodesVisited ();
+	counters.reset ();
+	int pointFound = 0;
+	for (Rectangle2D r : tree.find (point))
+	    pointFound++;
+	assertEquals ("iterator and list differ", pointResult.size (), pointFound);
+	assertEquals ("iterator and list count mbr tests differently",
+		      mbrTests, counters.getMBRTests ());
+	assertEquals ("iterator and list count nodes differently",
+		      nodesVisited, counters.getNodesVisited ());
+
+	counters.reset ();
+	List<DistanceResult<Rectangle2D>> nn =
+	    tree.nearestNeighbour (new RectDistance (), acceptAll, 10,
+				   new SimplePointND (5000, 5000));
+	assertEquals ("wrong number of queries", 1, counters.getQueries ());
+	assertEquals ("wrong sum of returned", nn.size (),
+		      counters.getEntriesReturned ());
+	assertTrue ("nodes not counted", counters.getNodesVisited () > 0);
+
+	counters.reset ();
+	MBR all = tree.getMBR ();
+	assertTrue ("should intersect", tree.intersectsAny (all));
+	tree.count (all);
+	tree.findWithin (all, new ArrayList<Rectangle2D> ());
+	assertEquals ("uncounted queries were counted", 0, counters.getQueries ());
+
+	tree.setQueryListener (null);
+	tree.find (all, new ArrayList<Rectangle2D> ());
+	assertEquals ("counted without a listener", 0, counters.getQueries ());
+    }
+
+    @Test
+    public void testTreeQuality () {
+	System.err.println ("TestPRTree: Testing tree quality");
+	// a 100 * 100 grid of squares that covers the tree MBR
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int x = 0; x < 100; x++)
+	    for (int y = 0; y < 100; y++)
+		rects.add (new Rectangle2D.Double (x * 10, y * 10, 10, 10));
+	tree.load (rects);
+	TreeQuality q = tree.getTreeQuality ();
+	assertEquals ("wrong height", tree.getHeight (), q.getHeight ());
+	assertEquals ("wrong number of entries", rects.size (), q.getNumEntries ());
+	assertEquals ("one root", 1, q.getNodeCount (0));
+	assertEquals ("wrong root volume", 1000 * 1000, q.getTotalVolume (0), 0);
+	assertEquals ("root has no siblings", 0, q.getSiblingOverlap (0), 0);
+	assertEquals ("root has no dead space", 0, q.getDeadSpace (0), 0);
+	int leafLevel = q.getHeight () - 1;
+	int numNodes = 0;
+	for (int level = 0; level < q.getHeight (); level++) {
+	    numNodes += q.getNodeCount (level);
+	    assertTrue ("bad fill factor", q.getFillFactor (level) > 0 &&
+			q.getFillFactor (level) <= 1);
+	    assertTrue ("bad dead space", q.getDeadSpace (level) >= 0 &&
+			q.getDeadSpace (level) <= 1);
+	    assertTrue ("bad overlap", q.getSiblingOverlap (level) >= 0);
+	    assertEquals ("wrong average volume",
+			  q.getTotalVolume (level) / q.getNodeCount (level),
+			  q.getAverageVolume (level), 0);
+	}
+	assertEquals ("wrong leaf fill", rects.size (),
+		      q.getFillFactor (leafLevel) * q.getNodeCount (leafLevel) *
+		      BRANCH_FACTOR, 1e-6);
+
+	assertEquals ("a query as large as the tree visits all nodes",
+		      numNodes, q.getExpectedNodeAccesses (1000, 1000), 1e-9);
+	double point = q.getExpectedNodeAccesses (0, 0);
+	assertTrue ("a point query visits at least one path",
+		    point >= q.getHeight ());
+	assertTrue ("larger queries visit more nodes",
+		    q.getExpectedNodeAccesses (100, 100) > point);
+	assertEquals ("root is always visited", 1,
+		      q.getExpectedLevelAccesses (0, 0, 0), 0);
+	assertNotNull ("no report", q.toString ());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTreeQualityBadSides () {
+	tree.load (Collections.singletonList (new Rectangle2D.Double (0, 0, 1, 1)));
+	tree.getTreeQuality ().getExpectedNodeAccesses (1, 2, 3);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFloatBoundsAfterLoad () {
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	tree.setFloatBounds (true);
+    }
+
+    @Test
+    public void testVisitor () {
+	System.err.println ("TestPRTree: Testing visitor");
+	int numRects = 10000;
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	for (int round = 0; round < 100; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    MBR query = new SimpleMBR (x, x + 5000, y, y + 5000);
+	    List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+	    tree.find (query, expected);
+	    final List<Rectangle2D> actual = new ArrayList<Rectangle2D> ();
+	    ResultVisitor<Rectangle2D> all = new ResultVisitor<Rectangle2D> () {
+		public boolean visit (Rectangle2D r) {
+		    actual.add (r);
+		    return true;
+		}
+	    };
+	    assertTrue ("visitor did not stop", tree.find (query, all));
+	    assertEquals ("should find same rectangles", expected, actual);
+
+	    if (expected.size () > 1) {
+		final int limit = expected.size () / 2;
+		actual.clear ();
+		ResultVisitor<Rectangle2D> some = new ResultVisitor<Rectangle2D> () {
+		    public boolean visit (Rectangle2D r) {
+			actual.add (r);
+			return actual.size () < limit;
+		    }
+		};
+		assertFalse ("visitor stopped", tree.find (query, some));
+		assertEquals ("should stop early",
+			      expected.subList (0, limit), actual);
+	    }
+	}
+    }
+
+    @Test
+    public void testCount () {
+	System.err.println ("TestPRTree: Testing count");
+	int numRects = 10000;
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	MBR all = new SimpleMBR (-RANDOM_RANGE, RANDOM_RANGE,
+				 -RANDOM_RANGE, RANDOM_RANGE);
+	assertEquals ("should count all", numRects, tree.count (all));
+	assertFalse ("should not find anything outside",
+		     tree.intersectsAny (new SimpleMBR (RANDOM_RANGE, RANDOM_RANGE,
+							RANDOM_RANGE, RANDOM_RANGE)));
+	for (int round = 0; round < 100; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    double size = random.nextInt (50000);
+	    MBR query = new SimpleMBR (x, x + size, y, y + size);
+	    List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+	    tree.find (query, expected);
+	    assertEquals ("wrong count", expected.size (), tree.count (query));
+	    assertEquals ("wrong intersectsAny", !expected.isEmpty (),
+			  tree.intersectsAny (query));
+	}
+    }
+
+    @Test
+    public void testCountEmpty () {
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	MBR query = new SimpleMBR (0, 1, 0, 1);
+	assertEquals ("empty tree should have zero count", 0,
+		      tree.count (query));
+	assertFalse ("empty tree should not intersect",
+		     tree.intersectsAny (query));
+    }
+
+    @Test
+    public void testWithinAndContaining () {
+	System.err.println ("TestPRTree: Testing within and containing");
+	int numRects = 10000;
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (10000),
+					       random.nextInt (10000)));
+	tree.load (rects);
+	PRTree<Rectangle2D> ctree =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	ctree.setCacheEntryBounds (true);
+	ctree.load (rects);
+	for (int round = 0; round < 100; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    double size = random.nextInt (50000);
+	    MBR query = new SimpleMBR (x, x + size, y, y + size);
+	    MBR point = new SimpleMBR (x, x, y, y);
+	    List<Rectangle2D> within = new ArrayList<Rectangle2D> ();
+	    List<Rectangle2D> containing = new ArrayList<Rectangle2D> ();
+	    for (Rectangle2D r : rects) {
+		if (r.getMinX () >= x && r.getMaxX () <= x + size &&
+		    r.getMinY () >= y && r.getMaxY () <= y + size)
+		    within.add (r);
+		if (r.getMinX () <= x && r.getMaxX () >= x &&
+		    r.getMinY () <= y && r.getMaxY () >= y)
+		    containing.add (r);
+	    }
+	    for (PRTree<Rectangle2D> t : Arrays.asList (tree, ctree)) {
+		List<Rectangle2D> result = new ArrayList<Rectangle2D> ();
+		t.findWithin (query, result);
+		assertEquals ("wrong within count", within.size (),
+			      result.size ());
+		assertTrue ("wrong within", result.containsAll (within));
+		result.clear ();
+		t.findContaining (point, result);
+		assertEquals ("wrong containing count", containing.size (),
+			      result.size ());
+		assertTrue ("wrong containing", result.containsAll (containing));
+	    }
+	}
+    }
+
+    @Test
+    public void testBatch () {
+	System.err.println ("TestPRTree: Testing batch queries");
+	int numRects = 10000;
+	int numQueries = 1000;
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	MBR[] queries = new MBR[numQueries];
+	double[] packed = new double[numQueries * 4];
+	for (int i = 0; i < numQueries; i++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    double size = random.nextInt (5000);
+	    queries[i] = new SimpleMBR (x, x + size, y, y + size);
+	    packed[i * 4] = x;
+	    packed[i * 4 + 1] = x + size;
+	    packed[i * 4 + 2] = y;
+	    packed[i * 4 + 3] = y + size;
+	}
+	List<List<Rectangle2D>> expected = new ArrayList<List<Rectangle2D>> ();
+	for (MBR query : queries) {
+	    List<Rectangle2D> result = new ArrayList<Rectangle2D> ();
+	    tree.find (query, result);
+	    expected.add (result);
+	}
+	assertEquals ("wrong batch result", expected, tree.findBatch (queries));
+
+	final List<List<Rectangle2D>> actual =
+	    new ArrayList<List<Rectangle2D>> ();
+	for (int i = 0; i < numQueries; i++)
+	    actual.add (new ArrayList<Rectangle2D> ());
+	ForkJoinPool pool = new ForkJoinPool (4);
+	try {
+	    tree.findBatch (packed, new BatchResultVisitor<Rectangle2D> () {
+		    public boolean visit (int query, Rectangle2D r) {
+			List<Rectangle2D> l = actual.get (query);
+			l.add (r);
+			// stop every query after 2 results
+			return l.size () < 2;
+		    }
+		}, pool);
+	} finally {
+	    pool.shutdown ();
+	}
+	for (int i = 0; i < numQueries; i++) {
+	    List<Rectangle2D> e = expected.get (i);
+	    assertEquals ("wrong parallel batch result",
+			  e.subList (0, Math.min (2, e.size ())),
+			  actual.get (i));
+	}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadBatchLength () {
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	tree.findBatch (new double[3], new BatchResultVisitor<Rectangle2D> () {
+		public boolean visit (int query, Rectangle2D r) {
+		    return true;
+		}
+	    });
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFindBeforeLoad () {
+	tree.find (0, 0, 1, 1);
+    }
+
+    @Test
+    public void testConcurrentReaders () throws InterruptedException {
+	System.err.println ("TestPRTree: Testing concurrent readers");
+	int numRects = 20000;
+	Random random = new Random (1234);  // same random every time
+	final List<Rectangle2D> rects = new ArrayList<Rectangle2D> (numRects);
+	for (int i = 0; i < numRects; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	final List<Throwable> failures =
+	    Collections.synchronizedList (new ArrayList<Throwable> ());
+	Thread[] readers = new Thread[4];
+	for (int t = 0; t < readers.length; t++) {
+	    final int seed = t;
+	    readers[t] = new Thread () {
+		    @Override public void run () {
+			try {
+			    checkQueries (rects, new Random (seed));
+			} catch (Throwable e) {
+			    failures.add (e);
+			}
+		    }
+		};
+	}
+	for (Thread t : readers)
+	    t.start ();
+	for (Thread t : readers)
+	    t.join ();
+	assertEquals ("readers should not fail", Collections.emptyList (),
+		      failures);
+    }
+
+    private void checkQueries (List<Rectangle2D> rects, Random random) {
+	for (int round = 0; round < 50; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    MBR query = new SimpleMBR (x, x + 5000, y, y + 5000);
+	    int countSimple = 0;
+	    for (Rectangle2D r : rects) {
+		if (query.intersects (r, converter))
+		    countSimple++;
+	    }
+	    List<Rectangle2D> result = new ArrayList<Rectangle2D> ();
+	    tree.find (query, result);
+	    assertEquals ("should find same number of rectangles",
+			  countSimple, result.size ());
+	    assertNotNull ("tree should have an MBR", tree.getMBR ());
+	}
+    }
+
+    private class CountingConverter extends Rectangle2DConverter {
+	private int calls;
+
+	@Override public double getMin (int axis, Rectangle2D t) {
+	    calls++;
+	    return super.getMin (axis, t);
+	}
+
+	@Override public double getMax (int axis, Rectangle2D t) {
+	    calls++;
+	    return super.getMax (axis, t);
+	}
+    }
+
     private double getRandomRectangleSize (Random random) {
 	return random.nextDouble () * RANDOM_RANGE - RANDOM_RANGE / 2;
     }
@@ -359,6 +1205,119 @@ public void testNNDuplicates () {
 	checkNNSortOrder (nnRes);
     }
 
+    @Test
+    public void testNNLargeK () {
+	System.out.println ("TestPRTree: Testing nn large k");
+	Random random = new Random (1357);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 20000; i++)
+	    rects.add (new Rectangle2D.Double (random.nextInt (100000),
+					       random.nextInt (100000),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	PRTree<Rectangle2D> cached =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	cached.setCacheEntryBounds (true);
+	cached.load (rects);
+	tree.load (rects);
+	DistanceCalculator<Rectangle2D> dc = new RectDistance ();
+	for (int round = 0; round < 20; round++) {
+	    PointND p = new SimplePointND (random.nextInt (100000),
+					   random.nextInt (100000));
+	    List<Double> dists = new ArrayList<Double> ();
+	    for (Rectangle2D r : rects)
+		dists.add (dc.distanceTo (r, p));
+	    Collections.sort (dists);
+	    for (PRTree<Rectangle2D> t : Arrays.asList (tree, cached)) {
+		List<DistanceResult<Rectangle2D>> nnRes =
+		    t.nearestNeighbour (dc, acceptAll, 1000, p);
+		assertEquals ("Wrong size of the result", 1000, nnRes.size ());
+		for (int i = 0; i < nnRes.size (); i++) {
+		    DistanceResult<Rectangle2D> dr = nnRes.get (i);
+		    assertEquals ("wrong distance", dists.get (i),
+				  dr.getDistance (), 0);
+		    assertEquals ("wrong entry distance", dr.getDistance (),
+				  dc.distanceTo (dr.get (), p), 0);
+		}
+	    }
+	}
+	assertEquals ("no hits wanted", 0,
+		      tree.nearestNeighbour (dc, acceptAll, 0,
+					     new SimplePointND (0, 0)).size ());
+    }
+
+    @Test
+    public void testNNIterator () {
+	System.out.println ("TestPRTree: Testing nn iterator");
+	Random random = new Random (2468);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 20000; i++)
+	    rects.add (new Rectangle2D.Double (random.nextInt (100000),
+					       random.nextInt (100000),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	final DistanceCalculator<Rectangle2D> dc = new RectDistance ();
+	NodeFilter<Rectangle2D> wide = new NodeFilter<Rectangle2D> () {
+	    public boolean accept (Rectangle2D r) {
+		return r.getWidth () > r.getHeight ();
+	    }
+	};
+	for (int round = 0; round < 20; round++) {
+	    PointND p = new SimplePointND (random.nextInt (100000),
+					   random.nextInt (100000));
+	    List<Double> all = new ArrayList<Double> ();
+	    List<Double> wideDists = new ArrayList<Double> ();
+	    for (Rectangle2D r : rects) {
+		double d = dc.distanceTo (r, p);
+		all.add (d);
+		if (wide.accept (r))
+		    wideDists.add (d);
+	    }
+	    Collections.sort (all);
+	    Collections.sort (wideDists);
+
+	    int i = 0;
+	    for (DistanceResult<Rectangle2D> dr :
+		     tree.nearestNeighbours (dc, acceptAll, p)) {
+		assertEquals ("wrong distance", all.get (i),
+			      dr.getDistance (), 0);
+		assertEquals ("wrong entry distance", dr.getDistance (),
+			      dc.distanceTo (dr.get (), p), 0);
+		if (++i == 100)
+		    break;
+	    }
+
+	    i = 0;
+	    for (DistanceResult<Rectangle2D> dr :
+		     tree.nearestNeighbours (dc, wide, p, 2000)) {
+		assertTrue ("should be accepted", wide.accept (dr.get ()));
+		assertEquals ("wrong distance", wideDists.get (i++),
+			      dr.getDistance (), 0);
+	    }
+	    int expected = 0;
+	    while (expected < wideDists.size () &&
+		   wideDists.get (expected) <= 2000)
+		expected++;
+	    assertEquals ("wrong number of entries within distance",
+			  expected, i);
+	}
+
+	Iterator<DistanceResult<Rectangle2D>> it =
+	    tree.nearestNeighbours (dc, acceptAll, new SimplePointND (0, 0),
+				    0).iterator ();
+	while (it.hasNext ())
+	    assertEquals ("should be at zero distance", 0,
+			  it.next ().getDistance (), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNNIteratorBadDistance () {
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	tree.nearestNeighbours (new RectDistance (), acceptAll,
+				new SimplePointND (0, 0), -1);
+    }
+
     private void checkNNSortOrder (List<DistanceResult<Rectangle2D>> nnRes) {
 	DistanceResult<Rectangle2D> dr = nnRes.get (0);
 	for (int i = 1, s = nnRes.size (); i < s; i++) {
@@ -368,20 +1327,4 @@ private void checkNNSortOrder (List<DistanceResult<Rectangle2D>> nnRes) {
 	    dr = dr2;
 	}
     }
-
-    private static class AcceptAll<T> implements NodeFilter<T> {
-	public boolean accept (T t) {
-	    return true;
-	}
-    }
-
-    private static class RectDistance
-	implements DistanceCalculator<Rectangle2D> {
-	public double distanceTo (Rectangle2D r, PointND p) {
-	    double md = MinDist2D.get (r.getMinX (), r.getMinY (),
-				       r.getMaxX (), r.getMaxY (),
-				       p.getOrd (0), p.getOrd (1));
-	    return Math.sqrt (md);
-	}
-    }
 }
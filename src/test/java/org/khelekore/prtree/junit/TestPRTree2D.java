@@ -0,0 +1,180 @@
+package org.khelekore.prtree.junit;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.khelekore.prtree.DistanceCalculator;
+import org.khelekore.prtree.DistanceResult;
+import org.khelekore.prtree.MBR2D;
+import org.khelekore.prtree.MBRConverter;
+import org.khelekore.prtree.MBRConverter2D;
+import org.khelekore.prtree.NodeFilter;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.PRTree2D;
+import org.khelekore.prtree.ResultVisitor;
+import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.SimplePointND;
+import org.khelekore.prtree.junit.Rectangles.AcceptAll;
+import org.khelekore.prtree.junit.Rectangles.RectDistance;
+
+import static org.junit.Assert.*;
+
+/** Tests for PRTree2D.
+ */
+public class TestPRTree2D {
+    private static final int BRANCH_FACTOR = 30;
+    private static final double RANDOM_RANGE = 100000;
+
+    private Rectangle2DConverter converter = new Rectangle2DConverter ();
+    private PRTree2D<Rectangle2D> tree;
+    private NodeFilter<Rectangle2D> acceptAll = new AcceptAll<Rectangle2D> ();
+
+    @Before
+    public void setUp() {
+	tree = new PRTree2D<Rectangle2D> (converter, BRANCH_FACTOR);
+    }
+
+    private class Rectangle2DConverter implements MBRConverter2D<Rectangle2D> {
+	public double getMinX (Rectangle2D t) {
+	    return t.getMinX ();
+	}
+
+	public double getMinY (Rectangle2D t) {
+	    return t.getMinY ();
+	}
+
+	public double getMaxX (Rectangle2D t) {
+	    return t.getMaxX ();
+	}
+
+	public double getMaxY (Rectangle2D t) {
+	    return t.getMaxY ();
+	}
+    }
+
+    private class RectangleNDConverter implements MBRConverter<Rectangle2D> {
+	public int getDimensions () {
+	    return 2;
+	}
+
+	public double getMin (int axis, Rectangle2D t) {
+	    return axis == 0 ? t.getMinX () : t.getMinY ();
+	}
+
+	public double getMax (int axis, Rectangle2D t) {
+	    return axis == 0 ? t.getMaxX () : t.getMaxY ();
+	}
+    }
+
+    @Test
+    public void testEmpty () {
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	assertTrue ("tree should be empty", tree.isEmpty ());
+	assertNull ("empty tree should not have an MBR", tree.getMBR2D ());
+	assertEquals ("height of empty tree", 1, tree.getHeight ());
+	List<Rectangle2D> result = new ArrayList<Rectangle2D> ();
+	tree.find (0, 0, 1, 1, result);
+	assertEquals ("should not find anything", 0, result.size ());
+	assertEquals ("should not find any neighbours", 0,
+		      tree.nearestNeighbour (new RectDistance (), acceptAll,
+					     10, 0, 0).size ());
+    }
+
+    @Test
+    public void testSameAsPRTree () {
+	System.err.println ("TestPRTree2D: Testing against PRTree");
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 20000; i++)
+	    rects.add (new Rectangle2D.Double (getRandomRectangleSize (random),
+					       getRandomRectangleSize (random),
+					       random.nextInt (1000),
+					       random.nextInt (1000)));
+	tree.load (rects);
+	PRTree<Rectangle2D> ndTree =
+	    new PRTree<Rectangle2D> (new RectangleNDConverter (), BRANCH_FACTOR);
+	ndTree.load (rects);
+	assertEquals ("wrong number of entries", rects.size (),
+		      tree.getNumberOfLeaves ());
+	assertEquals ("wrong height", ndTree.getHeight (), tree.getHeight ());
+	MBR2D mbr = tree.getMBR2D ();
+	MBR2D ndMbr = ndTree.getMBR2D ();
+	assertEquals ("wrong min x", ndMbr.getMinX (), mbr.getMinX (), 0);
+	assertEquals ("wrong min y", ndMbr.getMinY (), mbr.getMinY (), 0);
+	assertEquals ("wrong max x", ndMbr.getMaxX (), mbr.getMaxX (), 0);
+	assertEquals ("wrong max y", ndMbr.getMaxY (), mbr.getMaxY (), 0);
+
+	DistanceCalculator<Rectangle2D> dc = new RectDistance ();
+	for (int round = 0; round < 200; round++) {
+	    double x = getRandomRectangleSize (random);
+	    double y = getRandomRectangleSize (random);
+	    double size = random.nextInt (20000);
+	    List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+	    ndTree.find (new SimpleMBR (x, x + size, y, y + size), expected);
+	    List<Rectangle2D> actual = new ArrayList<Rectangle2D> ();
+	    tree.find (x, y, x + size, y + size, actual);
+	    assertEquals ("should find same rectangles", expected, actual);
+
+	    List<DistanceResult<Rectangle2D>> ndRes =
+		ndTree.nearestNeighbour (dc, acceptAll, 10,
+					 new SimplePointND (x, y));
+	    List<DistanceResult<Rectangle2D>> res =
+		tree.nearestNeighbour (dc, acceptAll, 10, x, y);
+	    assertEquals ("wrong number of neighbours", ndRes.size (),
+			  res.size ());
+	    for (int i = 0; i < res.size (); i++) {
+		assertSame ("wrong neighbour", ndRes.get (i).get (),
+			    res.get (i).get ());
+		assertEquals ("wrong distance", ndRes.get (i).getDistance (),
+			      res.get (i).getDistance (), 0);
+	    }
+	}
+    }
+
+    @Test
+    public void testVisitorStop () {
+	List<Rectangle2D> rects = new ArrayList<Rectangle2D> ();
+	for (int i = 0; i < 100; i++)
+	    rects.add (new Rectangle2D.Double (i, i, 1, 1));
+	tree.load (rects);
+	final int[] count = new int[1];
+	boolean done = tree.find (0, 0, 100, 100, new ResultVisitor<Rectangle2D> () {
+		public boolean visit (Rectangle2D r) {
+		    return ++count[0] < 5;
+		}
+	    });
+	assertFalse ("visitor should have stopped the query", done);
+	assertEquals ("wrong number of visited entries", 5, count[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadQuery () {
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	tree.find (0, 1, 1, 0, new ArrayList<Rectangle2D> ());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFindBeforeLoad () {
+	tree.find (0, 0, 1, 1, new ArrayList<Rectangle2D> ());
+    }
+
+    @Test
+    public void testNearestNeighbourBeforeLoad () {
+	PRTree<Rectangle2D> ptree =
+	    new PRTree<Rectangle2D> (new RectangleNDConverter (), BRANCH_FACTOR);
+	assertEquals ("PRTree should not find anything", 0,
+		      ptree.nearestNeighbour (new RectDistance (), acceptAll, 10,
+					      new SimplePointND (0, 0)).size ());
+	assertEquals ("should not find anything", 0,
+		      tree.nearestNeighbour (new RectDistance (), acceptAll, 10,
+					     0, 0).size ());
+    }
+
+    private double getRandomRectangleSize (Random random) {
+	return random.nextDouble () * RANDOM_RANGE - RANDOM_RANGE / 2;
+    }
+}
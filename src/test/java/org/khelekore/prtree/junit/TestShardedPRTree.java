@@ -0,0 +1,230 @@
+package org.khelekore.prtree.junit;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import org.khelekore.prtree.DistanceCalculator;
+import org.khelekore.prtree.DistanceResult;
+import org.khelekore.prtree.MBR;
+import org.khelekore.prtree.NodeFilter;
+import org.khelekore.prtree.PRTree;
+import org.khelekore.prtree.PointND;
+import org.khelekore.prtree.ShardedPRTree;
+import org.khelekore.prtree.SimpleMBR;
+import org.khelekore.prtree.SimplePointND;
+import org.khelekore.prtree.junit.Rectangles.AcceptAll;
+import org.khelekore.prtree.junit.Rectangles.RectDistance;
+import org.khelekore.prtree.junit.Rectangles.Rectangle2DConverter;
+
+import static org.junit.Assert.*;
+
+/** Tests for ShardedPRTree.
+ */
+public class TestShardedPRTree {
+    private static final int BRANCH_FACTOR = 30;
+    private static final int NUM_SHARDS = 7;
+    private static final double RANDOM_RANGE = 100000;
+
+    private Rectangle2DConverter converter = new Rectangle2DConverter ();
+    private NodeFilter<Rectangle2D> acceptAll = new AcceptAll<Rectangle2D> ();
+
+    private List<Rectangle2D> getRandomRects (Random random, int count) {
+	List<Rectangle2D> ret = new ArrayList<Rectangle2D> (count);
+	for (int i = 0; i < count; i++)
+	    ret.add (new Rectangle2D.Double (getRandomCoord (random),
+					     getRandomCoord (random),
+					     random.nextInt (1000),
+					     random.nextInt (1000)));
+	return ret;
+    }
+
+    private double getRandomCoord (Random random) {
+	return random.nextDouble () * RANDOM_RANGE - RANDOM_RANGE / 2;
+    }
+
+    private ShardedPRTree<Rectangle2D> newTree () {
+	return new ShardedPRTree<Rectangle2D> (converter, BRANCH_FACTOR,
+					       NUM_SHARDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadShardCount () {
+	new ShardedPRTree<Rectangle2D> (converter, BRANCH_FACTOR, 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFindBeforeLoad () {
+	newTree ().find (new SimpleMBR (0, 1, 0, 1), new ArrayList<Rectangle2D> ());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadQuery () {
+	ShardedPRTree<Rectangle2D> tree = newTree ();
+	tree.load (getRandomRects (new Random (1234), 100));
+	tree.find (new SimpleMBR (1, 0, 0, 1), new ArrayList<Rectangle2D> ());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadCount () {
+	ShardedPRTree<Rectangle2D> tree = newTree ();
+	tree.load (getRandomRects (new Random (1234), 100));
+	tree.count (new SimpleMBR (0, 1, 1, 0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMultiLoad () {
+	ShardedPRTree<Rectangle2D> tree = newTree ();
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	tree.load (Collections.<Rectangle2D>emptyList ());
+    }
+
+    @Test
+    public void testLoadAfterFailedLoad () {
+	List<Rectangle2D> rects = getRandomRects (new Random (1234), 100);
+	final Rectangle2D bad = rects.get (0);
+	// the split reads each entry once per axis, fail when a shard
+	// build reads the bad entry
+	ShardedPRTree<Rectangle2D> tree =
+	    new ShardedPRTree<Rectangle2D> (new Rectangle2DConverter () {
+		    private int reads;
+		    private boolean failing = true;
+
+		    @Override public double getMin (int axis, Rectangle2D t) {
+			if (t == bad && failing && ++reads > 2) {
+			    failing = false;
+			    throw new IllegalArgumentException ("bad entry");
+			}
+			return super.getMin (axis, t);
+		    }
+		}, BRANCH_FACTOR, NUM_SHARDS);
+	try {
+	    tree.load (rects);
+	    fail ("load should fail");
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+	try {
+	    tree.count (new SimpleMBR (0, 1, 0, 1));
+	    fail ("failed load should leave the tree unloaded");
+	} catch (IllegalStateException e) {
+	    // expected
+	}
+	tree.load (rects);
+	assertEquals ("wrong size", rects.size (), tree.getNumberOfLeaves ());
+	assertTrue ("entry not found",
+		    tree.count (new SimpleMBR (bad.getMinX (), bad.getMaxX (),
+					       bad.getMinY (), bad.getMaxY ())) > 0);
+    }
+
+    @Test
+    public void testEmpty () {
+	ShardedPRTree<Rectangle2D> tree = newTree ();
+	tree.load (Collections.<Rectangle2D>emptyList ());
+	assertTrue ("tree should be empty", tree.isEmpty ());
+	assertNull ("empty tree has no mbr", tree.getMBR ());
+	assertEquals ("should not find anything", 0,
+		      tree.count (new SimpleMBR (0, 1, 0, 1)));
+	assertEquals ("should not find anything", 0,
+		      tree.nearestNeighbour (new RectDistance (), acceptAll, 10,
+					     new SimplePointND (0, 0)).size ());
+    }
+
+    @Test
+    public void testSameAsPRTree () {
+	System.err.println ("TestShardedPRTree: Testing against PRTree");
+	Random random = new Random (1234);  // same random every time
+	List<Rectangle2D> rects = getRandomRects (random, 10000);
+	PRTree<Rectangle2D> single =
+	    new PRTree<Rectangle2D> (converter, BRANCH_FACTOR);
+	single.load (rects);
+	ShardedPRTree<Rectangle2D> tree = newTree ();
+	tree.load (rects);
+	ShardedPRTree<Rectangle2D> parallel = newTree ();
+	ForkJoinPool pool = new ForkJoinPool (4);
+	try {
+	    parallel.load (rects, pool);
+	} finally {
+	    pool.shutdown ();
+	}
+
+	assertEquals ("wrong size", rects.size (), tree.getNumberOfLeaves ());
+	for (int axis = 0; axis < 2; axis++) {
+	    assertEquals ("wrong min", single.getMBR ().getMin (axis),
+			  tree.getMBR ().getMin (axis), 0);
+	    assertEquals ("wrong max", single.getMBR ().getMax (axis),
+			  tree.getMBR ().getMax (axis), 0);
+	}
+	for (int i = 0; i < NUM_SHARDS; i++) {
+	    PRTree<Rectangle2D> shard = tree.getShard (i);
+	    assertEquals ("parallel load differs",
+			  shard.getNumberOfLeaves (),
+			  parallel.getShard (i).getNumberOfLeaves ());
+	    assertTrue ("unbalanced shard",
+			shard.getNumberOfLeaves () >= rects.size () / NUM_SHARDS - 1);
+	    for (Rectangle2D r : shard.find (shard.getMBR ()))
+		assertEquals ("entry in the wrong shard", i, tree.getShardIndex (r));
+	}
+
+	DistanceCalculator<Rectangle2D> dc = new RectDistance ();
+	for (int round = 0; round < 100; round++) {
+	    double x = getRandomCoord (random);
+	    double y = getRandomCoord (random);
+	    double size = random.nextInt (20000);
+	    MBR query = new SimpleMBR (x, x + size, y, y + size);
+	    List<Rectangle2D> expected = new ArrayList<Rectangle2D> ();
+	    single.find (query, expected);
+	    List<Rectangle2D> actual = new ArrayList<Rectangle2D> ();
+	    tree.find (query, actual);
+	    assertEquals ("wrong result", new HashSet<Rectangle2D> (expected),
+			  new HashSet<Rectangle2D> (actual));
+	    assertEquals ("wrong result size", expected.size (), actual.size ());
+	    assertEquals ("wrong count", expected.size (), tree.count (query));
+
+	    PointND p = new SimplePointND (x, y);
+	    List<DistanceResult<Rectangle2D>> nnExpected =
+		single.nearestNeighbour (dc, acceptAll, 10, p);
+	    List<DistanceResult<Rectangle2D>> nnActual =
+		tree.nearestNeighbour (dc, acceptAll, 10, p);
+	    assertEquals ("wrong nn size", nnExpected.size (), nnActual.size ());
+	    for (int i = 0; i < nnExpected.size (); i++)
+		assertEquals ("wrong nn distance", nnExpected.get (i).getDistance (),
+			      nnActual.get (i).getDistance (), 0);
+	}
+    }
+
+    @Test
+    public void testRebuildShard () {
+	Random random = new Random (5678);
+	List<Rectangle2D> rects = getRandomRects (random, 1000);
+	ShardedPRTree<Rectangle2D> tree = newTree ();
+	tree.load (rects);
+	int shard = tree.getShardIndex (rects.get (0));
+	PRTree<Rectangle2D> old = tree.getShard (shard);
+	PRTree<Rectangle2D> other = tree.getShard ((shard + 1) % NUM_SHARDS);
+	int oldSize = old.getNumberOfLeaves ();
+
+	List<Rectangle2D> data = new ArrayList<Rectangle2D> ();
+	for (Rectangle2D r : old.find (old.getMBR ()))
+	    if (r != rects.get (0))
+		data.add (r);
+	Rectangle2D added = new Rectangle2D.Double (RANDOM_RANGE, RANDOM_RANGE, 1, 1);
+	data.add (added);
+	tree.rebuildShard (shard, data);
+
+	assertSame ("other shard was rebuilt", other,
+		    tree.getShard ((shard + 1) % NUM_SHARDS));
+	assertEquals ("old shard was modified", oldSize, old.getNumberOfLeaves ());
+	assertEquals ("wrong size", rects.size (), tree.getNumberOfLeaves ());
+	List<Rectangle2D> all = new ArrayList<Rectangle2D> ();
+	tree.find (tree.getMBR (), all);
+	assertFalse ("removed entry found", all.contains (rects.get (0)));
+	assertTrue ("added entry not found", all.contains (added));
+	assertEquals ("added entry not in the tree mbr", RANDOM_RANGE + 1,
+		      tree.getMBR ().getMax (0), 0);
+    }
+}